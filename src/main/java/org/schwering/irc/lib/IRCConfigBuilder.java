@@ -18,8 +18,10 @@ import java.net.Proxy;
 import java.net.Proxy.Type;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import org.schwering.irc.lib.impl.DefaultIRCConfig;
+import org.schwering.irc.lib.impl.VirtualThreadFactory;
 import org.schwering.irc.lib.util.IRCUtil;
 
 /**
@@ -47,6 +49,13 @@ public final class IRCConfigBuilder {
      */
     public static final int DEFAULT_TIMEOUT = 1000 * 60 * 15;
 
+    /**
+     * Default {@link #connectTimeout} is
+     * {@value IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT} milliseconds which is
+     * 30 seconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 1000 * 30;
+
     /**
      * Creates a new {@link IRCConfigBuilder} initializing the following fields
      * with defaults:
@@ -55,6 +64,7 @@ public final class IRCConfigBuilder {
      * <li>{@link #encoding(String)}</li>
      * <li>{@link #stripColors(boolean)}</li>
      * <li>{@link #timeout(int)}</li>
+     * <li>{@link #connectTimeout(int)}</li>
      * </ul>
      * Other fields are left {@code null}.
      *
@@ -67,6 +77,9 @@ public final class IRCConfigBuilder {
     /** @see #autoPong(boolean) */
     private boolean autoPong = DEFAULT_AUTOPONG;
 
+    /** @see #connectTimeout(int) */
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
     /** @see #encoding(String) */
     private String encoding = DEFAULT_ENCODING;
 
@@ -103,6 +116,15 @@ public final class IRCConfigBuilder {
     /** @see #stripColors(boolean) */
     private boolean stripColors = DEFAULT_STRIP_COLORS;
 
+    /** @see #fallbackEncoding(String) */
+    private String fallbackEncoding;
+
+    /** @see #floodControl(IRCFloodControl) */
+    private IRCFloodControl floodControl;
+
+    /** @see #threadFactory(ThreadFactory) */
+    private ThreadFactory threadFactory;
+
     /** @see #timeout(int) */
     private int timeout = DEFAULT_TIMEOUT;
 
@@ -140,7 +162,8 @@ public final class IRCConfigBuilder {
      */
     public IRCConfig build() {
         return new DefaultIRCConfig(host, IRCUtil.toArray(ports), password, nick, username, realname, encoding,
-                timeout, autoPong, stripColors, sslSupport, proxy, trafficLogger, exceptionHandler);
+                fallbackEncoding, timeout, connectTimeout, autoPong, stripColors, sslSupport, proxy, trafficLogger,
+                exceptionHandler, threadFactory, floodControl);
     }
 
     /**
@@ -157,6 +180,21 @@ public final class IRCConfigBuilder {
         return this;
     }
 
+    /**
+     * Sets the time in milliseconds to establish the connection, including
+     * the SSL handshake. It is independent of the read {@link #timeout(int)}.
+     * If not set through this method, the default is
+     * {@value #DEFAULT_CONNECT_TIMEOUT}.
+     *
+     * @param millis
+     *            the connect timeout in milliseconds
+     * @return this builder
+     */
+    public IRCConfigBuilder connectTimeout(int millis) {
+        this.connectTimeout = millis;
+        return this;
+    }
+
     /**
      * Changes the character encoding (such as {@code "UTF-8"} or
      * {@code "ISO-8859-1"}) used to talk to the server. If not set through this
@@ -184,6 +222,37 @@ public final class IRCConfigBuilder {
         return this;
     }
 
+    /**
+     * Sets the encoding (such as {@code "ISO-8859-1"} or
+     * {@code "windows-1252"}) of incoming lines which are not valid UTF-8.
+     * Each line is checked separately, so that lines from clients with a
+     * legacy encoding do not turn into replacement characters. Only used
+     * if the {@link #encoding(String)} is UTF-8. If not set through this
+     * method, such lines are decoded as UTF-8 nonetheless.
+     *
+     * @param fallbackEncoding
+     *            the encoding or {@code null}
+     * @return this builder
+     */
+    public IRCConfigBuilder fallbackEncoding(String fallbackEncoding) {
+        this.fallbackEncoding = fallbackEncoding;
+        return this;
+    }
+
+    /**
+     * Sets the outbound rate limit. If not set through this method, every
+     * line is sent immediately; {@link IRCFloodControl#DEFAULT} suits most
+     * servers.
+     *
+     * @param floodControl
+     *            the {@link IRCFloodControl} or {@code null}
+     * @return this builder
+     */
+    public IRCConfigBuilder floodControl(IRCFloodControl floodControl) {
+        this.floodControl = floodControl;
+        return this;
+    }
+
     /**
      * Sets the hostname or IP address of the IRC server to connect to.
      *
@@ -290,12 +359,15 @@ public final class IRCConfigBuilder {
      */
     public IRCConfigBuilder runtimeConfig(IRCRuntimeConfig runtimeConfig) {
         this.timeout = runtimeConfig.getTimeout();
+        this.connectTimeout = runtimeConfig.getConnectTimeout();
         this.autoPong = runtimeConfig.isAutoPong();
         this.stripColors = runtimeConfig.isStripColorsEnabled();
         this.sslSupport = runtimeConfig.getSSLSupport();
         this.proxy = runtimeConfig.getProxy();
         this.trafficLogger = runtimeConfig.getTrafficLogger();
         this.exceptionHandler = runtimeConfig.getExceptionHandler();
+        this.threadFactory = runtimeConfig.getThreadFactory();
+        this.floodControl = runtimeConfig.getFloodControl();
         return this;
     }
 
@@ -315,6 +387,7 @@ public final class IRCConfigBuilder {
         this.username = serverConfig.getUsername();
         this.realname = serverConfig.getRealname();
         this.encoding = serverConfig.getEncoding();
+        this.fallbackEncoding = serverConfig.getFallbackEncoding();
         return this;
     }
 
@@ -363,6 +436,33 @@ public final class IRCConfigBuilder {
         return this;
     }
 
+    /**
+     * Sets the {@link ThreadFactory} which creates the thread reading the
+     * incoming messages of the {@link IRCConnection}. If not set through this
+     * method, a plain platform thread is created.
+     *
+     * @param threadFactory
+     *            the {@link ThreadFactory} or {@code null}
+     * @return this builder
+     */
+    public IRCConfigBuilder threadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Makes the {@link IRCConnection} read the incoming messages on a virtual
+     * thread.
+     *
+     * @return this builder
+     * @throws UnsupportedOperationException
+     *             if the running Java does not support virtual threads
+     * @see VirtualThreadFactory
+     */
+    public IRCConfigBuilder virtualThreads() {
+        return threadFactory(new VirtualThreadFactory());
+    }
+
     /**
      * Sets the preferred connection's timeout in milliseconds. If not set
      * through this method, the default is {@value #DEFAULT_TIMEOUT}.
@@ -377,10 +377,9 @@ public interface IRCConnection {
     int getPort();
 
     /**
-     * Returns the timeout of the socket.
-     * If an error occurs, which is never the case, <code>-1</code> is returned.
-     * The possibly occuring <code>IOException</code> are handled according to
-     * the set exception handling.
+     * Returns the timeout after which a silent server is probed with a
+     * <code>PING</code>, see {@link IRCRuntimeConfig#getTimeout()}.
+     * If not connected, <code>-1</code> is returned.
      *
      * @return The timeout.
      */
@@ -14,6 +14,9 @@
 package org.schwering.irc.lib;
 
 import org.schwering.irc.lib.impl.DefaultIRCConnection;
+import org.schwering.irc.lib.impl.IRCEventLoop;
+import org.schwering.irc.lib.impl.NioIRCConnection;
+import org.schwering.irc.lib.impl.ReconnectingIRCConnection;
 
 /**
  * A factory to create new {@link IRCConnection}s. For the typical usage, see {@link IRCConnection}.
@@ -27,4 +30,55 @@ public class IRCConnectionFactory {
     public static IRCConnection newConnection(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig) {
         return new DefaultIRCConnection(serverConfig, runtimeConfig);
     }
+
+    /**
+     * Creates a connection which is served by one of the threads of the given
+     * {@link IRCEventLoop} instead of a thread of its own.
+     *
+     * @param config the configuration
+     * @param loop the event loop shared by the connections
+     * @return a new {@link NioIRCConnection}
+     */
+    public static IRCConnection newConnection(IRCConfig config, IRCEventLoop loop) {
+        return new NioIRCConnection(config, config, loop);
+    }
+
+    /**
+     * Creates a connection which is served by one of the threads of the given
+     * {@link IRCEventLoop} instead of a thread of its own.
+     *
+     * @param serverConfig the server configuration
+     * @param runtimeConfig the runtime configuration
+     * @param loop the event loop shared by the connections
+     * @return a new {@link NioIRCConnection}
+     */
+    public static IRCConnection newConnection(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig,
+            IRCEventLoop loop) {
+        return new NioIRCConnection(serverConfig, runtimeConfig, loop);
+    }
+
+    /**
+     * Creates a connection which reconnects with a jittered exponential
+     * backoff when the connection to the server breaks, and then rejoins the
+     * channels and restores the away message and user modes.
+     *
+     * @param config the configuration
+     * @return a new {@link ReconnectingIRCConnection}
+     */
+    public static IRCConnection newReconnectingConnection(IRCConfig config) {
+        return new ReconnectingIRCConnection(config, config);
+    }
+
+    /**
+     * Creates a connection like {@link #newReconnectingConnection(IRCConfig)}
+     * which is served by one of the threads of the given {@link IRCEventLoop}.
+     *
+     * @param config the configuration
+     * @param loop the event loop shared by the connections
+     * @return a new {@link ReconnectingIRCConnection}
+     */
+    public static IRCConnection newReconnectingConnection(IRCConfig config, IRCEventLoop loop) {
+        return new ReconnectingIRCConnection(config, config, loop, ReconnectingIRCConnection.DEFAULT_MIN_BACKOFF,
+                ReconnectingIRCConnection.DEFAULT_MAX_BACKOFF);
+    }
 }
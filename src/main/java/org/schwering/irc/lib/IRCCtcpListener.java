@@ -0,0 +1,64 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib;
+
+import org.schwering.irc.lib.util.CTCPCommand;
+
+/**
+ * An {@link IRCEventListener} which handles CTCP messages on their own.
+ * <p>
+ * CTCP messages, i.e. <code>PRIVMSG</code>s and <code>NOTICE</code>s whose
+ * text is enclosed in {@link CTCPCommand#QUOTE_CHAR}s, with a verb known to
+ * {@link CTCPCommand} are fired through the methods of this interface rather
+ * than through <code>onPrivmsg</code> and <code>onNotice</code>. CTCP messages
+ * with unknown verbs still are fired through the latter. Listeners which do
+ * not implement this interface get all CTCP messages through
+ * <code>onPrivmsg</code> and <code>onNotice</code> as before; to opt in, for
+ * example extend {@link IRCEventAdapter} and implement this interface.
+ *
+ * @see IRCEventListener
+ */
+public interface IRCCtcpListener extends IRCEventListener {
+
+    /**
+     * Fired when a user sends a CTCP request, i.e. a <code>PRIVMSG</code>
+     * whose text is enclosed in {@link CTCPCommand#QUOTE_CHAR}s, with a verb
+     * known to {@link CTCPCommand}, for example <code>ACTION</code>,
+     * <code>VERSION</code> or <code>DCC</code>.
+     * @param target The channel or nickname the request is sent to.
+     * @param user The user who sent the request.
+     *             Contains nick, username and host.
+     * @param command The CTCP verb.
+     * @param argument The text behind the verb; empty if there is none. It is
+     *                 a view of the received line which is only valid during
+     *                 this call; use <code>toString()</code> to keep it.
+     */
+    void onCtcpRequest(String target, IRCUser user, CTCPCommand command, CharSequence argument);
+
+
+    /**
+     * Fired when a user sends a CTCP reply, i.e. a <code>NOTICE</code> whose
+     * text is enclosed in {@link CTCPCommand#QUOTE_CHAR}s, with a verb known
+     * to {@link CTCPCommand}.
+     * @param target The channel or nickname the reply is sent to.
+     * @param user The user who sent the reply.
+     *             Contains nick, username and host.
+     * @param command The CTCP verb.
+     * @param argument The text behind the verb; empty if there is none. It is
+     *                 a view of the received line which is only valid during
+     *                 this call; use <code>toString()</code> to keep it.
+     */
+    void onCtcpReply(String target, IRCUser user, CTCPCommand command, CharSequence argument);
+
+}
@@ -14,6 +14,7 @@
 package org.schwering.irc.lib;
 
 import org.schwering.irc.lib.util.IRCModeParser;
+import org.schwering.irc.lib.util.IRCReply;
 
 /**
  * A empty implementation if {@link IRCEventListener}.
@@ -192,6 +193,16 @@ public class IRCEventAdapter implements IRCEventListener {
     }
 
 
+    /**
+     * Does nothing in this implementation.
+     *
+     * @see IRCEventListener#onReply(IRCReply, String, String)
+     */
+    public void onReply(IRCReply reply, String value, String msg) {
+        // nothing
+    }
+
+
     /**
      * Does nothing in this implementation.
      *
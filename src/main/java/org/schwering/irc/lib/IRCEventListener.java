@@ -17,6 +17,7 @@ import java.util.EventListener;
 
 import org.schwering.irc.lib.util.IRCConstants;
 import org.schwering.irc.lib.util.IRCModeParser;
+import org.schwering.irc.lib.util.IRCReply;
 
 /**
  * Used as listener for incoming events like messages.
@@ -48,6 +49,10 @@ import org.schwering.irc.lib.util.IRCModeParser;
  * </ul>
  * <p>
  * For other, unkown events there's the <code>unknown</code>-method.
+ * <p>
+ * CTCP messages are fired through <code>onPrivmsg</code> and
+ * <code>onNotice</code> unless the listener implements
+ * {@link IRCCtcpListener}.
  *
  * @author Christoph Schwering &lt;schwering@gmail.com&gt;
  * @see IRCEventAdapter
@@ -224,6 +229,20 @@ public interface IRCEventListener extends EventListener, IRCConstants {
     void onReply(int num, String value, String msg);
 
 
+    /**
+     * Fired when a numeric reply or a numeric error known to {@link IRCReply}
+     * is received. This event is fired in addition to
+     * <code>onReply(int, String, String)</code> or
+     * <code>onError(int, String)</code> so that listeners can
+     * <code>switch</code> on the enum instead of comparing numbers.
+     * @param reply The numeric reply or error.
+     * @param value The first part of the message.
+     * @param msg The main part of the message.
+     * @see IRCReply#isError()
+     */
+    void onReply(IRCReply reply, String value, String msg);
+
+
     /**
      * Fired when the topic is changed by operators.
      * Note that the topic is given as a numeric reply fired in
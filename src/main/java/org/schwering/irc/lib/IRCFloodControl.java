@@ -0,0 +1,202 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib;
+
+import java.util.Arrays;
+
+import org.schwering.irc.lib.util.IRCCommand;
+
+/**
+ * The outbound rate limit of an {@link IRCConnection}, set through
+ * {@link IRCConfigBuilder#floodControl(IRCFloodControl)}. It is a token
+ * bucket: up to {@link #getBurst()} lines may be sent at once, after which one
+ * line may follow every {@link #getInterval()} milliseconds. Lines exceeding
+ * the rate are queued instead of sent, which is much cheaper than being
+ * disconnected for "Excess Flood".
+ * <p>
+ * A command may be given a penalty, for example because the server charges
+ * more for {@code WHO} or {@code JOIN}: a line of a command with penalty
+ * {@code n} costs {@code n} tokens. The default penalty is {@code 1}.
+ * <p>
+ * Queued lines are sent in three lanes: {@code PONG}, {@code PING},
+ * {@code QUIT}, {@code NICK}, {@code PASS} and {@code USER} first, then all
+ * other commands, and {@code PRIVMSG} and {@code NOTICE} last. Within a lane
+ * the order of sending is kept.
+ * <p>
+ * An {@link #adaptive(int, int) adaptive} instance treats the interval as a
+ * starting point: the connection doubles it when the server signals that it
+ * sends too fast ({@code 439 ERR_TARGETTOOFAST}, an "Excess Flood"
+ * {@code ERROR} or a growing {@code PING} round-trip time) and slowly shortens
+ * it while lines are queued without such signals. The learned interval is
+ * remembered per server host for later connections.
+ * <p>
+ * Instances are immutable.
+ */
+public final class IRCFloodControl {
+
+    /** The default {@link #getBurst()}. */
+    public static final int DEFAULT_BURST = 5;
+
+    /** The default {@link #getInterval()} in milliseconds. */
+    public static final int DEFAULT_INTERVAL = 2000;
+
+    /**
+     * Five lines at once, then one line every two seconds, which is what
+     * servers following RFC 1459 tolerate.
+     */
+    public static final IRCFloodControl DEFAULT = new IRCFloodControl(DEFAULT_BURST, DEFAULT_INTERVAL);
+
+    /** @see #getBurst() */
+    private final int burst;
+
+    /** @see #getInterval() */
+    private final int interval;
+
+    /** The penalties indexed by {@link IRCCommand#ordinal()}. */
+    private final int[] penalties;
+
+    /** @see #getMinInterval() */
+    private final int minInterval;
+
+    /** @see #getMaxInterval() */
+    private final int maxInterval;
+
+    /**
+     * @param burst
+     *            the number of lines which may be sent at once
+     * @param interval
+     *            the milliseconds after which one more line may be sent
+     */
+    public IRCFloodControl(int burst, int interval) {
+        this(burst, interval, null, interval, interval);
+    }
+
+    /**
+     * @param burst
+     *            the number of lines which may be sent at once
+     * @param interval
+     *            the milliseconds after which one more line may be sent
+     * @param penalties
+     *            the penalties or {@code null} for all {@code 1}
+     * @param minInterval
+     *            the shortest interval an adaptive instance may use
+     * @param maxInterval
+     *            the longest interval an adaptive instance may use
+     */
+    private IRCFloodControl(int burst, int interval, int[] penalties, int minInterval, int maxInterval) {
+        if (burst < 1 || interval < 0) {
+            throw new IllegalArgumentException("Invalid burst " + burst + " or interval " + interval);
+        }
+        if (minInterval < 0 || minInterval > interval || maxInterval < interval) {
+            throw new IllegalArgumentException("Invalid interval range " + minInterval + ".." + maxInterval);
+        }
+        this.burst = burst;
+        this.interval = interval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        if (penalties == null) {
+            penalties = new int[IRCCommand.values().length];
+            Arrays.fill(penalties, 1);
+        }
+        this.penalties = penalties;
+    }
+
+    /**
+     * Returns a copy of this instance with the given penalty for the given
+     * command.
+     *
+     * @param command
+     *            the command
+     * @param penalty
+     *            the number of tokens a line of this command costs
+     * @return the new instance
+     */
+    public IRCFloodControl penalty(IRCCommand command, int penalty) {
+        if (penalty < 0) {
+            throw new IllegalArgumentException("Negative penalty " + penalty);
+        }
+        int[] newPenalties = penalties.clone();
+        newPenalties[command.ordinal()] = penalty;
+        return new IRCFloodControl(burst, interval, newPenalties, minInterval, maxInterval);
+    }
+
+    /**
+     * Returns a copy of this instance which adapts its interval to the
+     * server's throttling within the given range.
+     *
+     * @param minInterval
+     *            the shortest interval in milliseconds, at most
+     *            {@link #getInterval()}
+     * @param maxInterval
+     *            the longest interval in milliseconds, at least
+     *            {@link #getInterval()}
+     * @return the new instance
+     */
+    public IRCFloodControl adaptive(int minInterval, int maxInterval) {
+        return new IRCFloodControl(burst, interval, penalties, minInterval, maxInterval);
+    }
+
+    /**
+     * @return the number of lines which may be sent at once
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return the milliseconds after which one more line may be sent
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return {@code true} if the interval adapts to the server's throttling
+     */
+    public boolean isAdaptive() {
+        return minInterval != maxInterval;
+    }
+
+    /**
+     * @return the shortest interval an adaptive instance may use; equal to
+     *         {@link #getInterval()} otherwise
+     */
+    public int getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return the longest interval an adaptive instance may use; equal to
+     *         {@link #getInterval()} otherwise
+     */
+    public int getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * @param command
+     *            the command or {@code null} for an unknown one
+     * @return the number of tokens a line of this command costs
+     */
+    public int getPenalty(IRCCommand command) {
+        return (command != null) ? penalties[command.ordinal()] : 1;
+    }
+
+    @Override
+    public String toString() {
+        return "IRCFloodControl [burst=" + burst + ", interval=" + interval + ", minInterval=" + minInterval
+                + ", maxInterval=" + maxInterval + "]";
+    }
+
+}
@@ -14,6 +14,7 @@
 package org.schwering.irc.lib;
 
 import java.net.Proxy;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The non-server part of the {@link IRCConnection}'s configuration.
@@ -29,6 +30,12 @@ public interface IRCRuntimeConfig {
      */
     IRCExceptionHandler getExceptionHandler();
 
+    /**
+     * @return the outbound rate limit or {@code null} to send every line
+     *         immediately
+     */
+    IRCFloodControl getFloodControl();
+
     /**
      * @return the {@link Proxy} to use when connecting
      */
@@ -41,10 +48,19 @@ public interface IRCRuntimeConfig {
     IRCSSLSupport getSSLSupport();
 
     /**
-     * @return the socket timeout in milliseconds
+     * @return the milliseconds of silence after which the server is probed
+     *         with a {@code PING}; the connection is given up if that is not
+     *         answered either
      */
     int getTimeout();
 
+    /**
+     * @return the time in milliseconds to establish the connection, including
+     *         the SSL handshake, independent of {@link #getTimeout()}; also
+     *         the time the server has to accept the registration
+     */
+    int getConnectTimeout();
+
     /**
      * @return the {@link IRCTrafficLogger} that should be notified about
      *         incoming and outgoing messages or {@code null} if no traffic
@@ -52,6 +68,13 @@ public interface IRCRuntimeConfig {
      */
     IRCTrafficLogger getTrafficLogger();
 
+    /**
+     * @return the {@link ThreadFactory} creating the thread which reads the
+     *         incoming messages of an {@link IRCConnection}, or {@code null}
+     *         to create a plain platform thread
+     */
+    ThreadFactory getThreadFactory();
+
     /**
      * @return {@code true} if automatic PING? PONG! is enabled or {@code false}
      *         otherwise.
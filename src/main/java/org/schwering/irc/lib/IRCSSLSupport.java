@@ -37,7 +37,10 @@ public interface IRCSSLSupport {
     TrustManager[] getTrustManagers();
 
     /**
-     * @return the {@link SecureRandom} to initialize {@link SSLContext} with.
+     * @return the {@link SecureRandom} to initialize {@link SSLContext} with,
+     *         or {@code null} to let the {@link SSLContext} create its default
+     *         one. Note that {@link SecureRandom#getInstanceStrong()} may block
+     *         until the system gathered enough entropy.
      */
     SecureRandom getSecureRandom();
 
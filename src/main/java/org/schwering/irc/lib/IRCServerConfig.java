@@ -25,6 +25,14 @@ public interface IRCServerConfig {
      */
     String getEncoding();
 
+    /**
+     * @return the encoding to decode incoming lines with which are not valid
+     *         in {@link #getEncoding()} if that is UTF-8, such as
+     *         {@code "ISO-8859-1"} on networks with legacy clients, or
+     *         {@code null} to decode them as UTF-8 nonetheless
+     */
+    String getFallbackEncoding();
+
     /**
      * @return hostname or IP address of the IRC server to connect to
      */
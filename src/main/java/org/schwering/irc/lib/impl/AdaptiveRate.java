@@ -0,0 +1,143 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.schwering.irc.lib.IRCFloodControl;
+
+/**
+ * The send interval of an {@link OutboundQueue}, adapted AIMD-style when the
+ * {@link IRCFloodControl} is {@link IRCFloodControl#isAdaptive() adaptive}:
+ * on a throttling signal from the server the interval is doubled, that is the
+ * rate is halved; while lines are held back without such signals the rate
+ * grows by {@link #RATE_STEP} lines per second once per bucket's worth of
+ * time. The learned interval is kept per server host, so that a reconnect
+ * starts with it.
+ */
+final class AdaptiveRate {
+
+    /** The lines per second added to the rate per increase. */
+    static final double RATE_STEP = 0.05;
+
+    /**
+     * A round-trip time is considered grown if it exceeds the smallest one
+     * seen by this factor plus {@link #RTT_SLACK}.
+     */
+    private static final int RTT_FACTOR = 3;
+
+    /** The milliseconds of jitter tolerated in round-trip times. */
+    private static final long RTT_SLACK = 100;
+
+    /** The learned intervals by lower case server host. */
+    private static final ConcurrentMap<String, Long> LEARNED = new ConcurrentHashMap<String, Long>();
+
+    /** The configuration. */
+    private final IRCFloodControl floodControl;
+
+    /** The key of this host in {@link #LEARNED}. */
+    private final String host;
+
+    /** The current interval in milliseconds. */
+    private volatile long interval;
+
+    /** The time of the last change of {@link #interval}. */
+    private long lastChange;
+
+    /** The smallest round-trip time seen, or {@code -1}. */
+    private long minRtt = -1;
+
+    /**
+     * @param floodControl the configuration
+     * @param host the server host
+     */
+    AdaptiveRate(IRCFloodControl floodControl, String host) {
+        this.floodControl = floodControl;
+        this.host = host.toLowerCase(Locale.ENGLISH);
+        Long learned = floodControl.isAdaptive() ? LEARNED.get(this.host) : null;
+        this.interval = (learned != null) ? clamp(learned.longValue()) : floodControl.getInterval();
+    }
+
+    /**
+     * @return the current interval in milliseconds
+     */
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Halves the rate because the server signalled that we send too fast.
+     *
+     * @param now the current time in milliseconds
+     */
+    synchronized void throttled(long now) {
+        if (floodControl.isAdaptive() && now - lastChange >= interval) {
+            set(now, Math.max(1, 2 * interval));
+        }
+    }
+
+    /**
+     * Raises the rate a little if lines had to wait for the rate limit and no
+     * throttling signal arrived for the time the bucket takes to fill.
+     *
+     * @param now the current time in milliseconds
+     */
+    synchronized void heldBack(long now) {
+        if (floodControl.isAdaptive() && now - lastChange >= interval * floodControl.getBurst()) {
+            double rate = 1000.0 / Math.max(1, interval) + RATE_STEP;
+            set(now, (long) (1000.0 / rate));
+        }
+    }
+
+    /**
+     * Takes a {@code PING} round-trip time; a time much larger than the
+     * smallest one seen counts as throttling signal.
+     *
+     * @param now the current time in milliseconds
+     * @param rtt the round-trip time in milliseconds
+     */
+    void roundTrip(long now, long rtt) {
+        boolean grown;
+        synchronized (this) {
+            if (minRtt == -1 || rtt < minRtt) {
+                minRtt = rtt;
+            }
+            grown = rtt > RTT_FACTOR * minRtt + RTT_SLACK;
+        }
+        if (grown) {
+            throttled(now);
+        }
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @param newInterval the new interval
+     */
+    private void set(long now, long newInterval) {
+        lastChange = now;
+        interval = clamp(newInterval);
+        LEARNED.put(host, Long.valueOf(interval));
+    }
+
+    /**
+     * @param value an interval
+     * @return the interval within the configured range
+     */
+    private long clamp(long value) {
+        return Math.max(floodControl.getMinInterval(), Math.min(floodControl.getMaxInterval(), value));
+    }
+
+}
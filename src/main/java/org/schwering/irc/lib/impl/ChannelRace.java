@@ -0,0 +1,296 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The counterpart of {@link ConnectRace} for a {@link NioIRCConnection}. The
+ * attempts are non-blocking {@link SocketChannel}s whose connects the loop
+ * thread of the connection finishes once it selects them with
+ * {@link SelectionKey#OP_CONNECT}; the next attempt is started by the shared
+ * {@link HashedWheelTimer} after {@link ConnectRace#ATTEMPT_DELAY}
+ * milliseconds, or as soon as an attempt fails. No thread is started: only
+ * the thread calling {@link #run()} resolves the host and waits for the
+ * outcome.
+ * <p>
+ * The winning channel stays registered with the selector of the loop thread,
+ * without interest, so that the connection takes the key over.
+ */
+final class ChannelRace {
+
+    /** The connection to which the keys of the attempts are attached. */
+    private final NioIRCConnection connection;
+
+    /** The loop thread serving the connection. */
+    private final IRCEventLoop.Worker worker;
+
+    /** The host to connect to. */
+    private final String host;
+
+    /** The ports to try on {@link #host}, in order of preference. */
+    private final int[] ports;
+
+    /** The time in milliseconds to connect or {@code 0} for no limit. */
+    private final int timeout;
+
+    /** Starts the next attempt unless one was started since. */
+    private final Runnable staggerTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ChannelRace.this) {
+                long delay = TimeUnit.MILLISECONDS.toNanos(ConnectRace.ATTEMPT_DELAY);
+                if (!finished && System.nanoTime() - lastStart >= delay) {
+                    startNext();
+                }
+            }
+        }
+    };
+
+    /** The addresses to try, in order. Guarded by {@code this}. */
+    private List<InetSocketAddress> candidates;
+
+    /** The index of the next address to try. Guarded by {@code this}. */
+    private int next;
+
+    /** The addresses of the attempts in progress by their keys. Guarded by {@code this}. */
+    private final Map<SelectionKey, InetSocketAddress> attempts = new HashMap<SelectionKey, InetSocketAddress>();
+
+    /** The reason why the last attempt failed or {@code null}. Guarded by {@code this}. */
+    private IOException failure;
+
+    /** The {@link System#nanoTime()} the last attempt started. Guarded by {@code this}. */
+    private long lastStart;
+
+    /** The pending {@link #staggerTask} or {@code null}. Guarded by {@code this}. */
+    private HashedWheelTimer.Timeout stagger;
+
+    /** The pending connect timeout or {@code null}. Guarded by {@code this}. */
+    private HashedWheelTimer.Timeout deadline;
+
+    /** {@code true} once the race is decided. Guarded by {@code this}. */
+    private boolean finished;
+
+    /** The winning channel or {@code null}. Guarded by {@code this}. */
+    private SocketChannel result;
+
+    /** The address of the winning attempt. Guarded by {@code this}. */
+    private InetSocketAddress address;
+
+    /** The reason why the race was lost or {@code null}. Guarded by {@code this}. */
+    private IOException error;
+
+    /**
+     * @param connection the connection to connect
+     * @param worker the loop thread serving the connection
+     * @param host the host to connect to
+     * @param ports the ports to try, in order of preference
+     * @param timeout the time in milliseconds to connect or {@code 0} for no
+     *            limit
+     */
+    ChannelRace(NioIRCConnection connection, IRCEventLoop.Worker worker, String host, int[] ports, int timeout) {
+        this.connection = connection;
+        this.worker = worker;
+        this.host = host;
+        this.ports = ports;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Runs the race and waits for its outcome.
+     *
+     * @return the channel connected first, in non-blocking mode
+     * @throws IOException if all attempts fail, the connect timeout passes or
+     *             the race is aborted
+     */
+    SocketChannel run() throws IOException {
+        List<InetSocketAddress> resolved = ConnectRace.getCandidates(host, ports, true);
+        synchronized (this) {
+            candidates = resolved;
+            if (timeout > 0) {
+                deadline = connection.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        decide(null, new SocketTimeoutException("Connecting to " + host + " timed out"));
+                    }
+                }, timeout);
+            }
+        }
+        worker.execute(connection, new Runnable() {
+            @Override
+            public void run() {
+                startNext();
+            }
+        });
+        synchronized (this) {
+            try {
+                while (!finished) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                decide(null, new InterruptedIOException("Interrupted while connecting to " + host));
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the address connected to by {@link #run()}
+     */
+    synchronized InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Finishes the connect of an attempt. Called by the loop thread when the
+     * channel of the key is selected with {@link SelectionKey#OP_CONNECT}.
+     *
+     * @param key the key of the attempt
+     */
+    synchronized void connectable(SelectionKey key) {
+        if (finished || !attempts.containsKey(key)) {
+            return;
+        }
+        SocketChannel ch = (SocketChannel) key.channel();
+        try {
+            if (!ch.finishConnect()) {
+                return;
+            }
+        } catch (IOException exc) {
+            attempts.remove(key);
+            close(ch);
+            failure = exc;
+            startNext();
+            return;
+        }
+        decide(key, null);
+    }
+
+    /**
+     * Loses the race unless it is decided already. May be called from any
+     * thread.
+     *
+     * @param reason the reason
+     */
+    void abort(IOException reason) {
+        decide(null, reason);
+    }
+
+    /**
+     * Starts the next attempt on the loop thread. Addresses which fail right
+     * away are skipped; the race is lost once no attempt is left.
+     */
+    private synchronized void startNext() {
+        while (!finished && next < candidates.size()) {
+            InetSocketAddress candidate = candidates.get(next++);
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                boolean connected = ch.connect(candidate);
+                SelectionKey key = ch.register(worker.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT,
+                        connection);
+                attempts.put(key, candidate);
+                if (connected) {
+                    decide(key, null);
+                    return;
+                }
+                lastStart = System.nanoTime();
+                if (next < candidates.size()) {
+                    cancel(stagger);
+                    stagger = connection.schedule(staggerTask, ConnectRace.ATTEMPT_DELAY);
+                }
+                return;
+            } catch (IOException exc) {
+                close(ch);
+                failure = exc;
+            } catch (RuntimeException exc) {
+                /* for example an unsupported address type */
+                close(ch);
+                failure = new IOException(exc);
+            }
+        }
+        if (!finished && attempts.isEmpty()) {
+            decide(null, (failure != null) ? failure : new SocketException("No port to connect to " + host));
+        }
+    }
+
+    /**
+     * Decides the race unless it is decided already and cancels all attempts
+     * but the winner.
+     *
+     * @param winner the key of the winning attempt or {@code null}
+     * @param reason the reason why the race is lost if {@code winner} is
+     *            {@code null}
+     */
+    private synchronized void decide(SelectionKey winner, IOException reason) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        cancel(stagger);
+        cancel(deadline);
+        for (SelectionKey key : attempts.keySet()) {
+            if (key != winner) {
+                close((SocketChannel) key.channel());
+            }
+        }
+        if (winner != null) {
+            winner.interestOps(0);
+            result = (SocketChannel) winner.channel();
+            address = attempts.get(winner);
+        } else {
+            error = reason;
+        }
+        attempts.clear();
+        notifyAll();
+    }
+
+    /**
+     * @param timeout a timeout or {@code null}
+     */
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * @param ch a channel or {@code null}
+     */
+    private static void close(SocketChannel ch) {
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+                /* the attempt is given up anyway */
+            }
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.nio.charset.Charset;
+
+import org.schwering.irc.lib.util.IRCByteSlice;
+import org.schwering.irc.lib.util.IRCCommand;
+import org.schwering.irc.lib.util.IRCUtil;
+
+/**
+ * Encodes outgoing lines into {@link OutboundLine}s. A command with its
+ * parameters is written straight into a byte array of the exact size: the
+ * verb is copied from a table of preencoded verbs and UTF-8 parameters are
+ * encoded by {@link IRCUtil#encodeUTF8(CharSequence, byte[], int)} after
+ * their length was computed. Parameters containing CR, LF or NUL are
+ * rejected, so that a parameter cannot smuggle in another command. Other
+ * encodings go through {@link String#getBytes(Charset)}.
+ * <p>
+ * Instances are immutable and may be used by any number of threads.
+ */
+final class CommandEncoder {
+
+    /** The encoded verbs indexed by {@link IRCCommand#ordinal()}. */
+    private static final byte[][] VERBS;
+
+    static {
+        IRCCommand[] commands = IRCCommand.values();
+        VERBS = new byte[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            String name = commands[i].name();
+            byte[] verb = new byte[name.length()];
+            for (int j = 0; j < verb.length; j++) {
+                verb[j] = (byte) name.charAt(j);
+            }
+            VERBS[i] = verb;
+        }
+    }
+
+    /** The encoding of the lines. */
+    private final Charset charset;
+
+    /** {@code true} if {@link #charset} is UTF-8. */
+    private final boolean utf8;
+
+    /**
+     * @param charset the encoding of the lines
+     */
+    CommandEncoder(Charset charset) {
+        this.charset = charset;
+        this.utf8 = IRCByteSlice.UTF_8.equals(charset);
+    }
+
+    /**
+     * Encodes a command. The parameters are separated by spaces; the last one
+     * is preceded by a colon if {@code trailing} is set.
+     *
+     * @param command the command
+     * @param trailing {@code true} if the last parameter may contain spaces
+     * @param params the parameters; {@code null} is encoded as {@code "null"}
+     * @return the encoded line
+     * @throws IllegalArgumentException if a parameter contains CR, LF or NUL
+     */
+    OutboundLine encode(IRCCommand command, boolean trailing, String... params) {
+        byte[] verb = VERBS[command.ordinal()];
+        int length = verb.length;
+        byte[][] encoded = utf8 ? null : new byte[params.length][];
+        for (int i = 0; i < params.length; i++) {
+            String param = String.valueOf(params[i]);
+            validate(param, command);
+            if (utf8) {
+                length += IRCUtil.utf8Length(param);
+            } else {
+                encoded[i] = param.getBytes(charset);
+                length += encoded[i].length;
+            }
+            length += (trailing && i == params.length - 1) ? 2 : 1;
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(verb, 0, bytes, 0, verb.length);
+        int pos = verb.length;
+        for (int i = 0; i < params.length; i++) {
+            bytes[pos++] = ' ';
+            if (trailing && i == params.length - 1) {
+                bytes[pos++] = ':';
+            }
+            if (utf8) {
+                pos = IRCUtil.encodeUTF8(String.valueOf(params[i]), bytes, pos);
+            } else {
+                System.arraycopy(encoded[i], 0, bytes, pos, encoded[i].length);
+                pos += encoded[i].length;
+            }
+        }
+        return new OutboundLine(command, bytes);
+    }
+
+    /**
+     * Encodes a raw line as given to
+     * {@link org.schwering.irc.lib.IRCConnection#send(String)}. It is not
+     * validated.
+     *
+     * @param line the line without line terminator
+     * @return the encoded line
+     */
+    OutboundLine encode(String line) {
+        byte[] bytes;
+        if (utf8) {
+            bytes = new byte[IRCUtil.utf8Length(line)];
+            IRCUtil.encodeUTF8(line, bytes, 0);
+        } else {
+            bytes = line.getBytes(charset);
+        }
+        return new OutboundLine(getCommand(line), bytes);
+    }
+
+    /**
+     * @return the encoding of the lines
+     */
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param s a string
+     * @return the number of bytes of its encoding
+     */
+    int length(String s) {
+        return utf8 ? IRCUtil.utf8Length(s) : s.getBytes(charset).length;
+    }
+
+    /**
+     * @param line an encoded line
+     * @return the line decoded for a traffic logger
+     */
+    String decode(OutboundLine line) {
+        return new String(line.bytes, charset);
+    }
+
+    /**
+     * @param s a parameter
+     * @param command the command
+     * @throws IllegalArgumentException if the parameter contains CR, LF or NUL
+     */
+    private static void validate(String s, IRCCommand command) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                throw illegal(command);
+            }
+        }
+    }
+
+    /**
+     * @param command the command
+     * @return the exception for a parameter containing CR, LF or NUL
+     */
+    private static IllegalArgumentException illegal(IRCCommand command) {
+        return new IllegalArgumentException("Parameter of " + command + " contains CR, LF or NUL");
+    }
+
+    /**
+     * @param line an outgoing line
+     * @return its command or {@code null} if it is unknown
+     */
+    static IRCCommand getCommand(String line) {
+        int len = line.length();
+        int start = 0;
+        /* skip the message tags and the prefix */
+        while (start < len && (line.charAt(start) == '@' || line.charAt(start) == ':')) {
+            int space = line.indexOf(' ', start);
+            if (space == -1) {
+                return null;
+            }
+            start = space + 1;
+        }
+        int end = line.indexOf(' ', start);
+        return IRCCommand.fastValueOf(line, start, (end != -1) ? end : len);
+    }
+
+}
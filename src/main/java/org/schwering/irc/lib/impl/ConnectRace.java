@@ -0,0 +1,333 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a server in the manner of RFC 8305 "Happy Eyeballs": all
+ * addresses of the host are resolved and ordered so that IPv6 and IPv4
+ * alternate, and one attempt per address and port is started every
+ * {@link #ATTEMPT_DELAY} milliseconds, or as soon as an attempt fails, until
+ * one succeeds. The first attempt to succeed wins and all others are
+ * cancelled by closing their resources. An unreachable address thus delays
+ * the connection by {@link #ATTEMPT_DELAY} rather than by a timeout.
+ * <p>
+ * An attempt is whatever {@link #connect(Closeable, InetSocketAddress)} does,
+ * for SSL sockets including the handshake, so that the first handshake to
+ * finish wins. Each attempt runs in a thread of its own, which ends with the
+ * attempt. The whole race is limited by the connect timeout.
+ * <p>
+ * A {@link NioIRCConnection} runs a {@link ChannelRace} instead, which needs
+ * no threads.
+ *
+ * @param <T> the type of the connected resource
+ */
+abstract class ConnectRace<T extends Closeable> {
+
+    /**
+     * The milliseconds between the starts of two attempts, the "Connection
+     * Attempt Delay" recommended by RFC 8305.
+     */
+    static final long ATTEMPT_DELAY = 250;
+
+    /** The host to connect to. */
+    private final String host;
+
+    /** The ports to try on {@link #host}, in order of preference. */
+    private final int[] ports;
+
+    /** {@code false} if the addresses are resolved by a proxy. */
+    private final boolean resolve;
+
+    /** The time in milliseconds to connect or {@code 0} for no limit. */
+    private final int timeout;
+
+    /** The factory of the attempts' threads or {@code null}. */
+    private final ThreadFactory threadFactory;
+
+    /** The attempts which ended, successfully or not. */
+    private final BlockingQueue<Attempt> ended = new LinkedBlockingQueue<Attempt>();
+
+    /** The attempts started so far. Guarded by {@code this}. */
+    private final List<Attempt> attempts = new ArrayList<Attempt>();
+
+    /** {@code true} once the race is decided. Guarded by {@code this}. */
+    private boolean finished;
+
+    /** The address of the winning attempt. */
+    private InetSocketAddress address;
+
+    /**
+     * @param host the host to connect to
+     * @param ports the ports to try, in order of preference
+     * @param resolve {@code false} if the addresses are resolved by a proxy
+     * @param timeout the time in milliseconds to connect or {@code 0} for no
+     *            limit
+     * @param threadFactory the factory of the attempts' threads or
+     *            {@code null} to create plain platform threads
+     */
+    ConnectRace(String host, int[] ports, boolean resolve, int timeout, ThreadFactory threadFactory) {
+        this.host = host;
+        this.ports = ports;
+        this.resolve = resolve;
+        this.timeout = timeout;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return a new resource, which aborts the attempt when closed
+     * @throws IOException if the resource cannot be created
+     */
+    protected abstract T open() throws IOException;
+
+    /**
+     * Connects the given resource. Called by the attempts' threads.
+     *
+     * @param resource a resource created by {@link #open()}
+     * @param address the address to connect to
+     * @return the connected resource, which may wrap the given one
+     * @throws IOException if connecting fails
+     */
+    protected abstract T connect(T resource, InetSocketAddress address) throws IOException;
+
+    /**
+     * Runs the race.
+     *
+     * @return the resource connected first
+     * @throws IOException if all attempts fail or the connect timeout passes
+     */
+    T run() throws IOException {
+        List<InetSocketAddress> candidates = getCandidates(host, ports, resolve);
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        Attempt winner = null;
+        IOException failure = null;
+        int next = 0;
+        int running = 0;
+        boolean startNext = true;
+        try {
+            while (true) {
+                if (startNext && next < candidates.size()) {
+                    start(candidates.get(next++));
+                    running++;
+                }
+                if (running == 0) {
+                    throw (failure != null) ? failure : new SocketException("No port to connect to " + host);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connecting to " + host + " timed out");
+                }
+                long wait = deadline - now;
+                if (next < candidates.size()) {
+                    wait = Math.min(wait, ATTEMPT_DELAY);
+                }
+                Attempt attempt = ended.poll(wait, TimeUnit.MILLISECONDS);
+                startNext = true;
+                if (attempt != null) {
+                    running--;
+                    if (attempt.failure == null) {
+                        winner = attempt;
+                        address = attempt.address;
+                        return attempt.result;
+                    }
+                    failure = attempt.failure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + host);
+        } finally {
+            finish(winner);
+        }
+    }
+
+    /**
+     * @return the address connected to by {@link #run()}
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @param host the host to connect to
+     * @param ports the ports to try, in order of preference
+     * @param resolve {@code false} if the addresses are resolved by a proxy
+     * @return the addresses to try, in order
+     * @throws IOException if the host cannot be resolved
+     */
+    static List<InetSocketAddress> getCandidates(String host, int[] ports, boolean resolve) throws IOException {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+        if (!resolve) {
+            for (int port : ports) {
+                result.add(InetSocketAddress.createUnresolved(host, port));
+            }
+            return result;
+        }
+        List<InetAddress> addresses = interleave(InetAddress.getAllByName(host));
+        for (int port : ports) {
+            for (InetAddress a : addresses) {
+                result.add(new InetSocketAddress(a, port));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders the given addresses as recommended by RFC 8305: starting with
+     * the family of the first one, the families alternate, while the order
+     * within a family is kept.
+     *
+     * @param addresses the addresses as returned by the resolver
+     * @return the ordered addresses
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress a : addresses) {
+            boolean ipv6 = a instanceof Inet6Address;
+            if (first.isEmpty() || (first.get(0) instanceof Inet6Address) == ipv6) {
+                first.add(a);
+            } else {
+                second.add(a);
+            }
+        }
+        List<InetAddress> result = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < first.size() || i < second.size(); i++) {
+            if (i < first.size()) {
+                result.add(first.get(i));
+            }
+            if (i < second.size()) {
+                result.add(second.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts an attempt in a new thread.
+     *
+     * @param candidate the address to connect to
+     */
+    private void start(InetSocketAddress candidate) {
+        Attempt attempt = new Attempt(candidate);
+        synchronized (this) {
+            attempts.add(attempt);
+        }
+        String name = "irc connect " + candidate;
+        Thread thread;
+        if (threadFactory == null) {
+            thread = new Thread(attempt, name);
+        } else {
+            thread = threadFactory.newThread(attempt);
+            thread.setName(name);
+        }
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Decides the race and cancels all attempts but the winner.
+     *
+     * @param winner the winning attempt or {@code null}
+     */
+    private synchronized void finish(Attempt winner) {
+        finished = true;
+        for (Attempt attempt : attempts) {
+            if (attempt != winner) {
+                close(attempt.resource);
+                close(attempt.result);
+            }
+        }
+    }
+
+    /**
+     * @param resource a resource or {@code null}
+     */
+    private static void close(Closeable resource) {
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (IOException ignored) {
+                /* the attempt is given up anyway */
+            }
+        }
+    }
+
+    /**
+     * A single connection attempt.
+     */
+    private final class Attempt implements Runnable {
+
+        /** The address to connect to. */
+        final InetSocketAddress address;
+
+        /** The resource being connected. Guarded by the race. */
+        T resource;
+
+        /** The connected resource. Guarded by the race. */
+        T result;
+
+        /** The reason why the attempt failed or {@code null}. */
+        IOException failure;
+
+        /**
+         * @param address the address to connect to
+         */
+        Attempt(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            try {
+                T r = open();
+                synchronized (ConnectRace.this) {
+                    resource = r;
+                    if (finished) {
+                        close(r);
+                        return;
+                    }
+                }
+                T connected = connect(r, address);
+                synchronized (ConnectRace.this) {
+                    result = connected;
+                    if (finished) {
+                        close(connected);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e);
+            }
+            ended.add(this);
+        }
+    }
+
+}
@@ -14,10 +14,12 @@
 package org.schwering.irc.lib.impl;
 
 import java.net.Proxy;
+import java.util.concurrent.ThreadFactory;
 
 import org.schwering.irc.lib.IRCConfig;
 import org.schwering.irc.lib.IRCConfigBuilder;
 import org.schwering.irc.lib.IRCExceptionHandler;
+import org.schwering.irc.lib.IRCFloodControl;
 import org.schwering.irc.lib.IRCRuntimeConfig;
 import org.schwering.irc.lib.IRCSSLSupport;
 import org.schwering.irc.lib.IRCServerConfig;
@@ -51,6 +53,10 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
      * @see org.schwering.irc.lib.IRCConfig#getTimeout()
      */
     private final int timeout;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getConnectTimeout()
+     */
+    private final int connectTimeout;
     /**
      * @see org.schwering.irc.lib.IRCConfig#getTrafficLogger()
      */
@@ -59,6 +65,14 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
      * @see org.schwering.irc.lib.IRCRuntimeConfig#getExceptionHandler()
      */
     private final IRCExceptionHandler exceptionHandler;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getThreadFactory()
+     */
+    private final ThreadFactory threadFactory;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getFloodControl()
+     */
+    private final IRCFloodControl floodControl;
 
     /**
      * Creates a new {@link DefaultIRCConfig} using data from the given
@@ -69,9 +83,10 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
      */
     public DefaultIRCConfig(IRCConfig config) {
         this(config.getHost(), config.getPorts(), config.getPassword(), config.getNick(), config.getUsername(), config
-                .getRealname(), config.getEncoding(), config.getTimeout(), config.isAutoPong(), config
-                .isStripColorsEnabled(), new DefaultIRCSSLSupport(config.getSSLSupport()), config.getProxy(), config
-                .getTrafficLogger(), config.getExceptionHandler());
+                .getRealname(), config.getEncoding(), config.getFallbackEncoding(), config.getTimeout(), config
+                .getConnectTimeout(), config.isAutoPong(), config.isStripColorsEnabled(), copy(config.getSSLSupport()),
+                config.getProxy(), config.getTrafficLogger(), config.getExceptionHandler(), config.getThreadFactory(),
+                config.getFloodControl());
     }
 
     /**
@@ -85,10 +100,12 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
      */
     public DefaultIRCConfig(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig) {
         this(serverConfig.getHost(), serverConfig.getPorts(), serverConfig.getPassword(), serverConfig.getNick(),
-                serverConfig.getUsername(), serverConfig.getRealname(), serverConfig.getEncoding(), runtimeConfig
-                        .getTimeout(), runtimeConfig.isAutoPong(), runtimeConfig.isStripColorsEnabled(),
-                new DefaultIRCSSLSupport(runtimeConfig.getSSLSupport()), runtimeConfig.getProxy(), runtimeConfig
-                        .getTrafficLogger(), runtimeConfig.getExceptionHandler());
+                serverConfig.getUsername(), serverConfig.getRealname(), serverConfig.getEncoding(),
+                serverConfig.getFallbackEncoding(), runtimeConfig.getTimeout(), runtimeConfig.getConnectTimeout(),
+                runtimeConfig.isAutoPong(),
+                runtimeConfig.isStripColorsEnabled(), copy(runtimeConfig.getSSLSupport()),
+                runtimeConfig.getProxy(), runtimeConfig.getTrafficLogger(), runtimeConfig.getExceptionHandler(),
+                runtimeConfig.getThreadFactory(), runtimeConfig.getFloodControl());
     }
 
     /**
@@ -103,25 +120,164 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
      * @param username the username
      * @param realname the real name
      * @param encoding the encoding
+     * @param fallbackEncoding the encoding of lines which are not valid UTF-8 or
+     *            {@code null}
      * @param timeout the timeout
+     * @param connectTimeout the connect timeout
      * @param autoPong {@code PONG} will be sent authomatically if {@code true}
      * @param stripColorsEnabled if {@code true} color codes will be stripped
      * @param sslSupport the {@link IRCSSLSupport}
      * @param proxy the {@link Proxy}
      * @param trafficLogger the {@code IRCTrafficLogger}
      * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     * @param floodControl the {@link IRCFloodControl} or {@code null}
      */
     public DefaultIRCConfig(String host, int[] ports, String pass, String nick, String username, String realname,
-            String encoding, int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
-            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler) {
-        super(host, ports, pass, nick, username, realname, encoding);
+            String encoding, String fallbackEncoding, int timeout, int connectTimeout, boolean autoPong,
+            boolean stripColorsEnabled, IRCSSLSupport sslSupport, Proxy proxy, IRCTrafficLogger trafficLogger,
+            IRCExceptionHandler exceptionHandler, ThreadFactory threadFactory, IRCFloodControl floodControl) {
+        super(host, ports, pass, nick, username, realname, encoding, fallbackEncoding);
         this.timeout = timeout;
+        this.connectTimeout = connectTimeout;
         this.autoPong = autoPong;
         this.stripColorsEnabled = stripColorsEnabled;
         this.sslSupport = sslSupport;
         this.proxy = proxy;
         this.trafficLogger = trafficLogger;
         this.exceptionHandler = exceptionHandler;
+        this.threadFactory = threadFactory;
+        this.floodControl = floodControl;
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCConfig} without a fallback encoding, with
+     * the {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect
+     * timeout}, no {@link ThreadFactory} and no {@link IRCFloodControl}.
+     *
+     * @param host the host name or IP address
+     * @param ports the ports to try on {@code host}
+     * @param pass the password
+     * @param nick the preferred nick name
+     * @param username the username
+     * @param realname the real name
+     * @param encoding the encoding
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     */
+    public DefaultIRCConfig(String host, int[] ports, String pass, String nick, String username, String realname,
+            String encoding, int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler) {
+        this(host, ports, pass, nick, username, realname, encoding, null, timeout,
+                IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, null, null);
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCConfig} without a fallback encoding, with
+     * the {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect
+     * timeout} and no {@link IRCFloodControl}.
+     *
+     * @param host the host name or IP address
+     * @param ports the ports to try on {@code host}
+     * @param pass the password
+     * @param nick the preferred nick name
+     * @param username the username
+     * @param realname the real name
+     * @param encoding the encoding
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     */
+    public DefaultIRCConfig(String host, int[] ports, String pass, String nick, String username, String realname,
+            String encoding, int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler,
+            ThreadFactory threadFactory) {
+        this(host, ports, pass, nick, username, realname, encoding, null, timeout,
+                IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, threadFactory, null);
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCConfig} without a fallback encoding and
+     * with the {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect
+     * timeout}.
+     *
+     * @param host the host name or IP address
+     * @param ports the ports to try on {@code host}
+     * @param pass the password
+     * @param nick the preferred nick name
+     * @param username the username
+     * @param realname the real name
+     * @param encoding the encoding
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     * @param floodControl the {@link IRCFloodControl} or {@code null}
+     */
+    public DefaultIRCConfig(String host, int[] ports, String pass, String nick, String username, String realname,
+            String encoding, int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler,
+            ThreadFactory threadFactory, IRCFloodControl floodControl) {
+        this(host, ports, pass, nick, username, realname, encoding, null, timeout,
+                IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, threadFactory, floodControl);
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCConfig} with the
+     * {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect timeout}.
+     *
+     * @param host the host name or IP address
+     * @param ports the ports to try on {@code host}
+     * @param pass the password
+     * @param nick the preferred nick name
+     * @param username the username
+     * @param realname the real name
+     * @param encoding the encoding
+     * @param fallbackEncoding the encoding of lines which are not valid UTF-8 or
+     *            {@code null}
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     * @param floodControl the {@link IRCFloodControl} or {@code null}
+     */
+    public DefaultIRCConfig(String host, int[] ports, String pass, String nick, String username, String realname,
+            String encoding, String fallbackEncoding, int timeout, boolean autoPong, boolean stripColorsEnabled,
+            IRCSSLSupport sslSupport, Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler,
+            ThreadFactory threadFactory, IRCFloodControl floodControl) {
+        this(host, ports, pass, nick, username, realname, encoding, fallbackEncoding, timeout,
+                IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, threadFactory, floodControl);
+    }
+
+    /**
+     * @param sslSupport an {@link IRCSSLSupport} or {@code null}
+     * @return an immutable copy of {@code sslSupport} or {@code null} if
+     *         {@code sslSupport} is {@code null}
+     */
+    private static IRCSSLSupport copy(IRCSSLSupport sslSupport) {
+        return sslSupport == null ? null : new DefaultIRCSSLSupport(sslSupport);
     }
 
     /**
@@ -148,6 +304,14 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
         return timeout;
     }
 
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getConnectTimeout()
+     */
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
     /**
      * @see org.schwering.irc.lib.IRCConfig#getTrafficLogger()
      */
@@ -179,4 +343,20 @@ public class DefaultIRCConfig extends DefaultIRCServerConfig implements IRCConfi
         return exceptionHandler;
     }
 
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getFloodControl()
+     */
+    @Override
+    public IRCFloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getThreadFactory()
+     */
+    @Override
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
 }
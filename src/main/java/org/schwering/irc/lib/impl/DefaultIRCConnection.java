@@ -13,30 +13,53 @@
  */
 package org.schwering.irc.lib.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.schwering.irc.lib.IRCConnection;
 import org.schwering.irc.lib.IRCConnectionFactory;
+import org.schwering.irc.lib.IRCCtcpListener;
 import org.schwering.irc.lib.IRCEventListener;
 import org.schwering.irc.lib.IRCExceptionHandler;
+import org.schwering.irc.lib.IRCFloodControl;
 import org.schwering.irc.lib.IRCRuntimeConfig;
 import org.schwering.irc.lib.IRCServerConfig;
 import org.schwering.irc.lib.IRCTrafficLogger;
 import org.schwering.irc.lib.IRCUser;
+import org.schwering.irc.lib.util.CTCPCommand;
+import org.schwering.irc.lib.util.IRCByteParser;
+import org.schwering.irc.lib.util.IRCByteSlice;
+import org.schwering.irc.lib.util.IRCCommand;
+import org.schwering.irc.lib.util.IRCISupport;
 import org.schwering.irc.lib.util.IRCModeParser;
 import org.schwering.irc.lib.util.IRCParser;
+import org.schwering.irc.lib.util.IRCReply;
+import org.schwering.irc.lib.util.IRCTags;
 import org.schwering.irc.lib.util.IRCUtil;
-import org.schwering.irc.lib.util.LoggingReader;
-import org.schwering.irc.lib.util.LoggingWriter;
 
 /**
  * The default implementation of {@link IRCConnection}. Typically created via
@@ -60,8 +83,10 @@ public class DefaultIRCConnection implements IRCConnection {
     protected class Consumer implements Runnable {
 
         /**
-         * Receives strings from the IRC server and hands them over to
-         * {@link DefaultIRCConnection#get(String)}.
+         * Receives lines from the IRC server and hands them over to
+         * {@link DefaultIRCConnection#get(ByteBuffer)} or
+         * {@link DefaultIRCConnection#get(String)} through the
+         * {@link LineFramer}.
          *
          * Possibly occuring <code>IOException</code>s are handled by
          * {@link DefaultIRCConnection#exceptionHandler}.
@@ -69,9 +94,11 @@ public class DefaultIRCConnection implements IRCConnection {
         @Override
         public void run() {
             try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    get(line);
+                InputStream input = in;
+                LineFramer f = framer;
+                while (f.read(input, DefaultIRCConnection.this)) {
+                    /* the framer dispatches the lines */
+                    lastRead = System.currentTimeMillis();
                 }
             } catch (IOException exc) {
                 handleException(exc);
@@ -83,6 +110,87 @@ public class DefaultIRCConnection implements IRCConnection {
 
     }
 
+    /**
+     * The {@link Runnable} used in the {@link Thread} writing the queued lines
+     * when an {@link IRCFloodControl} is configured. It sleeps while the rate
+     * limit holds the lines back.
+     */
+    private class Writer implements Runnable {
+
+        /**
+         * Writes the lines the rate limit allows and waits for more.
+         *
+         * Possibly occuring <code>IOException</code>s are handled by
+         * {@link DefaultIRCConnection#exceptionHandler}.
+         */
+        @Override
+        public void run() {
+            OutboundQueue q = outbound;
+            OutputStream o = out;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    ByteBuffer buffer = q.fill(System.currentTimeMillis());
+                    if (buffer.hasRemaining()) {
+                        do {
+                            o.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+                        } while ((buffer = q.fill(System.currentTimeMillis())).hasRemaining());
+                        o.flush();
+                    }
+                    long delay = q.getDelay(System.currentTimeMillis());
+                    if (delay < 0)
+                        LockSupport.park(this);
+                    else if (delay > 0)
+                        LockSupport.parkNanos(this, delay * 1000000L);
+                }
+            } catch (IOException exc) {
+                handleException(exc);
+                close();
+            }
+        }
+
+    }
+
+    /** The maximum length of a line including CR LF but without tags. */
+    private static final int MAX_LINE_LENGTH = 512;
+
+    /** The username length assumed if the server does not announce one. */
+    private static final int DEFAULT_USERLEN = 10;
+
+    /** The host length assumed if the server does not announce one. */
+    private static final int DEFAULT_HOSTLEN = 63;
+
+    /** The bytes per part a split message gets at least. */
+    private static final int MIN_MESSAGE_ROOM = 64;
+
+    /** The milliseconds to wait for any line after a probing PING at most. */
+    private static final long PROBE_TIMEOUT = 60 * 1000;
+
+    /** The number of threads running blocking timer follow-ups at most. */
+    private static final int TIMER_TASK_THREADS = 4;
+
+    /**
+     * Runs the blocking follow-ups of timer tasks, that is probes and closes
+     * of all blocking connections and the reconnects of
+     * {@link ReconnectingIRCConnection}. Its daemon threads end when idle.
+     */
+    private static final ThreadPoolExecutor TIMER_TASKS;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "irc-timer-task-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        TIMER_TASKS = new ThreadPoolExecutor(TIMER_TASK_THREADS, TIMER_TASK_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        TIMER_TASKS.allowCoreThreadTimeOut(true);
+    }
+
     /**
      * The socket for the communication with the IRC server.
      */
@@ -101,20 +209,38 @@ public class DefaultIRCConnection implements IRCConnection {
     private byte level = 0;
 
     /**
-     * The <code>BufferedReader</code> receives messages from the IRC server.
+     * The stream from the IRC server.
      */
-    private BufferedReader in;
+    private InputStream in;
 
     /**
-     * The <code>PrintWriter</code> sends messages to the IRC server.
+     * Splits the bytes from {@link #in} into lines.
      */
-    private PrintWriter out;
+    private LineFramer framer;
+
+    /**
+     * The stream to the IRC server.
+     */
+    private OutputStream out;
+
+    /**
+     * The lines waiting to be written to the server. Created by
+     * {@link #connect()} or by subclasses with another transport.
+     */
+    OutboundQueue outbound;
 
     /**
      * An array of {@link IRCEventListener}s
      */
     private IRCEventListener[] listeners = new IRCEventListener[0];
 
+    /**
+     * Guards the dispatching of incoming lines, {@link #close()} and the
+     * {@link #listeners}. A lock rather than a monitor, so that a virtual
+     * thread blocking in a listener does not pin its carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     /** A traffic logger, usually for debugging purposses. Can be {@code null}. */
     private final IRCTrafficLogger trafficLogger;
     /** An {@link IRCExceptionHandler} to notify if something goe wrong. */
@@ -126,21 +252,93 @@ public class DefaultIRCConnection implements IRCConnection {
     /** A couple of runtime settings like timeout, pong behavior, etc. */
     private final IRCRuntimeConfig runtimeConfig;
 
+    /** Encodes the outgoing lines. */
+    private final CommandEncoder encoder;
+
     /** The nick accepted by the server. */
     private String nick;
 
+    /**
+     * The username the server shows in our prefix, or {@code null} until
+     * known.
+     */
+    private volatile String prefixUser;
+
+    /**
+     * The host the server shows in our prefix, or {@code null} until known.
+     */
+    private volatile String prefixHost;
+
     /**
      * The worker {@link Thread} for parsing the incoming IRC messages and
      * emitting events to {@link #listeners}.
      */
     private Thread thread;
 
+    /**
+     * The {@link Thread} running the {@link Writer}, or <code>null</code> if
+     * the senders write themselves.
+     */
+    private Thread writer;
+
+    /**
+     * The parser reused for all incoming lines. It is accessed only from
+     * {@link #get(String)}.
+     */
+    private final IRCByteParser parser = new IRCByteParser();
+
+    /**
+     * The features announced by the server in its <code>005</code> replies.
+     */
+    private final IRCISupport isupport = new IRCISupport();
+
     /**
      * The port actually used in this connection (as opposed to the port
      * interval in {@link #serverConfig})
      */
     private int remotePort;
 
+    /**
+     * The duration of the SSL handshake in nanoseconds, or <code>-1</code>
+     * for plain connections and until the handshake is finished.
+     */
+    volatile long handshakeNanos = -1;
+
+    /** The time of the last successful read in milliseconds. */
+    volatile long lastRead;
+
+    /**
+     * The token of the probing <code>PING</code> not yet answered, or
+     * <code>null</code>.
+     */
+    private volatile String probe;
+
+    /** The time the {@link #probe} was sent in milliseconds. */
+    private long probeSent;
+
+    /** The next run of {@link #idleCheck} or <code>null</code>. */
+    private volatile HashedWheelTimer.Timeout idleTimeout;
+
+    /** The run of {@link #registrationCheck} or <code>null</code>. */
+    private volatile HashedWheelTimer.Timeout registrationTimeout;
+
+    /** Runs {@link #checkIdle()}. */
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    /** Gives up the connection if the server has not accepted it yet. */
+    private final Runnable registrationCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (level == 1)
+                timedOut(new SocketTimeoutException("Registration timed out"));
+        }
+    };
+
     /**
      * Creates a new {@link DefaultIRCConnection} out of the given
      * {@link IRCServerConfig} and {@link IRCRuntimeConfig}. DO not forget to
@@ -165,6 +363,7 @@ public class DefaultIRCConnection implements IRCConnection {
                 || runtimeConfig instanceof DefaultIRCRuntimeConfig ? runtimeConfig : new DefaultIRCRuntimeConfig(
                 runtimeConfig);
         this.nick = serverConfig.getNick();
+        this.encoder = new CommandEncoder(Charset.forName(serverConfig.getEncoding()));
         this.trafficLogger = runtimeConfig.getTrafficLogger();
         this.exceptionHandler = runtimeConfig.getExceptionHandler();
     }
@@ -176,42 +375,42 @@ public class DefaultIRCConnection implements IRCConnection {
     public void connect() throws IOException, KeyManagementException, NoSuchAlgorithmException {
         if (level != 0) // otherwise disconnected or connect
             throw new SocketException("Socket closed or already open (" + level + ")");
-        SocketFactory socketFactory = new SocketFactory(runtimeConfig.getTimeout(), runtimeConfig.getProxy(),
-                runtimeConfig.getSSLSupport());
+        final SocketFactory socketFactory = new SocketFactory(runtimeConfig.getTimeout(),
+                runtimeConfig.getConnectTimeout(), runtimeConfig.getProxy(), runtimeConfig.getSSLSupport());
 
-        IOException exception = null;
         final String host = serverConfig.getHost();
-        for (int i = 0; i < serverConfig.getPortsCount() && socket == null; i++) {
-            try {
-                int port = serverConfig.getPortAt(i);
-                this.socket = socketFactory.createSocket(host, port);
-                this.remotePort = port;
-                exception = null;
-            } catch (IOException exc) {
-                if (this.socket != null) {
-                    this.socket.close();
-                }
-                this.socket = null;
-                exception = exc;
+        ConnectRace<Socket> race = new ConnectRace<Socket>(host, serverConfig.getPorts(), !socketFactory.isProxied(),
+                runtimeConfig.getConnectTimeout(), runtimeConfig.getThreadFactory()) {
+            @Override
+            protected Socket open() {
+                return socketFactory.newSocket();
             }
-        }
-        if (exception != null) {
-            /* we could not connect on any port */
-            throw exception;
-        }
 
-        level = 1;
-        String encoding = serverConfig.getEncoding();
-        if (trafficLogger != null) {
-            in = new LoggingReader(new InputStreamReader(this.socket.getInputStream(), encoding), trafficLogger);
-            out = new LoggingWriter(new OutputStreamWriter(this.socket.getOutputStream(), encoding), trafficLogger);
-        } else {
-            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), encoding));
-            out = new PrintWriter(new OutputStreamWriter(this.socket.getOutputStream(), encoding));
-        }
+            @Override
+            protected Socket connect(Socket socket, InetSocketAddress address) throws IOException {
+                return socketFactory.connect(socket, address, host);
+            }
+        };
+        this.socket = race.run();
+        this.remotePort = race.getAddress().getPort();
+        this.handshakeNanos = socketFactory.getHandshakeNanos();
+        /* a quiet server is probed by checkIdle() rather than given up */
+        this.socket.setSoTimeout(0);
+
+        setConnected();
+        Charset charset = Charset.forName(serverConfig.getEncoding());
+        in = this.socket.getInputStream();
+        framer = new LineFramer(charset, getFallbackCharset(), trafficLogger, LineFramer.DEFAULT_RESERVE);
+        out = this.socket.getOutputStream();
+        outbound = new OutboundQueue(false, runtimeConfig.getFloodControl(), host);
 
         this.thread = createThread();
         this.thread.start();
+        if (runtimeConfig.getFloodControl() != null) {
+            this.writer = newThread(new Writer(), thread.getName() + " writer");
+            this.writer.start();
+        }
+        startTimers();
         register();
     }
 
@@ -219,10 +418,24 @@ public class DefaultIRCConnection implements IRCConnection {
      * @return the consumer thread
      */
     protected Thread createThread() {
-        return new Thread(createConsumer(), "irc://" + serverConfig.getUsername() + "@" + serverConfig.getHost() + ":"
+        return newThread(createConsumer(), "irc://" + serverConfig.getUsername() + "@" + serverConfig.getHost() + ":"
                 + remotePort);
     }
 
+    /**
+     * @param r the {@link Runnable} to run
+     * @param name the name of the thread
+     * @return a new thread from the configured {@link ThreadFactory}, if any
+     */
+    private Thread newThread(Runnable r, String name) {
+        ThreadFactory threadFactory = runtimeConfig.getThreadFactory();
+        if (threadFactory == null)
+            return new Thread(r, name);
+        Thread t = threadFactory.newThread(r);
+        t.setName(name);
+        return t;
+    }
+
     /**
      * @return a new {@link Consumer}.
      */
@@ -230,6 +443,130 @@ public class DefaultIRCConnection implements IRCConnection {
         return new Consumer();
     }
 
+    /**
+     * Marks this connection as connected but not yet registered. Used by
+     * {@link #connect()} and by subclasses with another transport.
+     */
+    void setConnected() {
+        level = 1;
+    }
+
+    /**
+     * @return {@code true} if {@link #connect()} has not been called yet
+     */
+    boolean isNew() {
+        return level == 0;
+    }
+
+    /**
+     * Starts checking the connection for silence and for a registration
+     * which takes too long. Called once connected.
+     */
+    void startTimers() {
+        lastRead = System.currentTimeMillis();
+        int timeout = runtimeConfig.getTimeout();
+        if (timeout > 0)
+            idleTimeout = schedule(idleCheck, timeout);
+        int connectTimeout = runtimeConfig.getConnectTimeout();
+        if (connectTimeout > 0)
+            registrationTimeout = schedule(registrationCheck, connectTimeout);
+    }
+
+    /**
+     * Schedules a task of this connection on the shared
+     * {@link HashedWheelTimer}, whose thread runs it.
+     *
+     * @param task the task
+     * @param delay the delay in milliseconds
+     * @return the handle to cancel the task
+     */
+    HashedWheelTimer.Timeout schedule(Runnable task, long delay) {
+        return HashedWheelTimer.getShared().schedule(task, delay);
+    }
+
+    /**
+     * Runs a task which may block, so not on the thread of the shared
+     * {@link HashedWheelTimer}: a stalled socket could block a write or a
+     * close, and with it the timer of all connections. The task runs on a
+     * small pool shared by all connections instead of a thread of its own.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        TIMER_TASKS.execute(task);
+    }
+
+    /**
+     * Runs a blocking task which belongs to no single connection on the pool
+     * of {@link #execute(Runnable)}.
+     *
+     * @param task the task
+     */
+    static void executeShared(Runnable task) {
+        TIMER_TASKS.execute(task);
+    }
+
+    /**
+     * Checks whether the server was silent for the timeout. If so, a
+     * <code>PING</code> probes the connection, and if the server still sends
+     * nothing within {@link #PROBE_TIMEOUT}, the connection is given up.
+     * Reschedules itself otherwise, so that a quiet but healthy connection is
+     * kept.
+     */
+    void checkIdle() {
+        if (isClosed())
+            return;
+        long now = System.currentTimeMillis();
+        long last = lastRead;
+        if (probe != null && last < probeSent) {
+            timedOut(new SocketTimeoutException("Ping timeout"));
+            return;
+        }
+        probe = null;
+        int timeout = runtimeConfig.getTimeout();
+        long idle = now - last;
+        if (idle < timeout) {
+            idleTimeout = schedule(idleCheck, timeout - idle);
+            return;
+        }
+        final String token = "irclib-" + now;
+        probeSent = now;
+        probe = token;
+        if (writer != null) {
+            send(IRCCommand.PING, false, token);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(IRCCommand.PING, false, token);
+                    } catch (RuntimeException exc) {
+                        /* already handled by send */
+                    }
+                }
+            });
+        }
+        idleTimeout = schedule(idleCheck, Math.min(timeout, PROBE_TIMEOUT));
+    }
+
+    /**
+     * Reports the exception and closes the connection, off the timer's
+     * thread.
+     *
+     * @param exc the reason
+     */
+    void timedOut(final IOException exc) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed()) {
+                    handleException(exc);
+                    close();
+                }
+            }
+        });
+    }
+
     /**
      * Registers the connection with the IRC server. In fact, it sends a
      * password (if set, else nothing), the nickname and the user, the realname
@@ -240,248 +577,670 @@ public class DefaultIRCConnection implements IRCConnection {
      * &lt;username&gt; &lt;localhost&gt; &lt;irchost&gt; &lt;realname&gt;
      * </code>
      */
-    private void register() {
+    void register() {
         String pass = serverConfig.getPassword();
         if (pass != null)
-            send("PASS " + pass);
+            send(IRCCommand.PASS, false, pass);
 
-        send("NICK " + serverConfig.getNick());
-        send("USER " + serverConfig.getUsername() + " " + socket.getLocalAddress().getHostAddress() + " "
-                + serverConfig.getHost() + " :" + serverConfig.getRealname());
+        send(IRCCommand.NICK, false, serverConfig.getNick());
+        send(IRCCommand.USER, true, serverConfig.getUsername(), getLocalAddress().getHostAddress(),
+                serverConfig.getHost(), serverConfig.getRealname());
     }
 
     /**
+     * Encodes the line and queues it like the <code>do*</code> methods do.
+     * Unlike their parameters, the line is not checked for CR, LF or NUL.
+     *
      * @see org.schwering.irc.lib.IRCConnection#send(java.lang.String)
      */
     @Override
     public void send(String line) {
+        OutboundLine encoded = encoder.encode(line);
+        if (level == 1 && encoded.command == IRCCommand.NICK) { // not registered
+            IRCParser p = new IRCParser(line);
+            nick = p.getParameter(1).trim();
+        }
+        send(encoded);
+    }
+
+    /**
+     * Encodes a command through the {@link CommandEncoder} and queues it.
+     *
+     * @param command the command
+     * @param trailing {@code true} if the last parameter may contain spaces
+     * @param params the parameters
+     * @throws IllegalArgumentException if a parameter contains CR, LF or NUL
+     */
+    private void send(IRCCommand command, boolean trailing, String... params) {
+        send(encoder.encode(command, trailing, params));
+    }
+
+    /**
+     * Queues the line and, unless another thread is already writing, writes
+     * all queued lines. The writing thread copies as many lines as fit into
+     * its buffer and hands them to the socket at once, so that concurrent
+     * senders share a single write and flush. With an {@link IRCFloodControl}
+     * the lines are written by the {@link Writer} thread instead.
+     *
+     * @param line the encoded line
+     */
+    void send(OutboundLine line) {
         try {
-            out.write(line + "\r\n");
-            out.flush();
-            if (level == 1) { // not registered
-                IRCParser p = new IRCParser(line);
-                if ("NICK".equalsIgnoreCase(p.getCommand()))
-                    nick = p.getParameter(1).trim();
-            }
+            logOut(line);
+            outbound.add(line);
+            if (writer != null)
+                LockSupport.unpark(writer);
+            else
+                drain();
         } catch (Exception exc) {
             handleException(exc);
             throw new RuntimeException(exc);
         }
     }
 
+    /**
+     * Writes the queued lines unless another thread is already doing so.
+     *
+     * @throws IOException if writing fails
+     */
+    private void drain() throws IOException {
+        OutboundQueue q = outbound;
+        OutputStream o = out;
+        while (!q.isEmpty() && q.tryAcquire()) {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = q.fill(System.currentTimeMillis())).hasRemaining()) {
+                    o.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+                }
+                o.flush();
+            } finally {
+                q.release();
+            }
+        }
+    }
+
+    /**
+     * Hands the line to the {@link IRCTrafficLogger}, if there is one.
+     *
+     * @param line the line to be sent
+     */
+    void logOut(OutboundLine line) {
+        if (trafficLogger != null)
+            trafficLogger.out(encoder.decode(line));
+    }
+
     /**
      * Just parses a String given as the only argument with the help of the
-     * <code>IRCParser</code> class. Then it controls the command and fires
-     * events through the <code>IRCEventListener</code>.
+     * {@link #parser}. Then it classifies the command in a single pass over its
+     * bytes and hands the line over to the respective <code>on*</code> method
+     * which fires events through the <code>IRCEventListener</code>.
      *
      * @param line
      *            The line which is sent from the server.
      */
-    private synchronized void get(String line) {
-        IRCParser p;
+    void get(String line) {
+        lock.lock();
         try {
-            p = new IRCParser(line, runtimeConfig.isStripColorsEnabled());
-        } catch (Exception exc) {
-            return;
+            dispatch(parser.reset(line, runtimeConfig.isStripColorsEnabled()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parses the UTF-8 encoded line between the position and the limit of
+     * the given buffer without decoding it and dispatches it like
+     * {@link #get(String)}. If colors are to be stripped, they are erased
+     * from the buffer in place.
+     *
+     * @param line
+     *            The line which is sent from the server.
+     */
+    void get(ByteBuffer line) {
+        lock.lock();
+        try {
+            if (runtimeConfig.isStripColorsEnabled())
+                line.limit(IRCUtil.stripColors(line, line.position(), line.limit(), false));
+            dispatch(parser.reset(line));
+        } finally {
+            lock.unlock();
         }
-        String command = p.getCommand();
-        int reply; // 3-digit reply will be parsed in the later if-condition
+    }
 
-        if ("PRIVMSG".equalsIgnoreCase(command)) { // MESSAGE
+    /**
+     * Hands the parsed line over to the respective <code>on*</code> method.
+     *
+     * @param p the parser holding the current line
+     */
+    private void dispatch(IRCByteParser p) {
+        if (p.getCommand().byteLength() == 0) {
+            return;
+        }
 
-            IRCUser user = p.getUser();
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onPrivmsg(middle, user, trailing);
+        int code = p.getReplyCode();
+        if (code != -1) {
+            IRCReply reply = IRCReply.valueByCode(code);
+            if ((code >= 1 && code < 400) || (reply != null && !reply.isError()))
+                onReply(p, code, reply);
+            else if ((code >= 400 && code < 600) || reply != null)
+                onError(p, code, reply);
+            else
+                onUnknown(p);
+            return;
+        }
 
-        } else if ("MODE".equalsIgnoreCase(command)) { // MODE
+        IRCCommand command = IRCCommand.fastValueOf(p.getCommand());
+        if (command == null) {
+            onUnknown(p);
+            return;
+        }
+        if (command == IRCCommand.PONG) {
+            if (outbound != null)
+                outbound.ponged(System.currentTimeMillis());
+            String token = probe;
+            if (token != null && token.contentEquals(p.getTrailing())) {
+                /* the answer to our probe is none of the listeners' business */
+                probe = null;
+                return;
+            }
+        }
+        switch (command) {
+        case PRIVMSG:
+            onPrivmsg(p);
+            break;
+        case MODE:
+            onMode(p);
+            break;
+        case PING:
+            onPing(p);
+            break;
+        case JOIN:
+            onJoin(p);
+            break;
+        case NICK:
+            onNick(p);
+            break;
+        case QUIT:
+            onQuit(p);
+            break;
+        case PART:
+            onPart(p);
+            break;
+        case NOTICE:
+            onNotice(p);
+            break;
+        case KICK:
+            onKick(p);
+            break;
+        case INVITE:
+            onInvite(p);
+            break;
+        case TOPIC:
+            onTopic(p);
+            break;
+        case ERROR:
+            onError(p);
+            break;
+        default:
+            onUnknown(p);
+            break;
+        }
+    }
 
-            String chan = p.getParameter(1);
-            if (IRCUtil.isChan(chan)) {
-                IRCUser user = p.getUser();
-                String param2 = p.getParameter(2);
-                String paramsFrom3 = p.getParametersFrom(3);
-                for (int i = listeners.length - 1; i >= 0; i--)
-                    listeners[i].onMode(chan, user, new IRCModeParser(param2, paramsFrom3));
+    /**
+     * Fires {@link IRCCtcpListener#onCtcpRequest(String, IRCUser, CTCPCommand, CharSequence)}
+     * for CTCP requests with a known verb to the listeners which implement
+     * {@link IRCCtcpListener} and
+     * {@link IRCEventListener#onPrivmsg(String, IRCUser, String)} otherwise.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onPrivmsg(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String middle = p.getMiddle().toString();
+        CTCPCommand ctcp = getCtcpCommand(p);
+        IRCByteSlice argument = (ctcp != null) ? p.getCtcpArgument() : null;
+        String trailing = null;
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            IRCEventListener l = listeners[i];
+            if (ctcp != null && l instanceof IRCCtcpListener) {
+                ((IRCCtcpListener) l).onCtcpRequest(middle, user, ctcp, argument);
             } else {
-                IRCUser user = p.getUser();
-                String paramsFrom2 = p.getParametersFrom(2);
-                for (int i = listeners.length - 1; i >= 0; i--)
-                    listeners[i].onMode(user, chan, paramsFrom2);
+                if (trailing == null)
+                    trailing = getMessage(p);
+                l.onPrivmsg(middle, user, trailing);
             }
+        }
+    }
 
-        } else if ("PING".equalsIgnoreCase(command)) { // PING
-
-            String ping = p.getTrailing(); // no int cause sometimes it's text
-            if (runtimeConfig.isAutoPong())
-                doPong(ping);
-            else
-                for (int i = listeners.length - 1; i >= 0; i--)
-                    listeners[i].onPing(ping);
+    /**
+     * Resolves the verb of a CTCP message. Only the first and the last byte
+     * of the trailing are looked at for lines which are no CTCP message.
+     *
+     * @param p the parser holding the current line
+     * @return the CTCP verb or {@code null} if the line is no CTCP message or
+     *         its verb is unknown
+     */
+    private static CTCPCommand getCtcpCommand(IRCByteParser p) {
+        return p.isCtcp() ? CTCPCommand.fastValueOf(p.getCtcpVerb()) : null;
+    }
 
-            if (level == 1) { // not registered
-                level = 2; // first PING received -> connection
-                for (int i = listeners.length - 1; i >= 0; i--)
-                    listeners[i].onRegistered();
-            }
+    /**
+     * Returns the trailing as message text. The colors were already stripped
+     * when the line was parsed, but the CTCP delimiters were kept for
+     * {@link #getCtcpCommand(IRCByteParser)}; they are removed here if colors
+     * are to be stripped.
+     *
+     * @param p the parser holding the current line
+     * @return the message
+     */
+    private String getMessage(IRCByteParser p) {
+        String trailing = p.getTrailing().toString();
+        return runtimeConfig.isStripColorsEnabled() ? IRCUtil.stripColors(trailing, true) : trailing;
+    }
 
-        } else if ("JOIN".equalsIgnoreCase(command)) { // JOIN
+    /**
+     * Restores the text of a CTCP message the way
+     * {@link #getMessage(IRCByteParser)} returns it: enclosed in
+     * {@link CTCPCommand#QUOTE_CHAR}s, which are left out if colors are to be
+     * stripped.
+     *
+     * @param command the CTCP verb
+     * @param argument the text behind the verb
+     * @param stripColors {@code true} if colors are to be stripped
+     * @return the message
+     */
+    static String getMessage(CTCPCommand command, CharSequence argument, boolean stripColors) {
+        StringBuilder sb = new StringBuilder(command.name().length() + argument.length() + 3);
+        if (!stripColors)
+            sb.append(CTCPCommand.QUOTE_CHAR);
+        sb.append(command.name());
+        if (argument.length() > 0)
+            sb.append(' ').append(argument);
+        if (!stripColors)
+            sb.append(CTCPCommand.QUOTE_CHAR);
+        return sb.toString();
+    }
 
-            IRCUser user = p.getUser();
-            String trailing = p.getTrailing();
+    /**
+     * Fires {@link IRCEventListener#onMode(String, IRCUser, IRCModeParser)}
+     * for channel modes and {@link IRCEventListener#onMode(IRCUser, String, String)}
+     * for user modes.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onMode(IRCByteParser p) {
+        String chan = p.getParameter(1).toString();
+        if (IRCUtil.isChan(chan)) {
+            IRCUser user = getUser(p);
+            /* a parser of its own, as listeners may keep it */
+            IRCModeParser modeParser = new IRCModeParser(isupport).reset(p, 2);
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onJoin(trailing, user);
-
-        } else if ("NICK".equalsIgnoreCase(command)) { // NICK
-
-            IRCUser user = p.getUser();
-            String changingNick = p.getNick();
-            String newNick = p.getTrailing();
-            if (changingNick.equalsIgnoreCase(nick))
-                nick = newNick;
+                listeners[i].onMode(chan, user, modeParser);
+        } else {
+            IRCUser user = getUser(p);
+            String paramsFrom2 = getParametersFrom(p, 2);
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onNick(user, newNick);
+                listeners[i].onMode(user, chan, paramsFrom2);
+        }
+    }
 
-        } else if ("QUIT".equalsIgnoreCase(command)) { // QUIT
+    /**
+     * Answers the <code>PING</code> or fires
+     * {@link IRCEventListener#onPing(String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onPing(IRCByteParser p) {
+        String ping = p.getTrailing().toString(); // no int cause sometimes it's text
+        if (runtimeConfig.isAutoPong())
+            doPong(ping);
+        else
+            for (int i = listeners.length - 1; i >= 0; i--)
+                listeners[i].onPing(ping);
 
-            IRCUser user = p.getUser();
-            String trailing = p.getTrailing();
+        if (level == 1) { // not registered
+            level = 2; // first PING received -> connection
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onQuit(user, trailing);
+                listeners[i].onRegistered();
+        }
+    }
 
-        } else if ("PART".equalsIgnoreCase(command)) { // PART
+    /**
+     * Takes our prefix from the <code>001</code> reply, which usually ends
+     * with <code>nick!user@host</code>.
+     *
+     * @param trailing the welcome message
+     */
+    private void onWelcome(String trailing) {
+        String last = trailing.substring(trailing.lastIndexOf(' ') + 1);
+        int excl = last.indexOf('!');
+        int at = last.indexOf('@', excl + 1);
+        if (excl > 0 && at > excl + 1 && at < last.length() - 1) {
+            prefixUser = last.substring(excl + 1, at);
+            prefixHost = last.substring(at + 1);
+        }
+    }
 
-            IRCUser user = p.getUser();
-            String chan = p.getParameter(1);
-            String msg = p.getParameterCount() > 1 ? p.getTrailing() : "";
-            // not logic: "PART :#zentrum" is without msg,
-            // "PART #zentrum :cjo all"
-            // is with msg. so we cannot use getMiddle and getTrailing :-/
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onPart(chan, user, msg);
+    /**
+     * Fires {@link IRCEventListener#onJoin(String, IRCUser)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onJoin(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        if (nick.equalsIgnoreCase(user.getNick()) && user.getUsername() != null && user.getHost() != null) {
+            prefixUser = user.getUsername();
+            prefixHost = user.getHost();
+        }
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onJoin(trailing, user);
+    }
 
-        } else if ("NOTICE".equalsIgnoreCase(command)) { // NOTICE
+    /**
+     * Tracks our own nick and fires
+     * {@link IRCEventListener#onNick(IRCUser, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onNick(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String changingNick = user.getNick();
+        String newNick = p.getTrailing().toString();
+        if (changingNick != null && changingNick.equalsIgnoreCase(nick))
+            nick = newNick;
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onNick(user, newNick);
+    }
 
-            IRCUser user = p.getUser();
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onNotice(middle, user, trailing);
+    /**
+     * Fires {@link IRCEventListener#onQuit(IRCUser, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onQuit(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onQuit(user, trailing);
+    }
 
-        } else if ((reply = IRCUtil.parseInt(command)) >= 1 && reply < 400) { // RPL
+    /**
+     * Fires {@link IRCEventListener#onPart(String, IRCUser, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onPart(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String chan = p.getParameter(1).toString();
+        String msg = p.getParameterCount() > 1 ? p.getTrailing().toString() : "";
+        // not logic: "PART :#zentrum" is without msg,
+        // "PART #zentrum :cjo all"
+        // is with msg. so we cannot use getMiddle and getTrailing :-/
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onPart(chan, user, msg);
+    }
 
-            String potNick = p.getParameter(1);
-            if ((level == 1 || level == 2) && nick.length() > potNick.length()
-                    && nick.substring(0, potNick.length()).equalsIgnoreCase(potNick)) {
-                nick = potNick;
-                if (level == 2)
-                    level = 3;
+    /**
+     * Fires {@link IRCCtcpListener#onCtcpReply(String, IRCUser, CTCPCommand, CharSequence)}
+     * for CTCP replies with a known verb to the listeners which implement
+     * {@link IRCCtcpListener} and
+     * {@link IRCEventListener#onNotice(String, IRCUser, String)} otherwise.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onNotice(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String middle = p.getMiddle().toString();
+        CTCPCommand ctcp = getCtcpCommand(p);
+        IRCByteSlice argument = (ctcp != null) ? p.getCtcpArgument() : null;
+        String trailing = null;
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            IRCEventListener l = listeners[i];
+            if (ctcp != null && l instanceof IRCCtcpListener) {
+                ((IRCCtcpListener) l).onCtcpReply(middle, user, ctcp, argument);
+            } else {
+                if (trailing == null)
+                    trailing = getMessage(p);
+                l.onNotice(middle, user, trailing);
             }
+        }
+    }
 
-            if (level == 1 && nick.equals(potNick)) { // not registered
-                level = 2; // if first PING wasn't received, we're
-                for (int i = listeners.length - 1; i >= 0; i--)
-                    listeners[i].onRegistered(); // connected now for sure
-            }
+    /**
+     * Tracks the registration state and fires
+     * {@link IRCEventListener#onReply(int, String, String)} and
+     * {@link IRCEventListener#onReply(IRCReply, String, String)}.
+     *
+     * @param p the parser holding the current line
+     * @param code the numeric reply
+     * @param reply the numeric reply or {@code null} if it is not known
+     */
+    private void onReply(IRCByteParser p, int code, IRCReply reply) {
+        if (reply == IRCReply.RPL_ISUPPORT)
+            isupport.update(p);
+        else if (reply == IRCReply.RPL_WELCOME)
+            onWelcome(p.getTrailing().toString());
+        else if (reply == IRCReply.RPL_VISIBLEHOST)
+            prefixHost = p.getParameter(2).toString();
+
+        String potNick = p.getParameter(1).toString();
+        if ((level == 1 || level == 2) && nick.length() > potNick.length()
+                && nick.substring(0, potNick.length()).equalsIgnoreCase(potNick)) {
+            nick = potNick;
+            if (level == 2)
+                level = 3;
+        }
 
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
+        if (level == 1 && nick.equals(potNick)) { // not registered
+            level = 2; // if first PING wasn't received, we're
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onReply(reply, middle, trailing);
-
-        } else if (reply >= 400 && reply < 600) { // ERROR
+                listeners[i].onRegistered(); // connected now for sure
+        }
 
-            String trailing = p.getTrailing();
+        String middle = p.getMiddle().toString();
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onReply(code, middle, trailing);
+        if (reply != null)
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onError(reply, trailing);
-
-        } else if ("KICK".equalsIgnoreCase(command)) { // KICK
+                listeners[i].onReply(reply, middle, trailing);
+    }
 
-            IRCUser user = p.getUser();
-            String param1 = p.getParameter(1);
-            String param2 = p.getParameter(2);
-            String msg = (p.getParameterCount() > 2) ? p.getTrailing() : "";
+    /**
+     * Fires {@link IRCEventListener#onError(int, String)} and
+     * {@link IRCEventListener#onReply(IRCReply, String, String)}.
+     *
+     * @param p the parser holding the current line
+     * @param code the numeric error
+     * @param reply the numeric error or {@code null} if it is not known
+     */
+    private void onError(IRCByteParser p, int code, IRCReply reply) {
+        if (reply == IRCReply.ERR_TARGETTOOFAST)
+            throttled();
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onError(code, trailing);
+        if (reply != null) {
+            String middle = p.getMiddle().toString();
             for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onKick(param1, user, param2, msg);
-
-        } else if ("INVITE".equalsIgnoreCase(command)) { // INVITE
+                listeners[i].onReply(reply, middle, trailing);
+        }
+    }
 
-            IRCUser user = p.getUser();
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onInvite(trailing, user, middle);
+    /**
+     * Fires {@link IRCEventListener#onKick(String, IRCUser, String, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onKick(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String param1 = p.getParameter(1).toString();
+        String param2 = p.getParameter(2).toString();
+        String msg = (p.getParameterCount() > 2) ? p.getTrailing().toString() : "";
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onKick(param1, user, param2, msg);
+    }
 
-        } else if ("TOPIC".equalsIgnoreCase(command)) { // TOPIC
+    /**
+     * Fires {@link IRCEventListener#onInvite(String, IRCUser, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onInvite(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String middle = p.getMiddle().toString();
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onInvite(trailing, user, middle);
+    }
 
-            IRCUser user = p.getUser();
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onTopic(middle, user, trailing);
+    /**
+     * Fires {@link IRCEventListener#onTopic(String, IRCUser, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onTopic(IRCByteParser p) {
+        IRCUser user = getUser(p);
+        String middle = p.getMiddle().toString();
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onTopic(middle, user, trailing);
+    }
 
-        } else if ("ERROR".equalsIgnoreCase(command)) { // ERROR
+    /**
+     * Fires {@link IRCEventListener#onError(String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onError(IRCByteParser p) {
+        String trailing = p.getTrailing().toString();
+        if (trailing.toLowerCase(Locale.ENGLISH).contains("excess flood"))
+            throttled();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].onError(trailing);
+    }
 
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onError(trailing);
+    /**
+     * Tells the {@link IRCFloodControl} that the server throttles us.
+     */
+    private void throttled() {
+        if (outbound != null)
+            outbound.throttled(System.currentTimeMillis());
+    }
 
-        } else { // OTHER
+    /**
+     * Fires {@link IRCEventListener#unknown(String, String, String, String)}.
+     *
+     * @param p the parser holding the current line
+     */
+    private void onUnknown(IRCByteParser p) {
+        String prefix = p.getPrefix().toString();
+        String command = p.getCommand().toString();
+        String middle = p.getMiddle().toString();
+        String trailing = p.getTrailing().toString();
+        for (int i = listeners.length - 1; i >= 0; i--)
+            listeners[i].unknown(prefix, command, middle, trailing);
+    }
 
-            String prefix = p.getPrefix();
-            String middle = p.getMiddle();
-            String trailing = p.getTrailing();
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].unknown(prefix, command, middle, trailing);
+    /**
+     * @param p the parser holding the current line
+     * @return a new {@link IRCUser} out of the prefix of the current line
+     */
+    private static IRCUser getUser(IRCByteParser p) {
+        IRCByteSlice nick = p.getNick();
+        IRCByteSlice username = p.getUsername();
+        IRCByteSlice host = p.getHost();
+        return new DefaultIRCUser(nick != null ? nick.toString() : null,
+                username != null ? username.toString() : null, host != null ? host.toString() : null);
+    }
 
-        }
+    /**
+     * @param p the parser holding the current line
+     * @param from the index of the first parameter, starting with 1
+     * @return the parameters from {@code from} to the last one, separated by
+     *         spaces
+     */
+    private static String getParametersFrom(IRCByteParser p, int from) {
+        return p.getParameters(from, p.getParameterCount()).toString();
     }
 
     /**
      * @see org.schwering.irc.lib.IRCConnection#close()
      */
     @Override
-    public synchronized void close() {
-        try {
-            if (!this.thread.isInterrupted())
-                this.thread.interrupt();
-        } catch (Exception exc) {
-            handleException(exc);
-        }
-        try {
-            if (socket != null)
-                socket.close();
-        } catch (Exception exc) {
-            handleException(exc);
-        }
+    public void close() {
+        lock.lock();
         try {
-            if (out != null)
-                out.close();
-        } catch (Exception exc) {
-            handleException(exc);
+            try {
+                if (!this.thread.isInterrupted())
+                    this.thread.interrupt();
+            } catch (Exception exc) {
+                handleException(exc);
+            }
+            if (writer != null)
+                writer.interrupt();
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (Exception exc) {
+                handleException(exc);
+            }
+            try {
+                if (out != null)
+                    out.close();
+            } catch (Exception exc) {
+                handleException(exc);
+            }
+            try {
+                if (in != null)
+                    in.close();
+            } catch (Exception exc) {
+                handleException(exc);
+            }
+            socket = null;
+            in = null;
+            out = null;
+            disconnected();
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Marks this connection as disconnected, fires
+     * {@link IRCEventListener#onDisconnected()} once and removes all
+     * listeners.
+     */
+    void disconnected() {
+        lock.lock();
         try {
-            if (in != null)
-                in.close();
-        } catch (Exception exc) {
-            handleException(exc);
-        }
-        if (this.level != -1) {
-            this.level = -1;
-            for (int i = listeners.length - 1; i >= 0; i--)
-                listeners[i].onDisconnected();
+            if (this.level != -1) {
+                this.level = -1;
+                cancel(idleTimeout);
+                cancel(registrationTimeout);
+                for (int i = listeners.length - 1; i >= 0; i--)
+                    listeners[i].onDisconnected();
+            }
+            listeners = new IRCEventListener[0];
+        } finally {
+            lock.unlock();
         }
-        socket = null;
-        in = null;
-        out = null;
-        listeners = new IRCEventListener[0];
+    }
+
+    /**
+     * @param timeout a scheduled task or <code>null</code>
+     */
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null)
+            timeout.cancel();
     }
 
     /**
      * Handles the exception according to the current exception handling mode.
      */
-    private void handleException(Exception exc) {
+    void handleException(Exception exc) {
         if (exceptionHandler != null) {
             exceptionHandler.exception(this, exc);
         }
@@ -491,54 +1250,86 @@ public class DefaultIRCConnection implements IRCConnection {
      * @see org.schwering.irc.lib.IRCConnection#addIRCEventListener(org.schwering.irc.lib.IRCEventListener)
      */
     @Override
-    public synchronized void addIRCEventListener(IRCEventListener l) {
-        if (l == null)
-            throw new IllegalArgumentException("Listener is null.");
-        int len = listeners.length;
-        IRCEventListener[] oldListeners = listeners;
-        listeners = new IRCEventListener[len + 1];
-        System.arraycopy(oldListeners, 0, listeners, 0, len);
-        listeners[len] = l;
+    public void addIRCEventListener(IRCEventListener l) {
+        lock.lock();
+        try {
+            if (l == null)
+                throw new IllegalArgumentException("Listener is null.");
+            int len = listeners.length;
+            IRCEventListener[] oldListeners = listeners;
+            listeners = new IRCEventListener[len + 1];
+            System.arraycopy(oldListeners, 0, listeners, 0, len);
+            listeners[len] = l;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void addIRCEventListener(IRCEventListener l, int i) {
-        if (l == null)
-            throw new IllegalArgumentException("Listener is null.");
-        if (i < 0 || i > listeners.length)
-            throw new IndexOutOfBoundsException("i is not in range");
-        int len = listeners.length;
-        IRCEventListener[] oldListeners = listeners;
-        listeners = new IRCEventListener[len + 1];
-        if (i > 0)
-            System.arraycopy(oldListeners, 0, listeners, 0, i);
-        if (i < listeners.length)
-            System.arraycopy(oldListeners, i, listeners, i + 1, len - i);
-        listeners[i] = l;
+    public void addIRCEventListener(IRCEventListener l, int i) {
+        lock.lock();
+        try {
+            if (l == null)
+                throw new IllegalArgumentException("Listener is null.");
+            if (i < 0 || i > listeners.length)
+                throw new IndexOutOfBoundsException("i is not in range");
+            int len = listeners.length;
+            IRCEventListener[] oldListeners = listeners;
+            listeners = new IRCEventListener[len + 1];
+            if (i > 0)
+                System.arraycopy(oldListeners, 0, listeners, 0, i);
+            if (i < listeners.length)
+                System.arraycopy(oldListeners, i, listeners, i + 1, len - i);
+            listeners[i] = l;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * @see org.schwering.irc.lib.IRCConnection#removeIRCEventListener(org.schwering.irc.lib.IRCEventListener)
      */
     @Override
-    public synchronized boolean removeIRCEventListener(IRCEventListener l) {
-        if (l == null)
-            return false;
-        int index = -1;
-        for (int i = 0; i < listeners.length; i++)
-            if (listeners[i].equals(l)) {
-                index = i;
-                break;
-            }
-        if (index == -1)
-            return false;
-        listeners[index] = null;
-        int len = listeners.length - 1;
-        IRCEventListener[] newListeners = new IRCEventListener[len];
-        for (int i = 0, j = 0; i < len; j++)
-            if (listeners[j] != null)
-                newListeners[i++] = listeners[j];
-        listeners = newListeners;
-        return true;
+    public boolean removeIRCEventListener(IRCEventListener l) {
+        lock.lock();
+        try {
+            if (l == null)
+                return false;
+            int index = -1;
+            for (int i = 0; i < listeners.length; i++)
+                if (listeners[i].equals(l)) {
+                    index = i;
+                    break;
+                }
+            if (index == -1)
+                return false;
+            listeners[index] = null;
+            int len = listeners.length - 1;
+            IRCEventListener[] newListeners = new IRCEventListener[len];
+            for (int i = 0, j = 0; i < len; j++)
+                if (listeners[j] != null)
+                    newListeners[i++] = listeners[j];
+            listeners = newListeners;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} once the connection is closed, so that no more
+     *         lines are to be dispatched
+     */
+    boolean isClosed() {
+        return level == -1;
+    }
+
+    /**
+     * @return the charset of the
+     *         {@link IRCServerConfig#getFallbackEncoding()} or {@code null}
+     */
+    Charset getFallbackCharset() {
+        String fallback = serverConfig.getFallbackEncoding();
+        return (fallback != null) ? Charset.forName(fallback) : null;
     }
 
     /**
@@ -570,15 +1361,73 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public int getTimeout() {
-        if (socket != null)
-            try {
-                return socket.getSoTimeout();
-            } catch (IOException exc) {
-                handleException(exc);
-                return INVALID_TIMEOUT;
-            }
-        else
-            return INVALID_TIMEOUT;
+        return (socket != null) ? runtimeConfig.getTimeout() : INVALID_TIMEOUT;
+    }
+
+    /**
+     * Returns the features the server announced in its
+     * {@link IRCReply#RPL_ISUPPORT} replies, for example
+     * <code>CHANMODES</code>, <code>PREFIX</code> or <code>NETWORK</code>.
+     * The returned object is updated by the thread which dispatches the
+     * incoming lines.
+     *
+     * @return the server's features
+     */
+    public IRCISupport getISupport() {
+        return isupport;
+    }
+
+    /**
+     * @return the number of lines sent but not yet written to the server,
+     *         usually held back by the {@link IRCFloodControl}
+     */
+    public int getOutboundQueueSize() {
+        OutboundQueue q = outbound;
+        return (q != null) ? q.size() : 0;
+    }
+
+    /**
+     * @return the milliseconds the {@link IRCFloodControl} holds back the next
+     *         queued line, or <code>0</code> if nothing is held back
+     */
+    public long getOutboundDelay() {
+        OutboundQueue q = outbound;
+        return (q != null) ? Math.max(0, q.getDelay(System.currentTimeMillis())) : 0;
+    }
+
+    /**
+     * @return the milliseconds after which the {@link IRCFloodControl} lets
+     *         one more line pass, as currently adapted to the server, or
+     *         <code>0</code> if there is no flood control
+     */
+    public long getOutboundInterval() {
+        OutboundQueue q = outbound;
+        return (q != null) ? q.getInterval() : 0;
+    }
+
+    /**
+     * Returns how long the SSL handshake took, to tell a full handshake from
+     * a resumed session after a reconnect.
+     *
+     * @return the duration of the SSL handshake in nanoseconds, or
+     *         <code>-1</code> for plain connections and until the handshake is
+     *         finished
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * Returns the IRCv3 message tags of the line which is currently dispatched
+     * to the listeners, for example to read the {@code time} or {@code msgid}
+     * tag from within {@link IRCEventListener#onPrivmsg(String, IRCUser, String)}.
+     * The tags must not be accessed outside of a listener callback as they are
+     * overwritten by the next incoming line.
+     *
+     * @return the tags of the current line; empty if it has none
+     */
+    public IRCTags getMessageTags() {
+        return parser.getTags();
     }
 
     /**
@@ -599,7 +1448,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doAway() {
-        send("AWAY");
+        send(IRCCommand.AWAY, false);
     }
 
     /**
@@ -607,7 +1456,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doAway(String msg) {
-        send("AWAY :" + msg);
+        send(IRCCommand.AWAY, true, msg);
     }
 
     /**
@@ -616,7 +1465,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doInvite(String nick, String chan) {
-        send("INVITE " + nick + " " + chan);
+        send(IRCCommand.INVITE, false, nick, chan);
     }
 
     /**
@@ -624,7 +1473,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doIson(String nick) {
-        send("ISON " + nick);
+        send(IRCCommand.ISON, false, nick);
     }
 
     /**
@@ -632,7 +1481,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doJoin(String chan) {
-        send("JOIN " + chan);
+        send(IRCCommand.JOIN, false, chan);
     }
 
     /**
@@ -641,7 +1490,84 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doJoin(String chan, String key) {
-        send("JOIN " + chan + " " + key);
+        send(IRCCommand.JOIN, false, chan, key);
+    }
+
+    /**
+     * Joins many channels with as few <code>JOIN</code> lines as possible,
+     * for example after a reconnect. The channels are packed into
+     * comma-separated lists, the ones with a key first, so that each line
+     * stays within 512 bytes and the server's <code>TARGMAX</code> for
+     * <code>JOIN</code>. Channels beyond the server's <code>CHANLIMIT</code>
+     * (or <code>MAXCHANNELS</code>) are not sent, as the server would refuse
+     * them anyway; the channels one is on already and the channels of all
+     * prefixes which share a limit count against it. The lines are queued
+     * like any other line, so that an {@link IRCFloodControl} paces them.
+     *
+     * @param chans
+     *            The channels.
+     * @param keys
+     *            The keys by channel name, or <code>null</code>. Channels
+     *            without entry join without key.
+     * @param joined
+     *            The channels one is on already and which are not among
+     *            <code>chans</code>, or <code>null</code>.
+     * @return the channels which were not sent because of the limit, in the
+     *         order of <code>chans</code>
+     */
+    public List<String> doJoin(Collection<String> chans, Map<String, String> keys, Collection<String> joined) {
+        List<String> packed = new ArrayList<String>(chans.size());
+        List<String> packedKeys = new ArrayList<String>();
+        List<String> unkeyed = new ArrayList<String>();
+        List<String> skipped = new ArrayList<String>();
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        if (joined != null) {
+            for (String chan : joined)
+                countChannel(chan, counts);
+        }
+        for (String chan : chans) {
+            if (!countChannel(chan, counts)) {
+                skipped.add(chan);
+                continue;
+            }
+            String key = (keys != null) ? keys.get(chan) : null;
+            if (key != null && key.length() != 0) {
+                packed.add(chan);
+                packedKeys.add(key);
+            } else {
+                unkeyed.add(chan);
+            }
+        }
+        packed.addAll(unkeyed);
+        sendPacked(IRCCommand.JOIN, packed, packedKeys, null);
+        return skipped;
+    }
+
+    /**
+     * Counts a channel against the server's limit for its prefix.
+     *
+     * @param chan the channel
+     * @param counts the number of channels by the prefixes which share a
+     *            limit
+     * @return <code>false</code> if the channel is beyond the limit, in which
+     *         case it is not counted
+     */
+    private boolean countChannel(String chan, Map<String, int[]> counts) {
+        if (chan.length() == 0)
+            return true;
+        char prefix = chan.charAt(0);
+        String group = isupport.getChannelLimitPrefixes(prefix);
+        if (group == null)
+            return true;
+        int[] count = counts.get(group);
+        if (count == null) {
+            count = new int[1];
+            counts.put(group, count);
+        }
+        if (count[0] >= isupport.getChannelLimit(prefix))
+            return false;
+        count[0]++;
+        return true;
     }
 
     /**
@@ -650,7 +1576,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doKick(String chan, String nick) {
-        send("KICK " + chan + " " + nick);
+        send(IRCCommand.KICK, false, chan, nick);
     }
 
     /**
@@ -659,7 +1585,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doKick(String chan, String nick, String msg) {
-        send("KICK " + chan + " " + nick + " :" + msg);
+        send(IRCCommand.KICK, true, chan, nick, msg);
     }
 
     /**
@@ -667,7 +1593,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doList() {
-        send("LIST");
+        send(IRCCommand.LIST, false);
     }
 
     /**
@@ -675,7 +1601,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doList(String chan) {
-        send("LIST " + chan);
+        send(IRCCommand.LIST, false, chan);
     }
 
     /**
@@ -683,7 +1609,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doNames() {
-        send("NAMES");
+        send(IRCCommand.NAMES, false);
     }
 
     /**
@@ -691,7 +1617,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doNames(String chan) {
-        send("NAMES " + chan);
+        send(IRCCommand.NAMES, false, chan);
     }
 
     /**
@@ -700,7 +1626,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doPrivmsg(String target, String msg) {
-        send("PRIVMSG " + target + " :" + msg);
+        send(IRCCommand.PRIVMSG, true, target, msg);
     }
 
     /**
@@ -708,7 +1634,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doMode(String chan) {
-        send("MODE " + chan);
+        send(IRCCommand.MODE, false, chan);
     }
 
     /**
@@ -717,7 +1643,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doMode(String target, String mode) {
-        send("MODE " + target + " " + mode);
+        send(IRCCommand.MODE, false, target, mode);
     }
 
     /**
@@ -725,7 +1651,9 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doNick(String nick) {
-        send("NICK " + nick);
+        if (level == 1) // not registered
+            this.nick = nick.trim();
+        send(IRCCommand.NICK, false, nick);
     }
 
     /**
@@ -734,7 +1662,100 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doNotice(String target, String msg) {
-        send("NOTICE " + target + " :" + msg);
+        send(IRCCommand.NOTICE, true, target, msg);
+    }
+
+    /**
+     * Sends a message to a person or a channel, split into as many
+     * <code>PRIVMSG</code>s as needed so that the server does not truncate
+     * them. See {@link #doNoticeSplit(String, String)}.
+     *
+     * @param target
+     *            The nickname or channel the message should be sent to.
+     * @param msg
+     *            The message which should be transmitted.
+     * @return the number of lines sent
+     * @throws IllegalArgumentException if the target or the message contains
+     *             CR, LF or NUL
+     */
+    public int doPrivmsgSplit(String target, String msg) {
+        return sendSplit(IRCCommand.PRIVMSG, target, msg);
+    }
+
+    /**
+     * Notices a message to a person or a channel, split into as many
+     * <code>NOTICE</code>s as needed so that the server does not truncate
+     * them. The server relays a line to the recipients with our
+     * <code>nick!user@host</code> prefix, and the relayed line must not
+     * exceed 512 bytes; message tags have a budget of their own. So the room
+     * for the message is what is left after the prefix, the command and the
+     * target, measured in encoded bytes. Our username and host are taken
+     * from the welcome reply or from our own <code>JOIN</code>s; until then
+     * the maximum lengths announced in <code>USERLEN</code> and
+     * <code>HOSTLEN</code> are assumed.
+     * <p>
+     * The message is split at the last space which fits or, within a long
+     * word, between two characters, but never inside a color code. The parts
+     * are queued together like any other line, so that an
+     * {@link IRCFloodControl} paces them.
+     *
+     * @param target
+     *            The nickname or channel (group) the message should be sent to.
+     * @param msg
+     *            The message which should be transmitted.
+     * @return the number of lines sent
+     * @throws IllegalArgumentException if the target or the message contains
+     *             CR, LF or NUL
+     */
+    public int doNoticeSplit(String target, String msg) {
+        return sendSplit(IRCCommand.NOTICE, target, msg);
+    }
+
+    /**
+     * Splits the message and sends the parts. All parts are encoded before
+     * the first one is queued, so that an invalid message sends nothing.
+     *
+     * @param command {@link IRCCommand#PRIVMSG} or {@link IRCCommand#NOTICE}
+     * @param target the target
+     * @param msg the message
+     * @return the number of lines sent
+     */
+    private int sendSplit(IRCCommand command, String target, String msg) {
+        List<String> parts = IRCUtil.splitMessage(msg, getMessageRoom(command, target), encoder.getCharset());
+        OutboundLine[] lines = new OutboundLine[parts.size()];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = encoder.encode(command, true, target, parts.get(i));
+        for (OutboundLine line : lines)
+            send(line);
+        return lines.length;
+    }
+
+    /**
+     * @param command the command
+     * @param target the target
+     * @return the number of bytes left for the trailing parameter when the
+     *         server relays the line with our prefix
+     */
+    int getMessageRoom(IRCCommand command, String target) {
+        String user = prefixUser;
+        String host = prefixHost;
+        int userLength = (user != null) ? encoder.length(user) : getISupportInt("USERLEN", DEFAULT_USERLEN) + 1;
+        int hostLength = (host != null) ? encoder.length(host) : getISupportInt("HOSTLEN", DEFAULT_HOSTLEN);
+        /* ":nick!user@host COMMAND target :" and CR LF */
+        int used = 1 + encoder.length(nick) + 1 + userLength + 1 + hostLength + 1 + command.name().length() + 1
+                + encoder.length(target) + 2 + 2;
+        return Math.max(MIN_MESSAGE_ROOM, MAX_LINE_LENGTH - used);
+    }
+
+    /**
+     * @param name the name of a numeric ISUPPORT token
+     * @param defaultValue the value if the token is missing or invalid
+     * @return the value of the token
+     */
+    private int getISupportInt(String name, int defaultValue) {
+        String value = isupport.get(name);
+        int result = (value != null) ? IRCUtil.parseInt(value) : -1;
+        return (result > 0) ? result : defaultValue;
     }
 
     /**
@@ -742,7 +1763,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doPart(String chan) {
-        send("PART " + chan);
+        send(IRCCommand.PART, false, chan);
     }
 
     /**
@@ -751,7 +1772,99 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doPart(String chan, String msg) {
-        send("PART " + chan + " :" + msg);
+        send(IRCCommand.PART, true, chan, msg);
+    }
+
+    /**
+     * Parts many channels with as few <code>PART</code> lines as possible.
+     * See {@link #doJoin(Collection, Map)}.
+     *
+     * @param chans
+     *            The channels.
+     * @return the number of lines sent
+     */
+    public int doPart(Collection<String> chans) {
+        return doPart(chans, null);
+    }
+
+    /**
+     * Parts many channels with as few <code>PART</code> lines as possible.
+     * See {@link #doJoin(Collection, Map)}.
+     *
+     * @param chans
+     *            The channels.
+     * @param msg
+     *            The part message or <code>null</code>.
+     * @return the number of lines sent
+     */
+    public int doPart(Collection<String> chans, String msg) {
+        return sendPacked(IRCCommand.PART, new ArrayList<String>(chans), Collections.<String> emptyList(), msg);
+    }
+
+    /**
+     * Packs the channels into comma-separated lists, each as long as 512
+     * bytes and the <code>TARGMAX</code> of the command allow, and sends
+     * them. All lines are encoded before the first one is queued.
+     *
+     * @param command {@link IRCCommand#JOIN} or {@link IRCCommand#PART}
+     * @param chans the channels
+     * @param keys the keys of the first channels
+     * @param trailing the trailing parameter or {@code null}
+     * @return the number of lines sent
+     */
+    private int sendPacked(IRCCommand command, List<String> chans, List<String> keys, String trailing) {
+        int targetMax = isupport.getTargetMax(command.name());
+        /* "COMMAND" and CR LF, and " :trailing" */
+        int fixed = command.name().length() + 2 + ((trailing != null) ? 2 + encoder.length(trailing) : 0);
+        List<OutboundLine> lines = new ArrayList<OutboundLine>();
+        StringBuilder chanList = new StringBuilder();
+        StringBuilder keyList = new StringBuilder();
+        int length = fixed;
+        int count = 0;
+        for (int i = 0; i < chans.size(); i++) {
+            String chan = chans.get(i);
+            String key = (i < keys.size()) ? keys.get(i) : null;
+            /* each channel and key is preceded by a space or comma */
+            int add = 1 + encoder.length(chan) + ((key != null) ? 1 + encoder.length(key) : 0);
+            if (count > 0 && (length + add > MAX_LINE_LENGTH || count == targetMax)) {
+                lines.add(encodePacked(command, chanList, keyList, trailing));
+                chanList.setLength(0);
+                keyList.setLength(0);
+                length = fixed;
+                count = 0;
+            }
+            if (count > 0)
+                chanList.append(',');
+            chanList.append(chan);
+            if (key != null) {
+                if (keyList.length() > 0)
+                    keyList.append(',');
+                keyList.append(key);
+            }
+            length += add;
+            count++;
+        }
+        if (count > 0)
+            lines.add(encodePacked(command, chanList, keyList, trailing));
+        for (OutboundLine line : lines)
+            send(line);
+        return lines.size();
+    }
+
+    /**
+     * @param command the command
+     * @param chanList the comma-separated channels
+     * @param keyList the comma-separated keys, may be empty
+     * @param trailing the trailing parameter or {@code null}
+     * @return the encoded line
+     */
+    private OutboundLine encodePacked(IRCCommand command, StringBuilder chanList, StringBuilder keyList,
+            String trailing) {
+        if (keyList.length() > 0)
+            return encoder.encode(command, false, chanList.toString(), keyList.toString());
+        if (trailing != null)
+            return encoder.encode(command, true, chanList.toString(), trailing);
+        return encoder.encode(command, false, chanList.toString());
     }
 
     /**
@@ -759,7 +1872,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doPong(String ping) {
-        send("PONG :" + ping);
+        send(IRCCommand.PONG, true, ping);
     }
 
     /**
@@ -767,7 +1880,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doQuit() {
-        send("QUIT");
+        send(IRCCommand.QUIT, false);
     }
 
     /**
@@ -775,7 +1888,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doQuit(String msg) {
-        send("QUIT :" + msg);
+        send(IRCCommand.QUIT, true, msg);
     }
 
     /**
@@ -783,7 +1896,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doTopic(String chan) {
-        send("TOPIC " + chan);
+        send(IRCCommand.TOPIC, false, chan);
     }
 
     /**
@@ -792,7 +1905,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doTopic(String chan, String topic) {
-        send("TOPIC " + chan + " :" + topic);
+        send(IRCCommand.TOPIC, true, chan, topic);
     }
 
     /**
@@ -800,7 +1913,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doWho(String criteric) {
-        send("WHO " + criteric);
+        send(IRCCommand.WHO, false, criteric);
     }
 
     /**
@@ -808,7 +1921,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doWhois(String nick) {
-        send("WHOIS " + nick);
+        send(IRCCommand.WHOIS, false, nick);
     }
 
     /**
@@ -816,7 +1929,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doWhowas(String nick) {
-        send("WHOWAS " + nick);
+        send(IRCCommand.WHOWAS, false, nick);
     }
 
     /**
@@ -824,7 +1937,7 @@ public class DefaultIRCConnection implements IRCConnection {
      */
     @Override
     public void doUserhost(String nick) {
-        send("USERHOST " + nick);
+        send(IRCCommand.USERHOST, false, nick);
     }
 
     /**
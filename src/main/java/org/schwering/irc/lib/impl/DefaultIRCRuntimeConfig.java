@@ -14,9 +14,11 @@
 package org.schwering.irc.lib.impl;
 
 import java.net.Proxy;
+import java.util.concurrent.ThreadFactory;
 
 import org.schwering.irc.lib.IRCConfigBuilder;
 import org.schwering.irc.lib.IRCExceptionHandler;
+import org.schwering.irc.lib.IRCFloodControl;
 import org.schwering.irc.lib.IRCRuntimeConfig;
 import org.schwering.irc.lib.IRCSSLSupport;
 import org.schwering.irc.lib.IRCTrafficLogger;
@@ -52,10 +54,22 @@ public class DefaultIRCRuntimeConfig implements IRCRuntimeConfig {
      * @see org.schwering.irc.lib.IRCConfig#getTimeout()
      */
     private final int timeout;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getConnectTimeout()
+     */
+    private final int connectTimeout;
     /**
      * @see org.schwering.irc.lib.IRCConfig#getTrafficLogger()
      */
     private final IRCTrafficLogger trafficLogger;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getThreadFactory()
+     */
+    private final ThreadFactory threadFactory;
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getFloodControl()
+     */
+    private final IRCFloodControl floodControl;
 
     /**
      * Creates a new {@link DefaultIRCRuntimeConfig} out of the individual field
@@ -63,22 +77,90 @@ public class DefaultIRCRuntimeConfig implements IRCRuntimeConfig {
      * methods in {@link IRCRuntimeConfig}.
      *
      * @param timeout the timeout
+     * @param connectTimeout the connect timeout
      * @param autoPong {@code PONG} will be sent authomatically if {@code true}
      * @param stripColorsEnabled if {@code true} color codes will be stripped
      * @param sslSupport the {@link IRCSSLSupport}
      * @param proxy the {@link Proxy}
      * @param trafficLogger the {@code IRCTrafficLogger}
      * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     * @param floodControl the {@link IRCFloodControl} or {@code null}
      */
-    public DefaultIRCRuntimeConfig(int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
-            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler) {
+    public DefaultIRCRuntimeConfig(int timeout, int connectTimeout, boolean autoPong, boolean stripColorsEnabled,
+            IRCSSLSupport sslSupport, Proxy proxy, IRCTrafficLogger trafficLogger,
+            IRCExceptionHandler exceptionHandler, ThreadFactory threadFactory, IRCFloodControl floodControl) {
         this.timeout = timeout;
+        this.connectTimeout = connectTimeout;
         this.autoPong = autoPong;
         this.stripColorsEnabled = stripColorsEnabled;
         this.sslSupport = sslSupport;
         this.proxy = proxy;
         this.trafficLogger = trafficLogger;
         this.exceptionHandler = exceptionHandler;
+        this.threadFactory = threadFactory;
+        this.floodControl = floodControl;
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCRuntimeConfig} with the
+     * {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect timeout},
+     * no {@link ThreadFactory} and no {@link IRCFloodControl}.
+     *
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     */
+    public DefaultIRCRuntimeConfig(int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler) {
+        this(timeout, IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, null, null);
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCRuntimeConfig} with the
+     * {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect timeout}
+     * and no {@link IRCFloodControl}.
+     *
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     */
+    public DefaultIRCRuntimeConfig(int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler,
+            ThreadFactory threadFactory) {
+        this(timeout, IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, threadFactory, null);
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCRuntimeConfig} with the
+     * {@link IRCConfigBuilder#DEFAULT_CONNECT_TIMEOUT default connect timeout}.
+     *
+     * @param timeout the timeout
+     * @param autoPong {@code PONG} will be sent authomatically if {@code true}
+     * @param stripColorsEnabled if {@code true} color codes will be stripped
+     * @param sslSupport the {@link IRCSSLSupport}
+     * @param proxy the {@link Proxy}
+     * @param trafficLogger the {@code IRCTrafficLogger}
+     * @param exceptionHandler the {@link IRCExceptionHandler}
+     * @param threadFactory the {@link ThreadFactory} or {@code null}
+     * @param floodControl the {@link IRCFloodControl} or {@code null}
+     */
+    public DefaultIRCRuntimeConfig(int timeout, boolean autoPong, boolean stripColorsEnabled, IRCSSLSupport sslSupport,
+            Proxy proxy, IRCTrafficLogger trafficLogger, IRCExceptionHandler exceptionHandler,
+            ThreadFactory threadFactory, IRCFloodControl floodControl) {
+        this(timeout, IRCConfigBuilder.DEFAULT_CONNECT_TIMEOUT, autoPong, stripColorsEnabled, sslSupport, proxy,
+                trafficLogger, exceptionHandler, threadFactory, floodControl);
     }
 
     /**
@@ -89,9 +171,10 @@ public class DefaultIRCRuntimeConfig implements IRCRuntimeConfig {
      *            the {@link IRCRuntimeConfig} to read field values from
      */
     public DefaultIRCRuntimeConfig(IRCRuntimeConfig runtimeConfig) {
-        this(runtimeConfig.getTimeout(), runtimeConfig.isAutoPong(), runtimeConfig.isStripColorsEnabled(),
-                runtimeConfig.getSSLSupport(), runtimeConfig.getProxy(), runtimeConfig.getTrafficLogger(),
-                runtimeConfig.getExceptionHandler());
+        this(runtimeConfig.getTimeout(), runtimeConfig.getConnectTimeout(), runtimeConfig.isAutoPong(),
+                runtimeConfig.isStripColorsEnabled(), runtimeConfig.getSSLSupport(), runtimeConfig.getProxy(),
+                runtimeConfig.getTrafficLogger(), runtimeConfig.getExceptionHandler(), runtimeConfig.getThreadFactory(),
+                runtimeConfig.getFloodControl());
     }
 
     /**
@@ -125,6 +208,14 @@ public class DefaultIRCRuntimeConfig implements IRCRuntimeConfig {
         return timeout;
     }
 
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getConnectTimeout()
+     */
+    @Override
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
     /**
      * @see org.schwering.irc.lib.IRCConfig#getTrafficLogger()
      */
@@ -133,6 +224,22 @@ public class DefaultIRCRuntimeConfig implements IRCRuntimeConfig {
         return trafficLogger;
     }
 
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getFloodControl()
+     */
+    @Override
+    public IRCFloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCRuntimeConfig#getThreadFactory()
+     */
+    @Override
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
     /**
      * @see org.schwering.irc.lib.IRCConfig#isAutoPong()
      */
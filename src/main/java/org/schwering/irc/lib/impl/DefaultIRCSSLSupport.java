@@ -13,7 +13,6 @@
  */
 package org.schwering.irc.lib.impl;
 
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -28,6 +27,12 @@ import org.schwering.irc.lib.IRCSSLSupport;
 /**
  * An immutable {@link IRCSSLSupport} with {@link KeyManager}s,
  * {@link TrustManager}s and {@link SecureRandom} configurable at creation time.
+ * <p>
+ * Two instances are equal if they hold the same managers and the same
+ * {@link SecureRandom}, so that a copy, as made by
+ * {@link DefaultIRCConfig#DefaultIRCConfig(org.schwering.irc.lib.IRCConfig)},
+ * shares the {@link javax.net.ssl.SSLContext} and with it the TLS sessions
+ * of the original.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
@@ -35,39 +40,35 @@ public class DefaultIRCSSLSupport implements IRCSSLSupport {
 
     protected static final X509Certificate[] EMPTY_X509_CERTIFICATES = new X509Certificate[0];
 
-    /** An insecure {@link IRCSSLSupport} instance affirming all trust requests. */
-    public static IRCSSLSupport INSECURE;
     /**
      * An insecure {@link X509TrustManager} instance affirming all trust
      * requests.
      */
-    public static final X509TrustManager INSECURE_TRUST_MANAGER;
-
-    static {
-        INSECURE_TRUST_MANAGER = new X509TrustManager() {
-
-            @Override
-            public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-
-            }
-
-            @Override
-            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            }
-
-            @Override
-            public X509Certificate[] getAcceptedIssuers() {
-                return EMPTY_X509_CERTIFICATES;
-            }
-        };
-        try {
-            INSECURE = new DefaultIRCSSLSupport(new KeyManager[0], new TrustManager[] { INSECURE_TRUST_MANAGER },
-                    SecureRandom.getInstanceStrong());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    public static final X509TrustManager INSECURE_TRUST_MANAGER = new X509TrustManager() {
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+
         }
 
-    }
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return EMPTY_X509_CERTIFICATES;
+        }
+    };
+
+    /**
+     * An insecure {@link IRCSSLSupport} instance affirming all trust requests.
+     * It has no {@link SecureRandom} of its own, so that loading this class
+     * does not wait for entropy: the {@link javax.net.ssl.SSLContext} creates
+     * its default, non-blocking one when the first SSL connection is made.
+     */
+    public static IRCSSLSupport INSECURE = new DefaultIRCSSLSupport(new KeyManager[0],
+            new TrustManager[] { INSECURE_TRUST_MANAGER }, null);
 
     /**
      * @see org.schwering.irc.lib.IRCSSLSupport#getKeyManagers()
@@ -91,7 +92,8 @@ public class DefaultIRCSSLSupport implements IRCSSLSupport {
     /**
      * @param keyManagers the {@link KeyManager}s
      * @param trustManagers the {@link TrustManager}s
-     * @param secureRandom the {@link SecureRandom}
+     * @param secureRandom the {@link SecureRandom} or {@code null} for the
+     *            default of {@link javax.net.ssl.SSLContext}
      */
     public DefaultIRCSSLSupport(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom secureRandom) {
         super();
@@ -124,4 +126,29 @@ public class DefaultIRCSSLSupport implements IRCSSLSupport {
         return Arrays.copyOf(this.trustManagers, this.trustManagers.length);
     }
 
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DefaultIRCSSLSupport)) {
+            return false;
+        }
+        DefaultIRCSSLSupport other = (DefaultIRCSSLSupport) obj;
+        return secureRandom == other.secureRandom && Arrays.equals(keyManagers, other.keyManagers)
+                && Arrays.equals(trustManagers, other.trustManagers);
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(keyManagers) + Arrays.hashCode(trustManagers))
+                + System.identityHashCode(secureRandom);
+    }
+
 }
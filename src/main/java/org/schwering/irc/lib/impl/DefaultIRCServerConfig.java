@@ -33,6 +33,12 @@ public class DefaultIRCServerConfig implements IRCServerConfig {
      */
     private final String encoding;
 
+    /**
+     * The character encoding used to decode incoming lines which are not
+     * valid UTF-8, or <code>null</code>.
+     */
+    private final String fallbackEncoding;
+
     /**
      * The host of the IRC server.
      */
@@ -69,7 +75,8 @@ public class DefaultIRCServerConfig implements IRCServerConfig {
      */
     public DefaultIRCServerConfig(IRCServerConfig serverConfig) {
         this(serverConfig.getHost(), serverConfig.getPorts(), serverConfig.getPassword(), serverConfig.getNick(),
-                serverConfig.getUsername(), serverConfig.getRealname(), serverConfig.getEncoding());
+                serverConfig.getUsername(), serverConfig.getRealname(), serverConfig.getEncoding(),
+                serverConfig.getFallbackEncoding());
     }
 
     /**
@@ -84,9 +91,11 @@ public class DefaultIRCServerConfig implements IRCServerConfig {
      * @param username the username
      * @param realname the real name
      * @param encoding the encoding
+     * @param fallbackEncoding the encoding of lines which are not valid UTF-8 or
+     *            {@code null}
      */
     public DefaultIRCServerConfig(String host, int[] ports, String pass, String nick, String username, String realname,
-            String encoding) {
+            String encoding, String fallbackEncoding) {
         super();
         if (host == null || ports == null || ports.length == 0) {
             throw new IllegalArgumentException("Host and ports may not be null.");
@@ -98,6 +107,24 @@ public class DefaultIRCServerConfig implements IRCServerConfig {
         this.username = username;
         this.realname = realname;
         this.encoding = encoding;
+        this.fallbackEncoding = fallbackEncoding;
+    }
+
+    /**
+     * Creates a new {@link DefaultIRCServerConfig} without a fallback
+     * encoding.
+     *
+     * @param host the host name or IP address
+     * @param ports the ports to try on {@code host}
+     * @param pass the password
+     * @param nick the preferred nick name
+     * @param username the username
+     * @param realname the real name
+     * @param encoding the encoding
+     */
+    public DefaultIRCServerConfig(String host, int[] ports, String pass, String nick, String username, String realname,
+            String encoding) {
+        this(host, ports, pass, nick, username, realname, encoding, null);
     }
 
     /**
@@ -108,6 +135,14 @@ public class DefaultIRCServerConfig implements IRCServerConfig {
         return encoding;
     }
 
+    /**
+     * @see org.schwering.irc.lib.IRCServerConfig#getFallbackEncoding()
+     */
+    @Override
+    public String getFallbackEncoding() {
+        return fallbackEncoding;
+    }
+
     /**
      * @see org.schwering.irc.lib.IRCConfig#getHost()
      */
@@ -0,0 +1,185 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.schwering.irc.lib.util.IRCUtil;
+
+/**
+ * A queue of outgoing lines which keeps one queue per target (channel or
+ * nickname) and serves the targets by deficit round-robin. Each time a
+ * target's turn comes, its deficit grows by {@link #QUANTUM} bytes and it may
+ * send lines as long as their length fits into the deficit. So a target with
+ * a long paste sends about one line's worth of bytes per round while
+ * a target with a single short reply gets it out in the next round.
+ * <p>
+ * Any thread may {@link #add(OutboundLine)} lines; they are collected in a
+ * lock-free inbox. {@link #peek()} and {@link #poll()} must only be called by
+ * the single writer of the enclosing {@link OutboundQueue}, which alone
+ * touches the per-target queues.
+ */
+final class FairQueue {
+
+    /**
+     * The bytes added to a target's deficit per round: the maximum
+     * length of an IRC line.
+     */
+    static final int QUANTUM = 512;
+
+    /**
+     * The lines of a single target.
+     */
+    private static final class Target {
+
+        /** The lower case target. */
+        private final String key;
+
+        /** The lines in the order they were added. */
+        private final ArrayDeque<OutboundLine> lines = new ArrayDeque<OutboundLine>();
+
+        /** The bytes this target may still send in its turn. */
+        private int deficit;
+
+        /** {@code true} if the quantum of the current turn was added. */
+        private boolean visited;
+
+        /**
+         * @param key the lower case target
+         */
+        Target(String key) {
+            this.key = key;
+        }
+
+    }
+
+    /** The lines not yet sorted into {@link #targets}. */
+    private final Queue<OutboundLine> inbox = new ConcurrentLinkedQueue<OutboundLine>();
+
+    /** The targets with queued lines by their keys. */
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+
+    /** The targets with queued lines in round-robin order. */
+    private final ArrayDeque<Target> active = new ArrayDeque<Target>();
+
+    /**
+     * Queues a line.
+     *
+     * @param line the encoded line
+     */
+    void add(OutboundLine line) {
+        inbox.add(line);
+    }
+
+    /**
+     * Returns the line which is due next under deficit round-robin without
+     * removing it.
+     *
+     * @return the line or {@code null} if the queue is empty
+     */
+    OutboundLine peek() {
+        OutboundLine line;
+        while ((line = inbox.poll()) != null) {
+            String key = getTarget(line);
+            Target target = targets.get(key);
+            if (target == null) {
+                target = new Target(key);
+                targets.put(key, target);
+                active.addLast(target);
+            }
+            target.lines.addLast(line);
+        }
+        while (true) {
+            Target target = active.peekFirst();
+            if (target == null) {
+                return null;
+            }
+            if (!target.visited) {
+                target.deficit += QUANTUM;
+                target.visited = true;
+            }
+            OutboundLine head = target.lines.peekFirst();
+            if (head.bytes.length <= target.deficit) {
+                return head;
+            }
+            /* the turn is over */
+            target.visited = false;
+            active.addLast(active.pollFirst());
+        }
+    }
+
+    /**
+     * Removes the line returned by the preceding {@link #peek()}.
+     *
+     * @return the line or {@code null} if the queue is empty
+     */
+    OutboundLine poll() {
+        OutboundLine line = peek();
+        if (line == null) {
+            return null;
+        }
+        Target target = active.peekFirst();
+        target.lines.pollFirst();
+        target.deficit -= line.bytes.length;
+        if (target.lines.isEmpty()) {
+            active.pollFirst();
+            targets.remove(target.key);
+        }
+        return line;
+    }
+
+    /**
+     * @param line an outgoing {@code PRIVMSG} or {@code NOTICE} line
+     * @return the target of the line with ASCII letters in lower case, one
+     *         char per byte
+     */
+    private static String getTarget(OutboundLine line) {
+        byte[] bytes = line.bytes;
+        int len = bytes.length;
+        int start = 0;
+        /* skip the message tags, the prefix and the command */
+        while (start < len && (bytes[start] == '@' || bytes[start] == ':')) {
+            start = skipWord(bytes, start);
+        }
+        start = skipWord(bytes, start);
+        int end = start;
+        while (end < len && bytes[end] != ' ') {
+            end++;
+        }
+        char[] key = new char[end - start];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (char) IRCUtil.toLowerAscii(bytes[start + i] & 0xff);
+        }
+        return new String(key);
+    }
+
+    /**
+     * @param bytes the line
+     * @param start the index of a word's first byte
+     * @return the index of the next word's first byte or the length of the
+     *         line
+     */
+    private static int skipWord(byte[] bytes, int start) {
+        int i = start;
+        while (i < bytes.length && bytes[i] != ' ') {
+            i++;
+        }
+        return (i < bytes.length) ? i + 1 : i;
+    }
+
+}
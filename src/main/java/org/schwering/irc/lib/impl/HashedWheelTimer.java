@@ -0,0 +1,262 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for many short tasks with coarse deadlines, such as the idle checks,
+ * registration deadlines, rate limited flushes and reconnect backoffs of
+ * thousands of connections. The tasks are kept in a ring of buckets, one per
+ * tick; scheduling and cancelling cost O(1) regardless of the number of
+ * tasks, and a task runs at the end of the tick in which its deadline
+ * passes.
+ * <p>
+ * A single daemon thread advances the wheel and runs the due tasks, so tasks
+ * must neither block nor take long: a connection served by an
+ * {@link IRCEventLoop} hands its tasks over to its loop thread. Cancelled
+ * tasks are dropped when their bucket comes up.
+ */
+final class HashedWheelTimer implements Runnable {
+
+    /** The milliseconds per tick of the shared timer. */
+    static final long DEFAULT_TICK_MILLIS = 100;
+
+    /** The number of buckets of the shared timer, about 50 seconds per turn. */
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /** The timer shared by all connections, created lazily. */
+    private static HashedWheelTimer shared;
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+
+        /** Still waiting. */
+        private static final int PENDING = 0;
+
+        /** Cancelled before it ran. */
+        private static final int CANCELLED = 1;
+
+        /** Run or about to run. */
+        private static final int EXPIRED = 2;
+
+        /** The task. */
+        private final Runnable task;
+
+        /** The {@link System#nanoTime()} at which to run {@link #task}. */
+        private final long deadline;
+
+        /** {@link #PENDING}, {@link #CANCELLED} or {@link #EXPIRED}. */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /** The full turns of the wheel left; accessed only by the timer thread. */
+        private long rounds;
+
+        /** The neighbours in the bucket; accessed only by the timer thread. */
+        private Timeout prev;
+
+        /** @see #prev */
+        private Timeout next;
+
+        /**
+         * @param task the task
+         * @param deadline the {@link System#nanoTime()} at which to run it
+         */
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task unless it has run already.
+         *
+         * @return {@code true} if the task will not run
+         */
+        boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+    }
+
+    /** The nanoseconds per tick. */
+    private final long tick;
+
+    /** The heads of the buckets' lists; accessed only by the timer thread. */
+    private final Timeout[] wheel;
+
+    /** The mask for the index into {@link #wheel}. */
+    private final int mask;
+
+    /** The tasks scheduled since the last tick. */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    /** The {@link System#nanoTime()} at which the timer started. */
+    private final long start;
+
+    /** The number of ticks passed; accessed only by the timer thread. */
+    private long ticks;
+
+    /** The timer thread. */
+    private final Thread thread;
+
+    /**
+     * @param tickMillis the milliseconds per tick
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param name the name of the timer thread
+     */
+    HashedWheelTimer(long tickMillis, int wheelSize, String name) {
+        if (tickMillis <= 0 || wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException("Invalid tick " + tickMillis + " or wheel size " + wheelSize);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        this.tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.start = System.nanoTime();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return the timer shared by all connections
+     */
+    static synchronized HashedWheelTimer getShared() {
+        if (shared == null)
+            shared = new HashedWheelTimer(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, "irc-timer");
+        return shared;
+    }
+
+    /**
+     * Schedules a task. May be called from any thread.
+     *
+     * @param task the task, which must not block
+     * @param delay the delay in milliseconds
+     * @return the handle to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel tick by tick.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long now = awaitTick();
+            transfer();
+            expire(now);
+            ticks++;
+        }
+    }
+
+    /**
+     * Sleeps until the current tick ends.
+     *
+     * @return the current {@link System#nanoTime()}
+     */
+    private long awaitTick() {
+        long deadline = start + (ticks + 1) * tick;
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            LockSupport.parkNanos(this, deadline - now);
+        }
+        return now;
+    }
+
+    /**
+     * Moves the newly scheduled tasks into their buckets.
+     */
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() != Timeout.PENDING)
+                continue;
+            /* the tick at whose end the deadline has passed */
+            long due = (timeout.deadline - start + tick - 1) / tick - 1;
+            if (due <= ticks)
+                due = ticks;
+            timeout.rounds = (due - ticks) / wheel.length;
+            int index = (int) (due & mask);
+            timeout.prev = null;
+            timeout.next = wheel[index];
+            if (wheel[index] != null)
+                wheel[index].prev = timeout;
+            wheel[index] = timeout;
+        }
+    }
+
+    /**
+     * Runs the due tasks of the current bucket and drops the cancelled ones.
+     *
+     * @param now the current {@link System#nanoTime()}
+     */
+    private void expire(long now) {
+        int index = (int) (ticks & mask);
+        Timeout timeout = wheel[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                remove(index, timeout);
+            } else if (timeout.rounds <= 0 && timeout.deadline - now <= 0) {
+                remove(index, timeout);
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+                    run(timeout.task);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @param timeout a task in that bucket
+     */
+    private void remove(int index, Timeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            wheel[index] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Runs a task; an exception goes to the thread's uncaught exception
+     * handler without stopping the timer.
+     *
+     * @param task the task
+     */
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+}
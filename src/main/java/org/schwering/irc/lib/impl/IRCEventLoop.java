@@ -0,0 +1,337 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of threads each of which serves any number of
+ * {@link NioIRCConnection}s through its own {@link Selector}. Connections are
+ * assigned to the threads round-robin when they connect. All I/O of a
+ * connection and all events of its listeners happen on the thread it is
+ * assigned to, so a listener which blocks delays all other connections of
+ * that thread.
+ * <p>
+ * A single event loop is meant to be shared by all connections of an
+ * application. The threads are daemon threads; call {@link #shutdown()} to
+ * stop them.
+ * <p>
+ * Timed tasks such as idle checks and rate limited writes are kept on the
+ * shared {@link HashedWheelTimer}, which hands them over to the worker
+ * thread when due; a worker thus only wakes up for I/O and such tasks.
+ *
+ * @see NioIRCConnection
+ */
+public class IRCEventLoop {
+
+    /**
+     * A task of a connection.
+     */
+    private static final class Task {
+
+        /** The connection which fails if {@link #task} throws. */
+        private final NioIRCConnection connection;
+
+        /** The task. */
+        private final Runnable task;
+
+        /**
+         * @param connection the connection the task belongs to
+         * @param task the task
+         */
+        Task(NioIRCConnection connection, Runnable task) {
+            this.connection = connection;
+            this.task = task;
+        }
+
+    }
+
+    /**
+     * One thread with its {@link Selector}.
+     */
+    static final class Worker implements Runnable {
+
+        /** The selector of this worker. */
+        private final Selector selector;
+
+        /** Tasks to run on this worker's thread. */
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+
+        /** The thread running this worker. */
+        private final Thread thread;
+
+        /** Cleared by {@link IRCEventLoop#shutdown()} or a failing selector. */
+        private volatile boolean running = true;
+
+        /**
+         * @param name the name of the thread
+         * @throws IOException rethrown from {@link Selector#open()}
+         */
+        Worker(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @return the selector of this worker
+         */
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs a task on this worker's thread. If the task throws an
+         * exception, the connection fails.
+         *
+         * @param connection the connection the task belongs to
+         * @param task the task
+         */
+        void execute(NioIRCConnection connection, Runnable task) {
+            tasks.add(new Task(connection, task));
+            if (running) {
+                selector.wakeup();
+            } else {
+                /* the thread may have drained the tasks already */
+                failTasks(new SocketException("Event loop is shut down"));
+            }
+        }
+
+        /**
+         * Selects and dispatches ready channels until the loop is shut down.
+         * If the selector fails, this worker stops and its connections fail
+         * with that exception, while the other workers keep running.
+         */
+        @Override
+        public void run() {
+            IOException failure = null;
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException exc) {
+                    /* a broken selector would fail again right away */
+                    failure = exc;
+                    break;
+                }
+                try {
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                } catch (RuntimeException exc) {
+                    /* the other connections of this worker must keep running */
+                    report(exc);
+                }
+            }
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                NioIRCConnection connection = (NioIRCConnection) key.attachment();
+                if (!connection.isClosed()) {
+                    fail(connection, failure);
+                }
+            }
+            failTasks((failure != null) ? failure : new SocketException("Event loop is shut down"));
+            close();
+        }
+
+        /**
+         * Fails the connections of the queued tasks instead of running them.
+         * Called once this worker stopped.
+         *
+         * @param reason the reason
+         */
+        private void failTasks(IOException reason) {
+            Task task;
+            while ((task = tasks.poll()) != null) {
+                if (!task.connection.isClosed()) {
+                    fail(task.connection, reason);
+                }
+            }
+        }
+
+        /**
+         * Closes the selector.
+         */
+        private void close() {
+            try {
+                selector.close();
+            } catch (IOException exc) {
+                // nothing
+            }
+        }
+
+        /**
+         * Runs the queued tasks.
+         */
+        private void runTasks() {
+            Task task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.task.run();
+                } catch (RuntimeException exc) {
+                    fail(task.connection, exc);
+                }
+            }
+        }
+
+        /**
+         * Hands a ready channel over to its connection.
+         *
+         * @param key the key of the channel
+         */
+        private void handle(SelectionKey key) {
+            NioIRCConnection connection = (NioIRCConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    connection.connectable(key);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.readable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.writable();
+                }
+            } catch (CancelledKeyException exc) {
+                fail(connection, null);
+            } catch (IOException exc) {
+                /* expected if close() closed the channel on another thread */
+                if (!connection.isClosed()) {
+                    fail(connection, exc);
+                }
+            } catch (RuntimeException exc) {
+                fail(connection, exc);
+            }
+        }
+
+        /**
+         * Reports the exception and closes the connection. An exception of a
+         * connection which is closed already, for example thrown by a
+         * listener's {@code onDisconnected}, and an exception thrown while
+         * closing are reported to this thread's uncaught exception handler.
+         *
+         * @param connection the connection
+         * @param exc the reason or {@code null} to just close the connection
+         */
+        private void fail(NioIRCConnection connection, Exception exc) {
+            try {
+                if (exc == null) {
+                    connection.close();
+                } else if (connection.isClosed()) {
+                    report(exc);
+                } else {
+                    connection.failed(exc);
+                }
+            } catch (RuntimeException e) {
+                report(e);
+            }
+        }
+
+        /**
+         * Reports an exception without stopping this thread.
+         *
+         * @param exc the exception
+         */
+        private void report(Exception exc) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, exc);
+        }
+
+    }
+
+    /** The workers. */
+    private final Worker[] workers;
+
+    /** The index of the worker which gets the next connection. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates an event loop with one thread per available processor.
+     *
+     * @throws IOException rethrown from {@link Selector#open()}
+     */
+    public IRCEventLoop() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an event loop with the given number of threads.
+     *
+     * @param threads the number of threads
+     * @throws IOException rethrown from {@link Selector#open()}
+     */
+    public IRCEventLoop(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.workers = new Worker[threads];
+        int id = System.identityHashCode(this);
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker("irc-loop-" + Integer.toHexString(id) + "-" + i);
+            }
+        } catch (IOException exc) {
+            for (Worker worker : workers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+            throw exc;
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * @return the worker which serves the next connection
+     * @throws SocketException if all workers stopped
+     */
+    Worker next() throws SocketException {
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+            if (worker.running) {
+                return worker;
+            }
+        }
+        throw new SocketException("Event loop is shut down");
+    }
+
+    /**
+     * @return the number of threads
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * Closes all connections served by this loop and stops its threads.
+     */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.running = false;
+            worker.selector.wakeup();
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.schwering.irc.lib.IRCTrafficLogger;
+import org.schwering.irc.lib.util.IRCByteSlice;
+
+/**
+ * Splits the raw bytes received from the server into lines and hands them
+ * over to a {@link DefaultIRCConnection}. The bytes are collected in a single
+ * reusable buffer which is scanned for LF; a preceding CR is dropped.
+ * <p>
+ * If the connection's encoding is UTF-8, each line is validated, which for
+ * ASCII bytes costs a sign check per byte, and a valid line is parsed
+ * straight from the buffer without being decoded. A line which is not valid
+ * UTF-8 is decoded with the fallback encoding, if there is one, so that
+ * lines of clients still using a legacy encoding stay readable. With any
+ * other encoding every line is decoded with it.
+ * <p>
+ * The buffer grows as needed, but a line longer than
+ * {@link #MAX_LINE_LENGTH} bytes is dropped, so that a server cannot make it
+ * grow without limit.
+ */
+final class LineFramer {
+
+    /**
+     * The longest line kept: IRCv3 allows 8191 bytes of message tags in
+     * addition to the 512 bytes of the line itself.
+     */
+    static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    /** The default number of bytes to be free for each read. */
+    static final int DEFAULT_RESERVE = 4 * 1024;
+
+    /** The encoding of the lines. */
+    private final Charset charset;
+
+    /** {@code true} if {@link #charset} is UTF-8. */
+    private final boolean utf8;
+
+    /** The encoding of lines which are not valid UTF-8, or {@code null}. */
+    private final Charset fallback;
+
+    /** A traffic logger, usually for debugging purposes. Can be {@code null}. */
+    private final IRCTrafficLogger trafficLogger;
+
+    /** The number of bytes {@link #getBuffer()} leaves free at least. */
+    private final int reserve;
+
+    /** The received bytes, in fill mode. */
+    private ByteBuffer buffer;
+
+    /** {@code true} while the rest of an overlong line is skipped. */
+    private boolean discarding;
+
+    /**
+     * @param charset the encoding of the lines
+     * @param fallback the encoding of lines which are not valid UTF-8, or
+     *            {@code null}; only used if {@code charset} is UTF-8
+     * @param trafficLogger the traffic logger or {@code null}
+     * @param reserve the number of bytes to be free for each read
+     */
+    LineFramer(Charset charset, Charset fallback, IRCTrafficLogger trafficLogger, int reserve) {
+        this.charset = charset;
+        this.utf8 = IRCByteSlice.UTF_8.equals(charset);
+        this.fallback = utf8 ? fallback : null;
+        this.trafficLogger = trafficLogger;
+        this.reserve = reserve;
+        this.buffer = ByteBuffer.allocate(2 * reserve);
+    }
+
+    /**
+     * Returns the buffer to read into, with at least as many bytes free as
+     * given to the constructor. Grows the buffer if an incomplete line
+     * occupies it, or drops that line if it is too long already.
+     *
+     * @return the buffer in fill mode
+     */
+    ByteBuffer getBuffer() {
+        if (buffer.remaining() < reserve) {
+            int length = buffer.position();
+            if (length > MAX_LINE_LENGTH) {
+                discarding = true;
+                buffer.clear();
+            } else {
+                int capacity = Math.min(MAX_LINE_LENGTH + reserve, Math.max(2 * buffer.capacity(), length + reserve));
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads from the given stream once and hands the complete lines over to
+     * the given connection.
+     *
+     * @param in the stream from the server
+     * @param connection the connection to dispatch the lines to
+     * @return {@code false} if the end of the stream is reached
+     * @throws IOException if reading fails
+     */
+    boolean read(InputStream in, DefaultIRCConnection connection) throws IOException {
+        ByteBuffer b = getBuffer();
+        int n = in.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        if (n < 0) {
+            return false;
+        }
+        b.position(b.position() + n);
+        frame(connection);
+        return true;
+    }
+
+    /**
+     * Hands all complete lines in the buffer over to the given connection and
+     * moves an incomplete rest to the start of the buffer.
+     *
+     * @param connection the connection to dispatch the lines to
+     */
+    void frame(DefaultIRCConnection connection) {
+        byte[] bytes = buffer.array();
+        int end = buffer.position();
+        int start = 0;
+        for (int i = 0; i < end && !connection.isClosed(); i++) {
+            if (bytes[i] == '\n') {
+                if (discarding) {
+                    discarding = false;
+                } else {
+                    line(connection, start, i);
+                }
+                start = i + 1;
+            }
+        }
+        if (start == end) {
+            buffer.clear();
+        } else if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, end - start);
+            buffer.position(end - start);
+        }
+    }
+
+    /**
+     * Dispatches a single line.
+     *
+     * @param connection the connection to dispatch the line to
+     * @param start the index of the line's first byte
+     * @param end the index of the terminating LF
+     */
+    private void line(DefaultIRCConnection connection, int start, int end) {
+        byte[] bytes = buffer.array();
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (utf8 && (fallback == null || isValidUtf8(bytes, start, end))) {
+            if (trafficLogger != null) {
+                trafficLogger.in(new String(bytes, start, end - start, charset));
+            }
+            int position = buffer.position();
+            buffer.limit(end);
+            buffer.position(start);
+            try {
+                connection.get(buffer);
+            } finally {
+                buffer.limit(buffer.capacity());
+                buffer.position(position);
+            }
+        } else {
+            String line = new String(bytes, start, end - start, utf8 ? fallback : charset);
+            if (trafficLogger != null) {
+                trafficLogger.in(line);
+            }
+            connection.get(line);
+        }
+    }
+
+    /**
+     * Checks whether the given bytes are well-formed UTF-8: no overlong
+     * forms, surrogates or code points beyond U+10FFFF.
+     *
+     * @param bytes the bytes
+     * @param start the index of the first byte
+     * @param end the index behind the last byte
+     * @return {@code true} if the bytes are valid UTF-8
+     */
+    static boolean isValidUtf8(byte[] bytes, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int b = bytes[i];
+            if (b >= 0) {
+                /* ASCII fast path */
+                i++;
+                continue;
+            }
+            b &= 0xff;
+            int n;
+            int min;
+            if (b >= 0xc2 && b <= 0xdf) {
+                n = 1;
+                min = 0x80;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                n = 2;
+                min = 0x800;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                n = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + n >= end) {
+                return false;
+            }
+            int cp = b & (0x3f >> n);
+            for (int j = 1; j <= n; j++) {
+                int c = bytes[i + j] & 0xff;
+                if ((c & 0xc0) != 0x80) {
+                    return false;
+                }
+                cp = (cp << 6) | (c & 0x3f);
+            }
+            if (cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff)) {
+                return false;
+            }
+            i += n + 1;
+        }
+        return true;
+    }
+
+}
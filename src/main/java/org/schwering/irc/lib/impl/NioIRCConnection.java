@@ -0,0 +1,563 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.schwering.irc.lib.IRCEventListener;
+import org.schwering.irc.lib.IRCRuntimeConfig;
+import org.schwering.irc.lib.IRCServerConfig;
+import org.schwering.irc.lib.IRCTrafficLogger;
+
+/**
+ * An {@link org.schwering.irc.lib.IRCConnection} which does not own a thread.
+ * Its non-blocking {@link SocketChannel} is served by one of the threads of an
+ * {@link IRCEventLoop}, so that thousands of connections can share a handful
+ * of threads. Typically created via
+ * {@link org.schwering.irc.lib.IRCConnectionFactory#newConnection(org.schwering.irc.lib.IRCConfig, IRCEventLoop)}.
+ * <p>
+ * The events are the same as those of {@link DefaultIRCConnection}, but the
+ * {@link IRCEventListener}s are called on the loop thread. Listeners must
+ * therefore not block; {@link #send(String)} never blocks and may be called
+ * from any thread. UTF-8 lines are parsed straight from the receive buffer
+ * without being decoded first.
+ * <p>
+ * SSL is supported through an {@link SSLEngine}; proxies are not.
+ * {@link #connect()} still returns only once the TCP connection is
+ * established, but it neither starts threads nor blocks in a connect: the
+ * attempts are made by the loop thread through a {@link ChannelRace}, while
+ * the calling thread only resolves the host and waits.
+ */
+public class NioIRCConnection extends DefaultIRCConnection {
+
+    /** Nothing to encrypt, used to drive the SSL handshake. */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** The event loop serving this connection. */
+    private final IRCEventLoop loop;
+
+    /** The IRC server to connect. */
+    private final IRCServerConfig serverConfig;
+
+    /** A couple of runtime settings like timeout, proxy, etc. */
+    private final IRCRuntimeConfig runtimeConfig;
+
+    /** A traffic logger, usually for debugging purposes. Can be {@code null}. */
+    private final IRCTrafficLogger trafficLogger;
+
+    /** The encoding of the lines. */
+    private final Charset charset;
+
+    /** Set while a {@link #flushTask} is pending on the loop thread. */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /** Writes {@link #outbound} on the loop thread. */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException exc) {
+                failed(exc);
+            }
+        }
+    };
+
+    /** Writes {@link #outbound} once the rate limit allows it. */
+    private final Runnable flushTimer = new Runnable() {
+        @Override
+        public void run() {
+            flushDeadline = 0;
+            try {
+                flush();
+            } catch (IOException exc) {
+                failed(exc);
+            }
+        }
+    };
+
+    /** The time at which {@link #flushTimer} runs, or {@code 0}. */
+    private long flushDeadline;
+
+    /** The worker thread serving this connection. */
+    private IRCEventLoop.Worker worker;
+
+    /** The channel; {@code null} until connected. */
+    private volatile SocketChannel channel;
+
+    /** The race of {@link #connect()} while it runs, otherwise {@code null}. */
+    private volatile ChannelRace race;
+
+    /** The key of {@link #channel} in the worker's selector. */
+    private SelectionKey key;
+
+    /** The SSL engine or {@code null} for plain connections. */
+    private SSLEngine engine;
+
+    /** {@code true} until the initial SSL handshake is finished. */
+    private boolean handshaking;
+
+    /** The {@link System#nanoTime()} the initial SSL handshake began. */
+    private long handshakeStart;
+
+    /** Splits the received plain bytes into lines. */
+    private LineFramer framer;
+
+    /** The received encrypted bytes, in fill mode. */
+    private ByteBuffer netIn;
+
+    /** The encrypted bytes not yet written, in fill mode. */
+    private ByteBuffer netOut;
+
+    /** The encoded lines currently being written. */
+    private ByteBuffer outPending;
+
+    /** Set once the connection is closed. */
+    private volatile boolean closed;
+
+    /** The port actually used in this connection. */
+    private int remotePort;
+
+    /**
+     * Creates a new {@link NioIRCConnection}. Do not forget to call
+     * {@link #connect()} after you have prepared the connection.
+     *
+     * @param serverConfig the {@link IRCServerConfig}
+     * @param runtimeConfig the {@link IRCRuntimeConfig}
+     * @param loop the {@link IRCEventLoop} which will serve the connection
+     */
+    public NioIRCConnection(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig, IRCEventLoop loop) {
+        super(serverConfig, runtimeConfig);
+        if (loop == null) {
+            throw new IllegalArgumentException("Event loop may not be null.");
+        }
+        this.loop = loop;
+        this.serverConfig = serverConfig;
+        this.runtimeConfig = runtimeConfig;
+        this.trafficLogger = runtimeConfig.getTrafficLogger();
+        this.charset = Charset.forName(serverConfig.getEncoding());
+        this.outbound = new OutboundQueue(true, runtimeConfig.getFloodControl(), serverConfig.getHost());
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#connect()
+     */
+    @Override
+    public void connect() throws IOException, KeyManagementException, NoSuchAlgorithmException {
+        if (!isNew() || channel != null) {
+            throw new SocketException("Socket closed or already open");
+        }
+        SocketFactory socketFactory = new SocketFactory(runtimeConfig.getTimeout(),
+                runtimeConfig.getConnectTimeout(), runtimeConfig.getProxy(), runtimeConfig.getSSLSupport());
+        if (socketFactory.isProxied()) {
+            throw new SocketException("Proxies are not supported by " + getClass().getSimpleName());
+        }
+
+        worker = loop.next();
+        final String host = serverConfig.getHost();
+        ChannelRace r = new ChannelRace(this, worker, host, serverConfig.getPorts(),
+                runtimeConfig.getConnectTimeout());
+        race = r;
+        SocketChannel ch;
+        try {
+            ch = r.run();
+        } finally {
+            race = null;
+        }
+        if (closed) {
+            ch.close();
+            throw new SocketException("Socket closed");
+        }
+        this.remotePort = r.getAddress().getPort();
+
+        engine = socketFactory.createSSLEngine(host, remotePort);
+        if (engine != null) {
+            int packetSize = engine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packetSize);
+            netOut = ByteBuffer.allocate(packetSize);
+            framer = new LineFramer(charset, getFallbackCharset(), trafficLogger, engine.getSession()
+                    .getApplicationBufferSize());
+            handshaking = true;
+        } else {
+            framer = new LineFramer(charset, getFallbackCharset(), trafficLogger, LineFramer.DEFAULT_RESERVE);
+        }
+        channel = ch;
+        setConnected();
+        startTimers();
+        worker.execute(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key = channel.register(worker.getSelector(), SelectionKey.OP_READ, NioIRCConnection.this);
+                    if (engine != null) {
+                        handshakeStart = System.nanoTime();
+                        engine.beginHandshake();
+                        handshake(engine.getHandshakeStatus());
+                    }
+                    flush();
+                } catch (IOException exc) {
+                    failed(exc);
+                }
+            }
+        });
+        register();
+    }
+
+    /**
+     * Queues the line for the loop thread, which writes it as soon as the
+     * channel accepts more data.
+     *
+     * @see org.schwering.irc.lib.impl.DefaultIRCConnection#send(OutboundLine)
+     */
+    @Override
+    void send(OutboundLine line) {
+        if (channel == null || closed) {
+            SocketException exc = new SocketException("Socket closed");
+            handleException(exc);
+            throw new RuntimeException(exc);
+        }
+        logOut(line);
+        outbound.add(line);
+        /* lines sent from listeners are coalesced until the batch read is done */
+        if (flushScheduled.compareAndSet(false, true)) {
+            worker.execute(this, flushTask);
+        }
+    }
+
+    /**
+     * Called by the loop thread when the channel of an attempt of
+     * {@link #connect()} is ready to finish connecting.
+     *
+     * @param attempt the key of the attempt
+     */
+    void connectable(SelectionKey attempt) {
+        ChannelRace r = race;
+        if (r != null) {
+            r.connectable(attempt);
+        }
+    }
+
+    /**
+     * Called by the loop thread when the channel has bytes to read.
+     *
+     * @throws IOException if reading fails
+     */
+    void readable() throws IOException {
+        if (engine == null) {
+            if (channel.read(framer.getBuffer()) < 0) {
+                close();
+                return;
+            }
+            lastRead = System.currentTimeMillis();
+            framer.frame(this);
+        } else {
+            if (channel.read(netIn) < 0) {
+                close();
+                return;
+            }
+            lastRead = System.currentTimeMillis();
+            unwrap();
+        }
+    }
+
+    /**
+     * Called by the loop thread when the channel accepts more bytes.
+     *
+     * @throws IOException if writing fails
+     */
+    void writable() throws IOException {
+        if (handshaking) {
+            if (writeNetOut()) {
+                interestInWrite(false);
+                handshake(engine.getHandshakeStatus());
+            }
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Schedules the task on the shared timer, which hands it over to the loop
+     * thread when due.
+     *
+     * @see org.schwering.irc.lib.impl.DefaultIRCConnection#schedule(Runnable, long)
+     */
+    @Override
+    HashedWheelTimer.Timeout schedule(final Runnable task, long delay) {
+        return super.schedule(new Runnable() {
+            @Override
+            public void run() {
+                worker.execute(NioIRCConnection.this, task);
+            }
+        }, delay);
+    }
+
+    /**
+     * Runs the task right away: the timer's tasks run on the loop thread,
+     * where sending only queues and closing does not block.
+     *
+     * @see org.schwering.irc.lib.impl.DefaultIRCConnection#execute(Runnable)
+     */
+    @Override
+    void execute(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Reports the exception and closes the connection.
+     *
+     * @param exc the reason
+     */
+    void failed(Exception exc) {
+        if (!closed) {
+            handleException(exc);
+        }
+        close();
+    }
+
+    /**
+     * Writes as much of the queued lines as the channel accepts, encoding as
+     * many of them as fit into one buffer per write. Registers interest in
+     * writability if some are left.
+     *
+     * @throws IOException if writing fails
+     */
+    private void flush() throws IOException {
+        if (closed || key == null) {
+            return;
+        }
+        if (engine != null) {
+            if (!writeNetOut()) {
+                interestInWrite(true);
+                return;
+            }
+            if (handshaking) {
+                return;
+            }
+        }
+        while (true) {
+            if (outPending == null || !outPending.hasRemaining()) {
+                outPending = outbound.fill(System.currentTimeMillis());
+                if (!outPending.hasRemaining()) {
+                    break;
+                }
+            }
+            if (engine == null) {
+                channel.write(outPending);
+                if (outPending.hasRemaining()) {
+                    interestInWrite(true);
+                    return;
+                }
+            } else {
+                SSLEngineResult result = engine.wrap(outPending, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close();
+                    return;
+                }
+                if (!writeNetOut()) {
+                    interestInWrite(true);
+                    return;
+                }
+            }
+        }
+        interestInWrite(false);
+        long now = System.currentTimeMillis();
+        long delay = outbound.getDelay(now);
+        if (delay > 0 && (flushDeadline == 0 || now + delay < flushDeadline)) {
+            /* held back by the rate limit */
+            flushDeadline = now + delay;
+            schedule(flushTimer, delay);
+        }
+    }
+
+    /**
+     * Writes the encrypted bytes.
+     *
+     * @return {@code true} if all of them were written
+     * @throws IOException if writing fails
+     */
+    private boolean writeNetOut() throws IOException {
+        netOut.flip();
+        try {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * @param write {@code true} to be woken up when the channel accepts more
+     *            bytes
+     */
+    private void interestInWrite(boolean write) {
+        if (key.isValid()) {
+            key.interestOps(write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Decrypts the received bytes into the {@link #framer} and hands complete
+     * lines over to the listeners.
+     *
+     * @throws IOException if the SSL engine fails
+     */
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (!closed && netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, framer.getBuffer());
+                switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    return;
+                case CLOSED:
+                    close();
+                    return;
+                case BUFFER_OVERFLOW:
+                    /* the next getBuffer() makes room */
+                    framer.frame(this);
+                    continue;
+                default:
+                    break;
+                }
+                HandshakeStatus status = result.getHandshakeStatus();
+                if (status != HandshakeStatus.NOT_HANDSHAKING) {
+                    handshake(status);
+                }
+                framer.frame(this);
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Drives the SSL handshake as far as possible without receiving.
+     *
+     * @param status the current handshake status
+     * @throws IOException if the SSL engine or writing fails
+     */
+    private void handshake(HandshakeStatus status) throws IOException {
+        while (!closed) {
+            switch (status) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                status = engine.getHandshakeStatus();
+                break;
+            case NEED_WRAP:
+                SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    close();
+                    return;
+                }
+                if (!writeNetOut()) {
+                    interestInWrite(true);
+                    return;
+                }
+                status = result.getHandshakeStatus();
+                break;
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                if (handshaking) {
+                    handshaking = false;
+                    handshakeNanos = System.nanoTime() - handshakeStart;
+                    flush();
+                }
+                return;
+            default:
+                /* NEED_UNWRAP: wait for the server */
+                return;
+            }
+        }
+    }
+
+    /**
+     * @see org.schwering.irc.lib.impl.DefaultIRCConnection#isClosed()
+     */
+    @Override
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#close()
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ChannelRace r = race;
+        if (r != null) {
+            r.abort(new SocketException("Socket closed"));
+        }
+        SocketChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException exc) {
+                handleException(exc);
+            }
+        }
+        disconnected();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getPort()
+     */
+    @Override
+    public int getPort() {
+        return (channel != null) ? remotePort : 0;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getTimeout()
+     */
+    @Override
+    public int getTimeout() {
+        return (channel != null && !closed) ? runtimeConfig.getTimeout() : INVALID_TIMEOUT;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getLocalAddress()
+     */
+    @Override
+    public InetAddress getLocalAddress() {
+        SocketChannel ch = channel;
+        return (ch != null) ? ch.socket().getLocalAddress() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "NioIRCConnection [nick=" + getNick() + ", config=" + serverConfig + "]";
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import org.schwering.irc.lib.util.IRCCommand;
+
+/**
+ * An encoded line waiting in an {@link OutboundQueue}, created by a
+ * {@link CommandEncoder}.
+ */
+final class OutboundLine {
+
+    /** The command or {@code null} if it is unknown. */
+    final IRCCommand command;
+
+    /** The encoded line without line terminator. */
+    final byte[] bytes;
+
+    /**
+     * @param command the command or {@code null}
+     * @param bytes the encoded line without line terminator
+     */
+    OutboundLine(IRCCommand command, byte[] bytes) {
+        this.command = command;
+        this.bytes = bytes;
+    }
+
+}
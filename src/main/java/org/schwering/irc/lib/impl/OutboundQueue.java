@@ -0,0 +1,338 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.schwering.irc.lib.IRCFloodControl;
+import org.schwering.irc.lib.util.IRCCommand;
+
+/**
+ * The lines waiting to be sent on a connection. Any number of threads may
+ * {@link #add(OutboundLine)} lines without blocking each other; a single
+ * writer at a time, elected through {@link #tryAcquire()}, drains them with
+ * {@link #fill(long)}, which copies as many queued lines as fit into one
+ * reused buffer so that they can be written with a single call.
+ * <p>
+ * With an {@link IRCFloodControl}, {@link #fill(long)} takes only as many
+ * lines as the token bucket allows and {@link #getDelay(long)} tells when the
+ * next one may follow. The lines are then kept in three lanes, see
+ * {@link IRCFloodControl}. The lane of {@code PRIVMSG} and {@code NOTICE} is a
+ * {@link FairQueue}, so that a long paste to one target does not hold back the
+ * messages to all others.
+ */
+final class OutboundQueue {
+
+    /** The size of the buffer returned by {@link #fill(long)}. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The lane of {@code PONG}, {@code QUIT}, {@code NICK} etc. */
+    private static final int LANE_PRIORITY = 0;
+
+    /** The lane of all commands not in another lane. */
+    private static final int LANE_NORMAL = 1;
+
+    /** The lane of {@code PRIVMSG} and {@code NOTICE}. */
+    private static final int LANE_BULK = 2;
+
+    /**
+     * The lanes of the lines not yet taken, except for {@link #LANE_BULK}.
+     */
+    private final Queue<OutboundLine>[] lanes;
+
+    /** The lane {@link #LANE_BULK} or {@code null} without rate limit. */
+    private final FairQueue bulk;
+
+    /** The number of lines in {@link #lanes}. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Set while a writer drains the queue. */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    /** The rate limit or {@code null}. */
+    private final IRCFloodControl floodControl;
+
+    /** The interval of {@link #floodControl} or {@code null}. */
+    private final AdaptiveRate rate;
+
+    /** The time the last {@code PING} was taken for sending, or {@code 0}. */
+    private volatile long pingTime;
+
+    /** The buffer the lines are copied into. */
+    private final ByteBuffer buffer;
+
+    /**
+     * The time in milliseconds at which the token bucket is full again; lies
+     * in the past if it is full.
+     */
+    private volatile long bucketTime;
+
+    /**
+     * The penalty in milliseconds of the line held back by the rate limit, or
+     * {@code 0}.
+     */
+    private volatile long heldBack;
+
+    /** A line which did not fit into the buffer, or {@code null}. */
+    private OutboundLine current;
+
+    /** The number of bytes of {@link #current} already taken. */
+    private int offset;
+
+    /** {@code true} if the CR LF of the {@link #current} line is still due. */
+    private boolean crlfPending;
+
+    /**
+     * @param direct {@code true} for a direct buffer to be written to a
+     *            channel, {@code false} for a heap buffer to be written to a
+     *            stream
+     * @param floodControl the rate limit or {@code null}
+     * @param host the server host, whose learned rate is used
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    OutboundQueue(boolean direct, IRCFloodControl floodControl, String host) {
+        this.buffer = direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        this.floodControl = floodControl;
+        this.rate = (floodControl != null) ? new AdaptiveRate(floodControl, host) : null;
+        this.lanes = new Queue[(floodControl != null) ? LANE_BULK : 1];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<OutboundLine>();
+        }
+        this.bulk = (floodControl != null) ? new FairQueue() : null;
+    }
+
+    /**
+     * Queues a line.
+     *
+     * @param line the encoded line
+     */
+    void add(OutboundLine line) {
+        int lane = (floodControl != null) ? getLane(line.command) : 0;
+        if (lane == LANE_BULK) {
+            bulk.add(line);
+        } else {
+            lanes[lane].add(line);
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return the number of lines not yet taken by {@link #fill(long)}
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return {@code true} if nothing is left to write
+     */
+    boolean isEmpty() {
+        return current == null && !crlfPending && size.get() == 0;
+    }
+
+    /**
+     * Makes the calling thread the writer unless another thread already is.
+     *
+     * @return {@code true} if the caller is the writer now and must call
+     *         {@link #release()} when done
+     */
+    boolean tryAcquire() {
+        return writing.compareAndSet(false, true);
+    }
+
+    /**
+     * Ends the current writer's turn. A writer must check {@link #isEmpty()}
+     * afterwards and try again, as lines may have been added after its last
+     * {@link #fill(long)}.
+     */
+    void release() {
+        writing.set(false);
+    }
+
+    /**
+     * Copies queued lines, each followed by CR LF, until the buffer is full,
+     * the queue is empty or the rate limit is reached. A line which does not
+     * fit is continued by the next call. Must only be called by the writer.
+     *
+     * @param now the current time in milliseconds
+     * @return the buffer, ready to be written; empty if no line may be sent
+     */
+    ByteBuffer fill(long now) {
+        buffer.clear();
+        while (true) {
+            if (current == null && !crlfPending) {
+                current = poll(now);
+                if (current == null) {
+                    break;
+                }
+                offset = 0;
+            }
+            if (current != null) {
+                int n = Math.min(buffer.remaining(), current.bytes.length - offset);
+                buffer.put(current.bytes, offset, n);
+                offset += n;
+                if (offset < current.bytes.length) {
+                    break;
+                }
+                current = null;
+                crlfPending = true;
+            }
+            if (buffer.remaining() < 2) {
+                break;
+            }
+            buffer.put((byte) '\r').put((byte) '\n');
+            crlfPending = false;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Takes the next line the rate limit allows to be sent now and charges
+     * its penalty.
+     *
+     * @param now the current time in milliseconds
+     * @return the line or {@code null}
+     */
+    private OutboundLine poll(long now) {
+        for (int lane = 0; lane <= LANE_BULK; lane++) {
+            OutboundLine line = (lane < lanes.length) ? lanes[lane].peek() : (lane == LANE_BULK && bulk != null) ? bulk
+                    .peek() : null;
+            if (line == null) {
+                continue;
+            }
+            if (floodControl != null) {
+                IRCCommand command = line.command;
+                long cost = floodControl.getPenalty(command) * rate.getInterval();
+                if (getDelay(now, cost) > 0) {
+                    heldBack = cost;
+                    rate.heldBack(now);
+                    return null;
+                }
+                bucketTime = Math.max(bucketTime, now) + cost;
+                if (command == IRCCommand.PING) {
+                    pingTime = now;
+                }
+            }
+            if (lane < lanes.length) {
+                lanes[lane].poll();
+            } else {
+                bulk.poll();
+            }
+            heldBack = 0;
+            size.decrementAndGet();
+            return line;
+        }
+        return null;
+    }
+
+    /**
+     * May be called by any thread, but is exact only when called by the
+     * writer right after {@link #fill(long)}.
+     *
+     * @param now the current time in milliseconds
+     * @return the milliseconds until the next queued line may be sent, {@code 0}
+     *         if it may be sent now and {@code -1} if nothing is queued
+     */
+    long getDelay(long now) {
+        if (current != null || crlfPending) {
+            return 0;
+        }
+        if (size.get() == 0) {
+            return -1;
+        }
+        long cost = heldBack;
+        return (cost != 0) ? getDelay(now, cost) : 0;
+    }
+
+    /**
+     * A line may be sent if the bucket is full or if it holds enough tokens.
+     * So a line costing more than the bucket holds can still be sent after
+     * waiting for the bucket to fill up.
+     *
+     * @param now the current time in milliseconds
+     * @param cost the penalty of the line in milliseconds
+     * @return the milliseconds until a line with the given cost may be sent
+     */
+    private long getDelay(long now, long cost) {
+        long full = bucketTime;
+        if (full <= now) {
+            return 0;
+        }
+        long enough = full + cost - floodControl.getBurst() * rate.getInterval();
+        return Math.max(0, Math.min(full, enough) - now);
+    }
+
+    /**
+     * Slows down because the server signalled that we send too fast.
+     *
+     * @param now the current time in milliseconds
+     */
+    void throttled(long now) {
+        if (rate != null) {
+            rate.throttled(now);
+        }
+    }
+
+    /**
+     * Takes the round-trip time of the last {@code PING} which went through
+     * the rate limit.
+     *
+     * @param now the time the {@code PONG} arrived
+     */
+    void ponged(long now) {
+        long sent = pingTime;
+        if (rate != null && sent != 0) {
+            pingTime = 0;
+            rate.roundTrip(now, now - sent);
+        }
+    }
+
+    /**
+     * @return the current interval of the rate limit in milliseconds or
+     *         {@code 0} if there is none
+     */
+    long getInterval() {
+        return (rate != null) ? rate.getInterval() : 0;
+    }
+
+    /**
+     * @param command the command of a line or {@code null}
+     * @return the lane the line goes to
+     */
+    private static int getLane(IRCCommand command) {
+        if (command == null) {
+            return LANE_NORMAL;
+        }
+        switch (command) {
+        case PONG:
+        case PING:
+        case QUIT:
+        case NICK:
+        case PASS:
+        case USER:
+            return LANE_PRIORITY;
+        case PRIVMSG:
+        case NOTICE:
+            return LANE_BULK;
+        default:
+            return LANE_NORMAL;
+        }
+    }
+
+}
@@ -0,0 +1,1104 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.schwering.irc.lib.IRCConnection;
+import org.schwering.irc.lib.IRCCtcpListener;
+import org.schwering.irc.lib.IRCEventListener;
+import org.schwering.irc.lib.IRCExceptionHandler;
+import org.schwering.irc.lib.IRCRuntimeConfig;
+import org.schwering.irc.lib.IRCServerConfig;
+import org.schwering.irc.lib.IRCUser;
+import org.schwering.irc.lib.util.CTCPCommand;
+import org.schwering.irc.lib.util.IRCModeParser;
+import org.schwering.irc.lib.util.IRCReply;
+
+/**
+ * An {@link IRCConnection} which reconnects when the connection to the server
+ * breaks. Each connection is a {@link DefaultIRCConnection}, or a
+ * {@link NioIRCConnection} if an {@link IRCEventLoop} is given, whose events
+ * are relayed to the listeners of this connection, so that the listeners stay
+ * attached across reconnects.
+ * <p>
+ * The delay before a reconnect is drawn at random between zero and an upper
+ * bound which starts at the minimum backoff and doubles with each failed
+ * attempt up to the maximum backoff ("full jitter"). Thus many connections
+ * dropped at the same time, for example by a netsplit, do not reconnect in
+ * lockstep. The bound is reset once the server accepts the registration
+ * with <code>RPL_WELCOME</code>.
+ * <p>
+ * The channels joined (with the keys given to <code>doJoin</code> or set by
+ * <code>MODE +k</code>), the away message and the user modes set through
+ * <code>doMode</code> are remembered and restored after
+ * <code>RPL_WELCOME</code>:
+ * all channels through a single bulk
+ * {@link DefaultIRCConnection#doJoin(Collection, Map, Collection)}. Channels
+ * which no longer fit the server's channel limit are forgotten. Lines sent
+ * with {@link #send(String)} are not tracked.
+ * <p>
+ * {@link IRCEventListener#onRegistered()} is fired after each registration,
+ * but {@link IRCEventListener#onDisconnected()} only once the connection is
+ * closed through {@link #close()} or {@link #doQuit()}. Failed reconnects are
+ * reported to the {@link IRCExceptionHandler}. Commands issued while the
+ * connection is down are dropped, but their effect on the remembered state is
+ * kept.
+ */
+public class ReconnectingIRCConnection implements IRCConnection {
+
+    /** The default minimum backoff in milliseconds, one second. */
+    public static final long DEFAULT_MIN_BACKOFF = 1000;
+
+    /** The default maximum backoff in milliseconds, five minutes. */
+    public static final long DEFAULT_MAX_BACKOFF = 5 * 60 * 1000;
+
+    /** The server-related configuration. */
+    private final IRCServerConfig serverConfig;
+
+    /** The runtime-related configuration. */
+    private final IRCRuntimeConfig runtimeConfig;
+
+    /** The event loop of the connections or {@code null}. */
+    private final IRCEventLoop loop;
+
+    /** The bound of the first backoff in milliseconds. */
+    private final long minBackoff;
+
+    /** The greatest bound of the backoff in milliseconds. */
+    private final long maxBackoff;
+
+    /** The source of the jitter. */
+    private final Random random = new Random();
+
+    /** The current connection, {@code null} until {@link #connect()}. */
+    private volatile DefaultIRCConnection connection;
+
+    /** The listeners, replaced on every change. Guarded by {@code this}. */
+    private volatile IRCEventListener[] listeners = new IRCEventListener[0];
+
+    /** The joined channels by their lower case names. Guarded by {@code this}. */
+    private final Map<String, String> channels = new LinkedHashMap<String, String>();
+
+    /** The channel keys by lower case channel names. Guarded by {@code this}. */
+    private final Map<String, String> keys = new HashMap<String, String>();
+
+    /** The user modes set through {@link #doMode(String, String)}. Guarded by {@code this}. */
+    private final Set<Character> userModes = new LinkedHashSet<Character>();
+
+    /** The away message or {@code null}. Guarded by {@code this}. */
+    private String away;
+
+    /** The number of reconnects since the last registration. Guarded by {@code this}. */
+    private int attempts;
+
+    /** {@code true} once the connection is to end. Guarded by {@code this}. */
+    private boolean closed;
+
+    /** {@code true} once {@code onDisconnected} was fired. Guarded by {@code this}. */
+    private boolean disconnected;
+
+    /** The scheduled reconnect or {@code null}. Guarded by {@code this}. */
+    private HashedWheelTimer.Timeout pending;
+
+    /**
+     * Reconnects on the pool shared with the blocking timer tasks of the
+     * connections, as connecting blocks.
+     */
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            DefaultIRCConnection.executeShared(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            });
+        }
+    };
+
+    /**
+     * Creates a connection with blocking {@link DefaultIRCConnection}s and the
+     * default backoff.
+     *
+     * @param serverConfig the server configuration
+     * @param runtimeConfig the runtime configuration
+     */
+    public ReconnectingIRCConnection(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig) {
+        this(serverConfig, runtimeConfig, null, DEFAULT_MIN_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * @param serverConfig the server configuration
+     * @param runtimeConfig the runtime configuration
+     * @param loop the event loop serving {@link NioIRCConnection}s, or
+     *            {@code null} for blocking {@link DefaultIRCConnection}s
+     * @param minBackoff the bound of the first backoff in milliseconds
+     * @param maxBackoff the greatest bound of the backoff in milliseconds
+     */
+    public ReconnectingIRCConnection(IRCServerConfig serverConfig, IRCRuntimeConfig runtimeConfig,
+            IRCEventLoop loop, long minBackoff, long maxBackoff) {
+        if (minBackoff <= 0 || maxBackoff < minBackoff)
+            throw new IllegalArgumentException("Invalid backoff " + minBackoff + ".." + maxBackoff);
+        this.serverConfig = serverConfig;
+        this.runtimeConfig = runtimeConfig;
+        this.loop = loop;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Connects for the first time. Unlike the reconnects, a failure is
+     * thrown.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#connect()
+     */
+    @Override
+    public void connect() throws IOException, KeyManagementException, NoSuchAlgorithmException {
+        DefaultIRCConnection c;
+        synchronized (this) {
+            if (connection != null || closed)
+                throw new SocketException("Socket closed or already open");
+            c = newConnection();
+        }
+        try {
+            c.connect();
+        } catch (IOException e) {
+            reset();
+            throw e;
+        } catch (KeyManagementException e) {
+            reset();
+            throw e;
+        } catch (NoSuchAlgorithmException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets a connection which failed to connect first.
+     */
+    private synchronized void reset() {
+        connection = null;
+    }
+
+    /**
+     * Creates the next connection and makes it the current one.
+     *
+     * @return the new connection
+     */
+    private DefaultIRCConnection newConnection() {
+        DefaultIRCConnection c = (loop != null) ? new NioIRCConnection(serverConfig, runtimeConfig, loop)
+                : new DefaultIRCConnection(serverConfig, runtimeConfig);
+        c.addIRCEventListener(new Relay(c));
+        connection = c;
+        return c;
+    }
+
+    /**
+     * Schedules the reconnect on the shared {@link HashedWheelTimer} after
+     * the backoff.
+     */
+    private synchronized void scheduleReconnect() {
+        if (closed)
+            return;
+        long bound = maxBackoff;
+        if (attempts < 62 && minBackoff <= maxBackoff >> attempts)
+            bound = minBackoff << attempts;
+        attempts++;
+        long delay = (long) (random.nextDouble() * bound);
+        pending = HashedWheelTimer.getShared().schedule(reconnectTask, delay);
+    }
+
+    /**
+     * Opens the next connection and schedules another attempt if that fails.
+     */
+    private void reconnect() {
+        DefaultIRCConnection c;
+        synchronized (this) {
+            pending = null;
+            if (closed)
+                return;
+            c = newConnection();
+        }
+        try {
+            c.connect();
+            boolean stale;
+            synchronized (this) {
+                stale = closed;
+            }
+            if (stale)
+                c.close();
+        } catch (Exception exc) {
+            handleException(exc);
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Rejoins the channels and sets the away message and user modes again.
+     *
+     * @param c the freshly registered connection
+     */
+    private void restore(DefaultIRCConnection c) {
+        List<String> chans;
+        Map<String, String> chanKeys = new HashMap<String, String>();
+        String awayMessage;
+        StringBuilder modes = new StringBuilder();
+        synchronized (this) {
+            chans = new ArrayList<String>(channels.values());
+            for (Map.Entry<String, String> e : channels.entrySet()) {
+                String key = keys.get(e.getKey());
+                if (key != null)
+                    chanKeys.put(e.getValue(), key);
+            }
+            awayMessage = away;
+            for (Character mode : userModes)
+                modes.append(mode.charValue());
+        }
+        if (!chans.isEmpty()) {
+            for (String chan : c.doJoin(chans, chanKeys, null))
+                forget(chan);
+        }
+        if (awayMessage != null)
+            c.doAway(awayMessage);
+        if (modes.length() != 0)
+            c.doMode(c.getNick(), "+" + modes);
+    }
+
+    /**
+     * Fires {@link IRCEventListener#onDisconnected()} once and removes all
+     * listeners.
+     */
+    private void disconnected() {
+        IRCEventListener[] ls;
+        synchronized (this) {
+            if (disconnected)
+                return;
+            disconnected = true;
+            ls = listeners;
+            listeners = new IRCEventListener[0];
+        }
+        for (int i = ls.length - 1; i >= 0; i--)
+            ls[i].onDisconnected();
+    }
+
+    /**
+     * Handles the exception according to the current exception handling mode.
+     *
+     * @param exc the exception
+     */
+    private void handleException(Exception exc) {
+        IRCExceptionHandler exceptionHandler = runtimeConfig.getExceptionHandler();
+        if (exceptionHandler != null) {
+            exceptionHandler.exception(this, exc);
+        }
+    }
+
+    /**
+     * @param nick a nick name
+     * @return {@code true} if it is the current nick name
+     */
+    private boolean isMe(String nick) {
+        DefaultIRCConnection c = connection;
+        return c != null && nick != null && nick.equalsIgnoreCase(c.getNick());
+    }
+
+    /**
+     * @param chan a channel name
+     * @return the key of the channel in {@link #channels} and {@link #keys}
+     */
+    private static String lower(String chan) {
+        return chan.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the current connection if it is connected, otherwise
+     *         {@code null}
+     */
+    private DefaultIRCConnection live() {
+        DefaultIRCConnection c = connection;
+        return (c != null && c.isConnected()) ? c : null;
+    }
+
+    /**
+     * @return the current connection, for example to use the methods of
+     *         {@link DefaultIRCConnection} which are not part of
+     *         {@link IRCConnection}, or {@code null} before {@link #connect()}
+     */
+    public DefaultIRCConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#addIRCEventListener(org.schwering.irc.lib.IRCEventListener)
+     */
+    @Override
+    public synchronized void addIRCEventListener(IRCEventListener l) {
+        if (l == null)
+            throw new IllegalArgumentException("Listener is null.");
+        IRCEventListener[] ls = new IRCEventListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, ls, 0, listeners.length);
+        ls[listeners.length] = l;
+        listeners = ls;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#removeIRCEventListener(org.schwering.irc.lib.IRCEventListener)
+     */
+    @Override
+    public synchronized boolean removeIRCEventListener(IRCEventListener l) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(l)) {
+                IRCEventListener[] ls = new IRCEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, ls, 0, i);
+                System.arraycopy(listeners, i + 1, ls, i, ls.length - i);
+                listeners = ls;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the connection and stops reconnecting.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#close()
+     */
+    @Override
+    public void close() {
+        DefaultIRCConnection c;
+        synchronized (this) {
+            closed = true;
+            if (pending != null) {
+                pending.cancel();
+                pending = null;
+            }
+            c = connection;
+        }
+        if (c != null && c.isConnected())
+            c.close();
+        disconnected();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doAway()
+     */
+    @Override
+    public void doAway() {
+        synchronized (this) {
+            away = null;
+        }
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doAway();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doAway(java.lang.String)
+     */
+    @Override
+    public void doAway(String msg) {
+        synchronized (this) {
+            away = msg;
+        }
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doAway(msg);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doInvite(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doInvite(String nick, String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doInvite(nick, chan);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doIson(java.lang.String)
+     */
+    @Override
+    public void doIson(String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doIson(nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doJoin(java.lang.String)
+     */
+    @Override
+    public void doJoin(String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doJoin(chan);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doJoin(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doJoin(String chan, String key) {
+        synchronized (this) {
+            keys.put(lower(chan), key);
+        }
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doJoin(chan, key);
+    }
+
+    /**
+     * Joins many channels with as few lines as possible.
+     *
+     * @param chans the channels
+     * @param chanKeys the keys by channel name, or {@code null}
+     * @return the channels which were not sent: those beyond the server's
+     *         channel limit, or all of them while the connection is down
+     * @see DefaultIRCConnection#doJoin(Collection, Map, Collection)
+     */
+    public List<String> doJoin(Collection<String> chans, Map<String, String> chanKeys) {
+        List<String> joined = new ArrayList<String>();
+        synchronized (this) {
+            if (chanKeys != null) {
+                for (Map.Entry<String, String> e : chanKeys.entrySet())
+                    keys.put(lower(e.getKey()), e.getValue());
+            }
+            Set<String> requested = new HashSet<String>();
+            for (String chan : chans)
+                requested.add(lower(chan));
+            for (Map.Entry<String, String> e : channels.entrySet()) {
+                if (!requested.contains(e.getKey()))
+                    joined.add(e.getValue());
+            }
+        }
+        DefaultIRCConnection c = live();
+        return (c != null) ? c.doJoin(chans, chanKeys, joined) : new ArrayList<String>(chans);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doKick(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doKick(String chan, String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doKick(chan, nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doKick(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    @Override
+    public void doKick(String chan, String nick, String msg) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doKick(chan, nick, msg);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doList()
+     */
+    @Override
+    public void doList() {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doList();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doList(java.lang.String)
+     */
+    @Override
+    public void doList(String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doList(chan);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doMode(java.lang.String)
+     */
+    @Override
+    public void doMode(String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doMode(chan);
+    }
+
+    /**
+     * Remembers the user modes if {@code target} is the own nick name.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#doMode(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doMode(String target, String mode) {
+        if (isMe(target)) {
+            synchronized (this) {
+                boolean add = true;
+                for (int i = 0; i < mode.length(); i++) {
+                    char m = mode.charAt(i);
+                    if (m == '+' || m == '-')
+                        add = m == '+';
+                    else if (m == ' ')
+                        break;
+                    else if (add)
+                        userModes.add(Character.valueOf(m));
+                    else
+                        userModes.remove(Character.valueOf(m));
+                }
+            }
+        }
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doMode(target, mode);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doNames()
+     */
+    @Override
+    public void doNames() {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doNames();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doNames(java.lang.String)
+     */
+    @Override
+    public void doNames(String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doNames(chan);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doNick(java.lang.String)
+     */
+    @Override
+    public void doNick(String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doNick(nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doNotice(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doNotice(String target, String msg) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doNotice(target, msg);
+    }
+
+    /**
+     * Forgets the channel, so that it is not rejoined.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#doPart(java.lang.String)
+     */
+    @Override
+    public void doPart(String chan) {
+        forget(chan);
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doPart(chan);
+    }
+
+    /**
+     * Forgets the channel, so that it is not rejoined.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#doPart(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doPart(String chan, String msg) {
+        forget(chan);
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doPart(chan, msg);
+    }
+
+    /**
+     * Leaves many channels with as few lines as possible and forgets them.
+     *
+     * @param chans the channels
+     * @param msg the part message or {@code null}
+     * @return the number of lines sent
+     * @see DefaultIRCConnection#doPart(Collection, String)
+     */
+    public int doPart(Collection<String> chans, String msg) {
+        for (String chan : chans)
+            forget(chan);
+        DefaultIRCConnection c = live();
+        if (c == null)
+            return 0;
+        return (msg != null) ? c.doPart(chans, msg) : c.doPart(chans);
+    }
+
+    /**
+     * @param chan a channel not to be rejoined
+     */
+    private synchronized void forget(String chan) {
+        channels.remove(lower(chan));
+        keys.remove(lower(chan));
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doPong(java.lang.String)
+     */
+    @Override
+    public void doPong(String ping) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doPong(ping);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doPrivmsg(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doPrivmsg(String target, String msg) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doPrivmsg(target, msg);
+    }
+
+    /**
+     * Stops reconnecting and quits.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#doQuit()
+     */
+    @Override
+    public void doQuit() {
+        doQuit(null);
+    }
+
+    /**
+     * Stops reconnecting and quits.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#doQuit(java.lang.String)
+     */
+    @Override
+    public void doQuit(String msg) {
+        DefaultIRCConnection c;
+        synchronized (this) {
+            closed = true;
+            if (pending != null) {
+                pending.cancel();
+                pending = null;
+            }
+            c = live();
+        }
+        if (c == null)
+            disconnected();
+        else if (msg != null)
+            c.doQuit(msg);
+        else
+            c.doQuit();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doTopic(java.lang.String)
+     */
+    @Override
+    public void doTopic(String chan) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doTopic(chan);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doTopic(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void doTopic(String chan, String topic) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doTopic(chan, topic);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doUserhost(java.lang.String)
+     */
+    @Override
+    public void doUserhost(String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doUserhost(nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doWho(java.lang.String)
+     */
+    @Override
+    public void doWho(String criteric) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doWho(criteric);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doWhois(java.lang.String)
+     */
+    @Override
+    public void doWhois(String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doWhois(nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#doWhowas(java.lang.String)
+     */
+    @Override
+    public void doWhowas(String nick) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.doWhowas(nick);
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getLocalAddress()
+     */
+    @Override
+    public InetAddress getLocalAddress() {
+        DefaultIRCConnection c = live();
+        return (c != null) ? c.getLocalAddress() : null;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getNick()
+     */
+    @Override
+    public String getNick() {
+        DefaultIRCConnection c = connection;
+        return (c != null) ? c.getNick() : serverConfig.getNick();
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getPort()
+     */
+    @Override
+    public int getPort() {
+        DefaultIRCConnection c = connection;
+        return (c != null) ? c.getPort() : 0;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#getTimeout()
+     */
+    @Override
+    public int getTimeout() {
+        DefaultIRCConnection c = live();
+        return (c != null) ? c.getTimeout() : INVALID_TIMEOUT;
+    }
+
+    /**
+     * @return {@code true} while a connection is established, which is not
+     *         the case while waiting to reconnect
+     * @see org.schwering.irc.lib.IRCConnection#isConnected()
+     */
+    @Override
+    public boolean isConnected() {
+        return live() != null;
+    }
+
+    /**
+     * @see org.schwering.irc.lib.IRCConnection#isSSL()
+     */
+    @Override
+    public boolean isSSL() {
+        return runtimeConfig.getSSLSupport() != null;
+    }
+
+    /**
+     * Sends the line if connected. Its effect is not remembered.
+     *
+     * @see org.schwering.irc.lib.IRCConnection#send(java.lang.String)
+     */
+    @Override
+    public void send(String line) {
+        DefaultIRCConnection c = live();
+        if (c != null)
+            c.send(line);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + connection + "]";
+    }
+
+    /**
+     * Relays the events of one connection to the listeners and keeps track of
+     * the state to restore. Events of connections which were replaced are
+     * ignored.
+     */
+    private final class Relay implements IRCCtcpListener {
+
+        /** The connection this relay listens to. */
+        private final DefaultIRCConnection source;
+
+        /**
+         * @param source the connection this relay listens to
+         */
+        Relay(DefaultIRCConnection source) {
+            this.source = source;
+        }
+
+        /**
+         * @return the listeners or an empty array if {@link #source} is not
+         *         the current connection
+         */
+        private IRCEventListener[] targets() {
+            return (source == connection) ? listeners : new IRCEventListener[0];
+        }
+
+        @Override
+        public void onRegistered() {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onRegistered();
+        }
+
+        @Override
+        public void onDisconnected() {
+            boolean end;
+            synchronized (ReconnectingIRCConnection.this) {
+                if (source != connection)
+                    return;
+                end = closed;
+            }
+            if (end)
+                disconnected();
+            else
+                scheduleReconnect();
+        }
+
+        @Override
+        public void onError(String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onError(msg);
+        }
+
+        @Override
+        public void onError(int num, String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onError(num, msg);
+        }
+
+        @Override
+        public void onInvite(String chan, IRCUser user, String passiveNick) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onInvite(chan, user, passiveNick);
+        }
+
+        @Override
+        public void onJoin(String chan, IRCUser user) {
+            if (source == connection && isMe(user.getNick())) {
+                synchronized (ReconnectingIRCConnection.this) {
+                    channels.put(lower(chan), chan);
+                }
+            }
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onJoin(chan, user);
+        }
+
+        @Override
+        public void onKick(String chan, IRCUser user, String passiveNick, String msg) {
+            if (source == connection && isMe(passiveNick))
+                forget(chan);
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onKick(chan, user, passiveNick, msg);
+        }
+
+        @Override
+        public void onMode(String chan, IRCUser user, IRCModeParser modeParser) {
+            if (source == connection) {
+                synchronized (ReconnectingIRCConnection.this) {
+                    String lower = lower(chan);
+                    for (int i = 1; i <= modeParser.getCount(); i++) {
+                        if (modeParser.getModeAt(i) != 'k' || !channels.containsKey(lower))
+                            continue;
+                        String key = modeParser.getArgAt(i);
+                        if (modeParser.getOperatorAt(i) == '-')
+                            keys.remove(lower);
+                        else if (key.length() != 0 && !"*".equals(key))
+                            keys.put(lower, key);
+                    }
+                }
+            }
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onMode(chan, user, modeParser);
+        }
+
+        @Override
+        public void onMode(IRCUser user, String passiveNick, String mode) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onMode(user, passiveNick, mode);
+        }
+
+        @Override
+        public void onNick(IRCUser user, String newNick) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onNick(user, newNick);
+        }
+
+        @Override
+        public void onNotice(String target, IRCUser user, String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onNotice(target, user, msg);
+        }
+
+        @Override
+        public void onPart(String chan, IRCUser user, String msg) {
+            if (source == connection && isMe(user.getNick()))
+                forget(chan);
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onPart(chan, user, msg);
+        }
+
+        @Override
+        public void onPing(String ping) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onPing(ping);
+        }
+
+        @Override
+        public void onPrivmsg(String target, IRCUser user, String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onPrivmsg(target, user, msg);
+        }
+
+        @Override
+        public void onCtcpRequest(String target, IRCUser user, CTCPCommand command, CharSequence argument) {
+            IRCEventListener[] ls = targets();
+            String msg = null;
+            for (int i = ls.length - 1; i >= 0; i--) {
+                if (ls[i] instanceof IRCCtcpListener) {
+                    ((IRCCtcpListener) ls[i]).onCtcpRequest(target, user, command, argument);
+                } else {
+                    if (msg == null)
+                        msg = DefaultIRCConnection.getMessage(command, argument, runtimeConfig.isStripColorsEnabled());
+                    ls[i].onPrivmsg(target, user, msg);
+                }
+            }
+        }
+
+        @Override
+        public void onCtcpReply(String target, IRCUser user, CTCPCommand command, CharSequence argument) {
+            IRCEventListener[] ls = targets();
+            String msg = null;
+            for (int i = ls.length - 1; i >= 0; i--) {
+                if (ls[i] instanceof IRCCtcpListener) {
+                    ((IRCCtcpListener) ls[i]).onCtcpReply(target, user, command, argument);
+                } else {
+                    if (msg == null)
+                        msg = DefaultIRCConnection.getMessage(command, argument, runtimeConfig.isStripColorsEnabled());
+                    ls[i].onNotice(target, user, msg);
+                }
+            }
+        }
+
+        @Override
+        public void onQuit(IRCUser user, String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onQuit(user, msg);
+        }
+
+        @Override
+        public void onReply(int num, String value, String msg) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onReply(num, value, msg);
+        }
+
+        @Override
+        public void onReply(IRCReply reply, String value, String msg) {
+            /* not onRegistered, which a PING before the registration fires */
+            if (reply == IRCReply.RPL_WELCOME) {
+                boolean restoring;
+                synchronized (ReconnectingIRCConnection.this) {
+                    if (source != connection)
+                        return;
+                    restoring = attempts > 0;
+                    attempts = 0;
+                }
+                if (restoring)
+                    restore(source);
+            }
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onReply(reply, value, msg);
+        }
+
+        @Override
+        public void onTopic(String chan, IRCUser user, String topic) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].onTopic(chan, user, topic);
+        }
+
+        @Override
+        public void unknown(String prefix, String command, String middle, String trailing) {
+            IRCEventListener[] ls = targets();
+            for (int i = ls.length - 1; i >= 0; i--)
+                ls[i].unknown(prefix, command, middle, trailing);
+        }
+    }
+
+}
@@ -19,8 +19,14 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
@@ -29,22 +35,58 @@ import org.schwering.irc.lib.IRCSSLSupport;
 /**
  * A factory to create sockets that takes into account things such as
  * {@link #timeout}, {@link #proxy} and SSL support.
+ * <p>
+ * The {@link SSLContext} of an {@link IRCSSLSupport} is created once and
+ * shared by all factories for equal {@link IRCSSLSupport}s, so that a
+ * reconnect neither initializes the key and trust managers again nor loses
+ * the context's client session cache. That cache holds the sessions by host
+ * and port, hence sockets and engines are always created for the server's
+ * host and port, which lets a reconnect resume the previous session (with
+ * TLS 1.3 through a session ticket) instead of running a full handshake.
+ * Only {@link #PROTOCOLS} are enabled.
  *
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
 public class SocketFactory {
 
+    /**
+     * The protocols enabled on sockets and engines, if supported by the
+     * runtime, in order of preference.
+     */
+    public static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+
+    /**
+     * The {@link SSLContext}s by the {@link IRCSSLSupport}s they were created
+     * from. Guarded by itself.
+     */
+    private static final Map<IRCSSLSupport, SSLContext> SSL_CONTEXTS = new WeakHashMap<IRCSSLSupport, SSLContext>();
+
+    /** The supported ones of {@link #PROTOCOLS}, created lazily. */
+    private static volatile String[] enabledProtocols;
+
     /**
      * The {@link Proxy} to use when creating the socket. Use
      * {@link Proxy#NO_PROXY} reather than {@code null}.
      */
     private final Proxy proxy;
+    /** The {@link SSLContext} or {@code null} if SSL should not be used. */
+    private final SSLContext sslContext;
     /** The {@link SSLSocketFactory} to use when creating the socket. */
     private SSLSocketFactory sslSocketFactory;
     /** Socket timeout in milliseconds. */
     private final int timeout;
+    /** Connect timeout in milliseconds, including the SSL handshake. */
+    private final int connectTimeout;
+    /**
+     * The duration of the handshake of the first socket connected by
+     * {@link #connect(Socket, InetSocketAddress, String)} in nanoseconds or
+     * {@code -1}. Guarded by {@code this}.
+     */
+    private long handshakeNanos = -1;
 
     /**
+     * Creates a factory which uses the socket timeout as connect timeout.
+     *
      * @param timeout
      *            im milliseconds
      * @param proxy
@@ -59,18 +101,86 @@ public class SocketFactory {
      */
     public SocketFactory(int timeout, Proxy proxy, IRCSSLSupport sslSupport) throws KeyManagementException,
             NoSuchAlgorithmException {
+        this(timeout, timeout, proxy, sslSupport);
+    }
+
+    /**
+     * @param timeout
+     *            im milliseconds
+     * @param connectTimeout
+     *            the time in milliseconds to connect and finish the SSL
+     *            handshake
+     * @param proxy
+     *            the proxy or {@code  null} if no proxy is to be used
+     * @param sslSupport
+     *            the SSL support or {@code null} if SSL should not be used
+     * @throws KeyManagementException
+     *             rethrown from
+     *             {@link SSLContext#init(javax.net.ssl.KeyManager[], javax.net.ssl.TrustManager[],
+     *             java.security.SecureRandom)}
+     * @throws NoSuchAlgorithmException rethrown from {@link SSLContext#getInstance(String)}
+     */
+    public SocketFactory(int timeout, int connectTimeout, Proxy proxy, IRCSSLSupport sslSupport)
+            throws KeyManagementException, NoSuchAlgorithmException {
         super();
         this.timeout = timeout;
+        this.connectTimeout = connectTimeout;
         this.proxy = proxy == null ? Proxy.NO_PROXY : proxy;
         if (sslSupport != null) {
-            SSLContext sslContext = SSLContext.getInstance("SSL");
-            sslContext.init(sslSupport.getKeyManagers(), sslSupport.getTrustManagers(), sslSupport.getSecureRandom());
+            this.sslContext = getSSLContext(sslSupport);
             this.sslSocketFactory = sslContext.getSocketFactory();
         } else {
+            this.sslContext = null;
             this.sslSocketFactory = null;
         }
     }
 
+    /**
+     * Returns the shared {@link SSLContext} of the given {@link IRCSSLSupport}
+     * and creates it if there is none yet.
+     *
+     * @param sslSupport the SSL support
+     * @return the {@link SSLContext}
+     * @throws KeyManagementException
+     *             rethrown from
+     *             {@link SSLContext#init(javax.net.ssl.KeyManager[], javax.net.ssl.TrustManager[],
+     *             java.security.SecureRandom)}
+     * @throws NoSuchAlgorithmException rethrown from {@link SSLContext#getInstance(String)}
+     */
+    static SSLContext getSSLContext(IRCSSLSupport sslSupport) throws KeyManagementException,
+            NoSuchAlgorithmException {
+        synchronized (SSL_CONTEXTS) {
+            SSLContext result = SSL_CONTEXTS.get(sslSupport);
+            if (result == null) {
+                result = SSLContext.getInstance("TLS");
+                result.init(sslSupport.getKeyManagers(), sslSupport.getTrustManagers(), sslSupport.getSecureRandom());
+                SSL_CONTEXTS.put(sslSupport, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param supported the protocols supported by a socket or engine
+     * @return the supported ones of {@link #PROTOCOLS} or {@code null} if none
+     *         of them is supported
+     */
+    private static String[] getEnabledProtocols(String[] supported) {
+        String[] result = enabledProtocols;
+        if (result == null) {
+            List<String> supportedList = Arrays.asList(supported);
+            List<String> enabled = new ArrayList<String>(PROTOCOLS.length);
+            for (String protocol : PROTOCOLS) {
+                if (supportedList.contains(protocol)) {
+                    enabled.add(protocol);
+                }
+            }
+            result = enabled.toArray(new String[enabled.size()]);
+            enabledProtocols = result;
+        }
+        return result.length > 0 ? result : null;
+    }
+
     /**
      * Creates a new {@link Socket} base on the the specification passed in
      * through the constructor.
@@ -84,25 +194,98 @@ public class SocketFactory {
      */
     @SuppressWarnings("resource")
     public Socket createSocket(String host, int port) throws IOException {
-        final Socket result;
+        Socket socket = newSocket();
+        try {
+            return connect(socket, new InetSocketAddress(host, port), host);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a new unconnected {@link Socket} using the proxy, if any
+     */
+    Socket newSocket() {
+        return new Socket(proxy);
+    }
+
+    /**
+     * Connects the given {@link Socket} and, if SSL should be used, layers an
+     * {@link SSLSocket} over it and finishes the handshake. Closing the given
+     * socket aborts both. The connect timeout applies to each step.
+     *
+     * @param socket
+     *            a socket created by {@link #newSocket()}
+     * @param address
+     *            the address to connect to, unresolved if the proxy resolves
+     *            it
+     * @param host
+     *            the hostname of the server, used for SNI and session reuse
+     * @return the connected {@link Socket}
+     * @throws IOException rethrown from several {@link Socket} methods
+     */
+    Socket connect(Socket socket, InetSocketAddress address, String host) throws IOException {
+        socket.connect(address, connectTimeout);
         if (sslSocketFactory == null) {
-            /* plain, optionally with proxy */
-            result = new Socket(proxy);
-            result.connect(new InetSocketAddress(host, port), timeout);
-        } else if (proxy == Proxy.NO_PROXY) {
-            /* SSL without proxy */
-            SSLSocket sslResult = (SSLSocket) sslSocketFactory.createSocket(host, port);
-            sslResult.startHandshake();
-            result = sslResult;
-        } else {
-            /* SSL with proxy */
-            Socket proxySocket = new Socket(proxy);
-            SSLSocket sslResult = (SSLSocket) sslSocketFactory.createSocket(proxySocket, host, port, true);
-            sslResult.startHandshake();
-            result = sslResult;
+            socket.setSoTimeout(timeout);
+            return socket;
         }
+        SSLSocket result = (SSLSocket) sslSocketFactory.createSocket(socket, host, address.getPort(), true);
+        String[] protocols = getEnabledProtocols(result.getSupportedProtocols());
+        if (protocols != null) {
+            result.setEnabledProtocols(protocols);
+        }
+        result.setSoTimeout(connectTimeout);
+        long start = System.nanoTime();
+        result.startHandshake();
+        long nanos = System.nanoTime() - start;
         result.setSoTimeout(timeout);
+        synchronized (this) {
+            if (handshakeNanos < 0) {
+                handshakeNanos = nanos;
+            }
+        }
         return result;
     }
 
+    /**
+     * Creates a client-mode {@link SSLEngine} for connections which do not
+     * use a {@link Socket}, such as {@link NioIRCConnection}.
+     *
+     * @param host
+     *            the hostname of the server, used for SNI and session reuse
+     * @param port
+     *            the port number on the destination host
+     * @return a new {@link SSLEngine} or {@code null} if SSL should not be
+     *         used
+     */
+    public SSLEngine createSSLEngine(String host, int port) {
+        if (sslContext == null) {
+            return null;
+        }
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        String[] protocols = getEnabledProtocols(engine.getSupportedProtocols());
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        return engine;
+    }
+
+    /**
+     * @return the duration of the handshake of the first socket connected by
+     *         this factory in nanoseconds or {@code -1} if there was none
+     */
+    public synchronized long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * @return {@code true} if sockets are connected through a proxy
+     */
+    public boolean isProxied() {
+        return proxy != Proxy.NO_PROXY;
+    }
+
 }
@@ -0,0 +1,72 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ThreadFactory} creating virtual threads on Java 21 and later. The
+ * virtual thread API is looked up reflectively so that the library itself
+ * still runs on Java 6.
+ * <p>
+ * With {@link org.schwering.irc.lib.IRCConfigBuilder#virtualThreads()}, each
+ * {@link DefaultIRCConnection} reads from its socket on a virtual thread, which
+ * makes thousands of blocking connections cheap.
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+    /**
+     * The factory returned by {@code Thread.ofVirtual().factory()}, or
+     * {@code null} if unsupported.
+     */
+    private static final ThreadFactory DELEGATE;
+
+    static {
+        ThreadFactory delegate;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            delegate = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception exc) {
+            /* older Java or virtual threads still in preview */
+            delegate = null;
+        }
+        DELEGATE = delegate;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the running Java does not
+     *             support virtual threads
+     */
+    public VirtualThreadFactory() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+    }
+
+    /**
+     * @return {@code true} if the running Java supports virtual threads
+     */
+    public static boolean isSupported() {
+        return DELEGATE != null;
+    }
+
+    /**
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+        return DELEGATE.newThread(r);
+    }
+
+}
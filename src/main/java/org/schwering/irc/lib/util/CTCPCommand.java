@@ -37,6 +37,7 @@ public enum CTCPCommand {
     TIME;
 
     private static final Map<String, CTCPCommand> FAST_LOOKUP;
+    private static final CTCPCommand[] VALUES = values();
     public static final int SHORTEST_COMMAND_LENGTH;
     public static final char QUOTE_CHAR = '\u0001';
     static {
@@ -67,4 +68,42 @@ public enum CTCPCommand {
     public static CTCPCommand fastValueOf(String command) {
         return FAST_LOOKUP.get(command);
     }
+
+    /**
+     * A case-sensitive lookup working directly on the bytes of the given
+     * {@code command} as received from the server. Neither a {@link String}
+     * is created nor the bytes are decoded.
+     *
+     * @param command
+     *            the command as an {@link IRCByteSlice}
+     * @return the {@link CTCPCommand} that corresponds to the given
+     *         {@code command} or {@code null} if no such command exists
+     */
+    public static CTCPCommand fastValueOf(IRCByteSlice command) {
+        int len = command.byteLength();
+        if (len < SHORTEST_COMMAND_LENGTH) {
+            return null;
+        }
+        for (CTCPCommand value : VALUES) {
+            String name = value.name();
+            if (name.length() == len && matches(command, name)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param command the bytes to compare
+     * @param name an ASCII name of the same length
+     * @return {@code true} if the bytes equal the name
+     */
+    private static boolean matches(IRCByteSlice command, String name) {
+        for (int i = 0, len = name.length(); i < len; i++) {
+            if (command.byteAt(i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,658 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses a line sent from the IRC server directly on its UTF-8 encoded bytes.
+ * <p>
+ * The line is divided into prefix, command, middle and trailing exactly as
+ * described in {@link IRCParser}, after an optional IRCv3 tag section
+ * ({@code @key=value;key2 ...}) has been cut off. Of the tag section, only its
+ * boundaries are recorded; see {@link IRCTags}. Instead of copying the parts
+ * into new {@link String}s, only their boundaries are recorded as {@code int}
+ * offsets into the given {@link ByteBuffer}. The parts are exposed as
+ * {@link IRCByteSlice}s which are decoded only when a caller asks for their
+ * characters.
+ * <p>
+ * The bytes between the buffer's position and limit are parsed. A trailing
+ * CR-LF (or single CR or LF) is ignored. Neither the position nor the limit of
+ * the buffer is changed. As the slices point into the buffer, they are valid
+ * only as long as the buffer is not overwritten.
+ * <p>
+ * An instance can be reused for any number of lines by calling
+ * {@link #reset(ByteBuffer)} or {@link #reset(CharSequence)}. The parser
+ * keeps all its state in reusable arrays and slices, so that parsing a line
+ * and accessing its parts does not allocate anything once the arrays have
+ * grown to the size of the largest line. Consequently, all slices returned by
+ * a parser are invalidated by the next reset.
+ *
+ * @see IRCParser
+ * @see IRCByteSlice
+ */
+public class IRCByteParser {
+
+    /** The buffer holding the line. */
+    private ByteBuffer buf;
+
+    /** The absolute index behind the last byte of the line, CR-LF excluded. */
+    private int lineEnd;
+
+    /** The absolute index of the first byte behind the tag section. */
+    private int messageStart;
+
+    /** The tags of the line, decoded on demand. */
+    private final IRCTags tags = new IRCTags();
+
+    /** The whole line without CR-LF. */
+    private final IRCByteSlice line = new IRCByteSlice(null, 0, 0);
+
+    /** The prefix without the leading colon, empty if there is no prefix. */
+    private final IRCByteSlice prefix = new IRCByteSlice(null, 0, 0);
+
+    /** The command. */
+    private final IRCByteSlice command = new IRCByteSlice(null, 0, 0);
+
+    /** The middle, i.e. all parameters before the trailing. */
+    private final IRCByteSlice middle = new IRCByteSlice(null, 0, 0);
+
+    /** The trailing, i.e. the part behind the space-colon or the last word. */
+    private final IRCByteSlice trailing = new IRCByteSlice(null, 0, 0);
+
+    /** @see #getCtcpVerb() */
+    private final IRCByteSlice ctcpVerb = new IRCByteSlice(null, 0, 0);
+
+    /** @see #getCtcpArgument() */
+    private final IRCByteSlice ctcpArgument = new IRCByteSlice(null, 0, 0);
+
+    /** @see #getParameters(int, int) */
+    private final IRCByteSlice range = new IRCByteSlice(null, 0, 0);
+
+    /** {@code true} if the trailing is introduced by a space-colon. */
+    private boolean trailingColon;
+
+    /** @see #getNick() */
+    private final IRCByteSlice nick = new IRCByteSlice(null, 0, 0);
+
+    /** @see #getUsername() */
+    private final IRCByteSlice username = new IRCByteSlice(null, 0, 0);
+
+    /** @see #getHost() */
+    private final IRCByteSlice host = new IRCByteSlice(null, 0, 0);
+
+    /**
+     * The start and end offsets of the parameters: the start of the
+     * {@code n}th parameter (zero-based) is stored at {@code 2 * n} and its end
+     * at {@code 2 * n + 1}. Grows on demand.
+     */
+    private int[] params = new int[2 * 15];
+
+    /**
+     * The number of parameters stored in {@link #params} or {@code -1} if the
+     * parameters were not split yet.
+     */
+    private int paramCount = -1;
+
+    /** Reusable slices handed out by {@link #getParameter(int)}. */
+    private IRCByteSlice[] paramSlices = new IRCByteSlice[0];
+
+    /** The buffer {@link #reset(CharSequence)} encodes into. */
+    private ByteBuffer encoded;
+
+    /**
+     * Creates a parser without a line. Call {@link #reset(ByteBuffer)} or
+     * {@link #reset(CharSequence)} before accessing any of the parts.
+     */
+    public IRCByteParser() {
+        super();
+    }
+
+    /**
+     * Parses the bytes between the position and the limit of the given
+     * buffer.
+     *
+     * @param buf the buffer holding a UTF-8 encoded IRC line
+     */
+    public IRCByteParser(ByteBuffer buf) {
+        reset(buf);
+    }
+
+    /**
+     * Parses the line encoded to UTF-8 into a buffer owned by this parser.
+     * The buffer is reused by subsequent calls, so that no allocation happens
+     * once it is large enough.
+     *
+     * @param line the IRC line
+     * @return this parser
+     */
+    public IRCByteParser reset(CharSequence line) {
+        return reset(line, false);
+    }
+
+    /**
+     * Parses the line encoded to UTF-8 into a buffer owned by this parser,
+     * optionally erasing mIRC color codes from the encoded bytes in place
+     * before parsing. CTCP delimiters are kept so that {@link #isCtcp()}
+     * still works.
+     *
+     * @param line the IRC line
+     * @param stripColors if {@code true}, the colors are stripped by
+     *            {@link IRCUtil#stripColors(ByteBuffer, int, int, boolean)}
+     * @return this parser
+     */
+    public IRCByteParser reset(CharSequence line, boolean stripColors) {
+        int capacity = IRCUtil.maxUTF8Length(line.length());
+        if (encoded == null || encoded.capacity() < capacity) {
+            encoded = ByteBuffer.allocate(Math.max(capacity, 2 * (encoded == null ? 256 : encoded.capacity())));
+        }
+        int len = IRCUtil.encodeUTF8(line, encoded.array(), 0);
+        if (stripColors) {
+            len = IRCUtil.stripColors(encoded, 0, len, false);
+        }
+        encoded.clear();
+        encoded.limit(len);
+        return reset(encoded);
+    }
+
+    /**
+     * Parses the bytes between the position and the limit of the given
+     * buffer, discarding the previously parsed line.
+     *
+     * @param buf the buffer holding a UTF-8 encoded IRC line
+     * @return this parser
+     */
+    public IRCByteParser reset(ByteBuffer buf) {
+        parse(buf);
+        return this;
+    }
+
+    /**
+     * Records the boundaries of prefix, command, middle and trailing.
+     *
+     * @param buf the buffer holding a UTF-8 encoded IRC line
+     */
+    private void parse(ByteBuffer buf) {
+        this.buf = buf;
+        this.paramCount = -1;
+        int len = buf.limit();
+        while (len > buf.position() && (buf.get(len - 1) == '\n' || buf.get(len - 1) == '\r')) {
+            len--;
+        }
+        int lineStart = buf.position();
+        this.lineEnd = len;
+        line.set(buf, lineStart, len);
+
+        int index = lineStart;
+
+        // tags
+        if (index < len && buf.get(index) == '@') {
+            int space = indexOf(' ', index);
+            if (space == -1) {
+                space = len;
+            }
+            tags.set(buf, index + 1, space);
+            index = space;
+            while (index < len && buf.get(index) == ' ') {
+                index++;
+            }
+        } else {
+            tags.set(buf, index, index);
+        }
+        this.messageStart = index;
+
+        // prefix
+        if (index < len && buf.get(index) == ':') {
+            int space = indexOf(' ', index);
+            if (space == -1) {
+                space = len;
+            }
+            prefix.set(buf, index + 1, space);
+            index = (space < len) ? space + 1 : len;
+        } else {
+            prefix.set(buf, index, index);
+        }
+
+        while (index < len && buf.get(index) == ' ') {
+            index++;
+        }
+
+        // command
+        int commandStart = index;
+        index = indexOf(' ', index);
+        if (index == -1) {
+            index = len;
+        }
+        command.set(buf, commandStart, index);
+
+        while (index < len && buf.get(index) == ' ') {
+            index++;
+        }
+        index--;
+
+        // middle & trailing
+        int trail = indexOfSpaceColon(index);
+        trailingColon = trail != -1;
+        if (trail != -1) {
+            trailing.set(buf, trail + 2, len);
+        } else if ((trail = lastIndexOfSpace()) != -1 && trail >= index) {
+            trailing.set(buf, trail + 1, len);
+        } else {
+            trailing.set(buf, len, len);
+        }
+        if (index < trail) {
+            middle.set(buf, index + 1, trail);
+        } else {
+            middle.set(buf, len, len);
+        }
+    }
+
+    /**
+     * Splits the middle into words and appends the trailing, if it is not
+     * empty, as last parameter. Only the offsets are stored.
+     */
+    private void initParameters() {
+        int n = 0;
+        int end = middle.getEnd();
+        int i = middle.getStart();
+        while (i < end) {
+            while (i < end && buf.get(i) == ' ') {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int start = i;
+            while (i < end && buf.get(i) != ' ') {
+                i++;
+            }
+            n = addParameter(n, start, i);
+        }
+        if (trailing.byteLength() != 0) {
+            n = addParameter(n, trailing.getStart(), trailing.getEnd());
+        }
+        paramCount = n;
+    }
+
+    /**
+     * Stores the offsets of a parameter, growing {@link #params} if
+     * necessary.
+     *
+     * @param n the number of parameters stored so far
+     * @param start the absolute index of the first byte of the parameter
+     * @param end the absolute index behind the last byte of the parameter
+     * @return the new number of parameters
+     */
+    private int addParameter(int n, int start, int end) {
+        if (2 * n + 1 >= params.length) {
+            int[] newParams = new int[2 * params.length];
+            System.arraycopy(params, 0, newParams, 0, params.length);
+            params = newParams;
+        }
+        params[2 * n] = start;
+        params[2 * n + 1] = end;
+        return n + 1;
+    }
+
+    /**
+     * Searches for a byte in the line from a given index.
+     *
+     * @param c the byte to search
+     * @param i the absolute index to start at
+     * @return the absolute index of the byte or {@code -1}
+     */
+    private int indexOf(int c, int i) {
+        return indexOf(c, i, lineEnd);
+    }
+
+    /**
+     * Searches for a space followed by a colon from a given index.
+     *
+     * @param i the absolute index to start at
+     * @return the absolute index of the space or {@code -1}
+     */
+    private int indexOfSpaceColon(int i) {
+        if (i < messageStart) {
+            i = messageStart;
+        }
+        for (int last = lineEnd - 1; i < last; i++) {
+            if (buf.get(i) == ' ' && buf.get(i + 1) == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Searches for the last space in the line that is followed by a non-space
+     * character. Spaces at the very end of the line are skipped, so that also
+     * in lines with trailing whitespace the trailing-part is correctly
+     * recognized. See {@link IRCParser} for details.
+     *
+     * @return the absolute index of the space or {@code -1}
+     */
+    private int lastIndexOfSpace() {
+        boolean ok = false;
+        for (int i = lineEnd - 1; i >= messageStart; i--) {
+            if (buf.get(i) != ' ') {
+                ok = true;
+            } else if (ok) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the buffer the line is parsed from
+     */
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return the whole line including the tags but without the trailing
+     *         CR-LF
+     */
+    public IRCByteSlice getLine() {
+        return line;
+    }
+
+    /**
+     * Returns the IRCv3 message tags of the line. The tags are decoded on the
+     * first access. The returned object is reused by this parser and only
+     * valid until the next reset.
+     *
+     * @return the tags; empty if the line has none
+     */
+    public IRCTags getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the line's prefix without the leading colon; an empty slice if
+     *         the line has no prefix
+     */
+    public IRCByteSlice getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the line's command
+     */
+    public IRCByteSlice getCommand() {
+        return command;
+    }
+
+    /**
+     * Returns the numeric reply code if the command is a three-digit number.
+     * No exception is thrown and nothing is allocated for other commands.
+     *
+     * @return the reply or error code or {@code -1} if the command is not a
+     *         three-digit number
+     */
+    public int getReplyCode() {
+        if (command.byteLength() != 3) {
+            return -1;
+        }
+        int d0 = command.byteAt(0) - '0';
+        int d1 = command.byteAt(1) - '0';
+        int d2 = command.byteAt(2) - '0';
+        if ((d0 | d1 | d2) < 0 || d0 > 9 || d1 > 9 || d2 > 9) {
+            return -1;
+        }
+        return 100 * d0 + 10 * d1 + d2;
+    }
+
+    /**
+     * @return the line's middle
+     */
+    public IRCByteSlice getMiddle() {
+        return middle;
+    }
+
+    /**
+     * @return the line's trailing
+     */
+    public IRCByteSlice getTrailing() {
+        return trailing;
+    }
+
+    /**
+     * @return the number of parameters, i.e. the words of the middle plus the
+     *         trailing if it is not empty
+     * @see IRCParser#getParameterCount()
+     */
+    public int getParameterCount() {
+        if (paramCount == -1) {
+            initParameters();
+        }
+        return paramCount;
+    }
+
+    /**
+     * Returns one parameter of the line. The returned slice is reused by this
+     * parser for the same index, so it is only valid until the next reset.
+     *
+     * @param i the index of the parameter; the index starts with 1 and not
+     *            with 0
+     * @return the {@code i}th parameter; an empty slice if {@code i} is out of
+     *         bounds
+     * @see IRCParser#getParameter(int)
+     */
+    public IRCByteSlice getParameter(int i) {
+        int count = getParameterCount();
+        if (paramSlices.length <= count) {
+            IRCByteSlice[] newSlices = new IRCByteSlice[Math.max(count + 1, 2 * paramSlices.length)];
+            System.arraycopy(paramSlices, 0, newSlices, 0, paramSlices.length);
+            for (int j = paramSlices.length; j < newSlices.length; j++) {
+                newSlices[j] = new IRCByteSlice(null, 0, 0);
+            }
+            paramSlices = newSlices;
+        }
+        if (i < 1 || i > count) {
+            IRCByteSlice empty = paramSlices[0];
+            empty.set(buf, lineEnd, lineEnd);
+            return empty;
+        }
+        IRCByteSlice result = paramSlices[i];
+        result.set(buf, params[2 * i - 2], params[2 * i - 1]);
+        return result;
+    }
+
+    /**
+     * Tells whether the trailing is a CTCP message, i.e. whether its first
+     * and its last byte are the {@link CTCPCommand#QUOTE_CHAR}. Only these two
+     * bytes are looked at.
+     *
+     * @return {@code true} if the trailing is a CTCP message
+     */
+    public boolean isCtcp() {
+        int len = trailing.byteLength();
+        return len >= 2 && trailing.byteAt(0) == CTCPCommand.QUOTE_CHAR
+                && trailing.byteAt(len - 1) == CTCPCommand.QUOTE_CHAR;
+    }
+
+    /**
+     * Returns the verb of a CTCP message, for example {@code ACTION} in
+     * {@code ACTION waves} enclosed in {@link CTCPCommand#QUOTE_CHAR}s. The
+     * slice is reused by this parser and only valid until the next reset.
+     *
+     * @return the verb or {@code null} if the trailing is no CTCP message
+     * @see #isCtcp()
+     */
+    public IRCByteSlice getCtcpVerb() {
+        if (!isCtcp()) {
+            return null;
+        }
+        int start = trailing.getStart() + 1;
+        int end = trailing.getEnd() - 1;
+        int space = indexOf(' ', start, end);
+        ctcpVerb.set(buf, start, (space != -1) ? space : end);
+        return ctcpVerb;
+    }
+
+    /**
+     * Returns the argument of a CTCP message, for example {@code waves} in
+     * {@code ACTION waves} enclosed in {@link CTCPCommand#QUOTE_CHAR}s. The
+     * slice is reused by this parser and only valid until the next reset.
+     *
+     * @return the argument, empty if there is none, or {@code null} if the
+     *         trailing is no CTCP message
+     * @see #isCtcp()
+     */
+    public IRCByteSlice getCtcpArgument() {
+        if (!isCtcp()) {
+            return null;
+        }
+        int start = trailing.getStart() + 1;
+        int end = trailing.getEnd() - 1;
+        int space = indexOf(' ', start, end);
+        ctcpArgument.set(buf, (space != -1) ? space + 1 : end, end);
+        return ctcpArgument;
+    }
+
+    /**
+     * Returns the parameters from the {@code from}th to the {@code to}th, both
+     * inclusive, separated by single spaces. The indexes are clamped to the
+     * existing parameters. If the parameters are separated by single spaces in
+     * the line, which is the common case, a slice of the line is returned and
+     * nothing is copied; the slice is reused by this parser and only valid
+     * until the next reset. Otherwise, for example if the range spans middle
+     * and a trailing introduced by a space-colon, the parameters are joined
+     * into a new {@link String}.
+     *
+     * @param from the index of the first parameter, starting with 1
+     * @param to the index of the last parameter
+     * @return the parameters; empty if the range is empty
+     * @see IRCParser#getParametersFrom(int)
+     * @see IRCParser#getParametersTo(int)
+     */
+    public CharSequence getParameters(int from, int to) {
+        int count = getParameterCount();
+        if (from < 1) {
+            from = 1;
+        }
+        if (to > count) {
+            to = count;
+        }
+        if (from > to) {
+            range.set(buf, lineEnd, lineEnd);
+            return range;
+        }
+        for (int i = from; i < to; i++) {
+            if (params[2 * i] != params[2 * i - 1] + 1) {
+                return join(from, to);
+            }
+        }
+        range.set(buf, params[2 * from - 2], params[2 * to - 1]);
+        return range;
+    }
+
+    /**
+     * @param from the index of the first parameter, starting with 1
+     * @param to the index of the last parameter, at most the number of
+     *            parameters
+     * @return the parameters separated by single spaces
+     */
+    private String join(int from, int to) {
+        StringBuilder sb = new StringBuilder(params[2 * to - 1] - params[2 * from - 2]);
+        for (int i = from; i <= to; i++) {
+            if (i > from) {
+                sb.append(' ');
+            }
+            sb.append(IRCByteSlice.decode(buf, params[2 * i - 2], params[2 * i - 1]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the nickname of the person or the name of the server which sent
+     * the line. See {@link IRCParser#getNick()}.
+     *
+     * @return the nickname or the servername or {@code null} if the line has
+     *         no prefix
+     */
+    public IRCByteSlice getNick() {
+        int start = prefix.getStart();
+        int end = prefix.getEnd();
+        int i = indexOf('!', start, end);
+        if (i != -1 || (i = indexOf('@', start, end)) != -1) {
+            nick.set(buf, start, i);
+            return nick;
+        }
+        return (start != end) ? prefix : null;
+    }
+
+    /**
+     * Returns the username of the person who sent the line. See
+     * {@link IRCParser#getUsername()}.
+     *
+     * @return the username or {@code null} if it's not given
+     */
+    public IRCByteSlice getUsername() {
+        int end = prefix.getEnd();
+        int i = indexOf('!', prefix.getStart(), end);
+        if (i == -1) {
+            return null;
+        }
+        int j = indexOf('@', i + 1, end);
+        username.set(buf, i + 1, (j != -1) ? j : end);
+        return username;
+    }
+
+    /**
+     * Returns the host of the person who sent the line. See
+     * {@link IRCParser#getHost()}.
+     *
+     * @return the host or {@code null} if it's not given
+     */
+    public IRCByteSlice getHost() {
+        int end = prefix.getEnd();
+        int i = indexOf('@', prefix.getStart(), end);
+        if (i == -1) {
+            return null;
+        }
+        host.set(buf, i + 1, end);
+        return host;
+    }
+
+    /**
+     * Searches for a byte in the given range of the buffer.
+     *
+     * @param c the byte to search
+     * @param from the absolute index to start at
+     * @param to the absolute index to stop before
+     * @return the absolute index of the byte or {@code -1}
+     */
+    private int indexOf(int c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Its format is: <code>classname[prefix,command,middle,trailing]</code>.
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + prefix + "," + command + "," + middle + "," + trailing + "]";
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link CharSequence} view of a UTF-8 encoded region of a
+ * {@link ByteBuffer}. The bytes are neither copied nor decoded when the slice
+ * is created. Slices consisting of ASCII bytes only are served directly from
+ * the buffer; other slices are decoded once on first character access and the
+ * resulting {@link String} is cached.
+ * <p>
+ * A slice does not own its bytes: it is only valid as long as the underlying
+ * region of the buffer is not overwritten.
+ *
+ * @see IRCByteParser
+ */
+public class IRCByteSlice implements CharSequence {
+
+    /** The charset of all IRC lines handled by this class. */
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** {@link #ascii} has not been computed yet. */
+    private static final byte ASCII_UNKNOWN = -1;
+
+    /** The buffer the slice is pointing to. */
+    private ByteBuffer buf;
+
+    /** The absolute index of the first byte of this slice in {@link #buf}. */
+    private int start;
+
+    /** The absolute index behind the last byte of this slice in {@link #buf}. */
+    private int end;
+
+    /**
+     * {@code 1} if all bytes of the slice are ASCII, {@code 0} if not and
+     * {@link #ASCII_UNKNOWN} if not checked yet.
+     */
+    private byte ascii = ASCII_UNKNOWN;
+
+    /** The decoded content, set on first demand. */
+    private String string;
+
+    /**
+     * Creates a new slice of the bytes from {@code start} (inclusive) to
+     * {@code end} (exclusive) of the given buffer. The indexes are absolute,
+     * i.e. they do not depend on the buffer's position.
+     *
+     * @param buf the buffer holding UTF-8 encoded bytes
+     * @param start the absolute index of the first byte
+     * @param end the absolute index behind the last byte
+     */
+    public IRCByteSlice(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Points this slice to another region. Used by {@link IRCByteParser} to
+     * reuse its slices.
+     *
+     * @param buf the buffer holding UTF-8 encoded bytes
+     * @param start the absolute index of the first byte
+     * @param end the absolute index behind the last byte
+     */
+    void set(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+        this.ascii = ASCII_UNKNOWN;
+        this.string = null;
+    }
+
+    /**
+     * @return the absolute index of the first byte of this slice
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return the absolute index behind the last byte of this slice
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the number of bytes in this slice
+     */
+    public int byteLength() {
+        return end - start;
+    }
+
+    /**
+     * @param i the index relative to the start of this slice
+     * @return the byte at the given index
+     */
+    public byte byteAt(int i) {
+        return buf.get(start + i);
+    }
+
+    /**
+     * @return {@code true} if this slice consists of ASCII bytes only
+     */
+    public boolean isAscii() {
+        if (ascii == ASCII_UNKNOWN) {
+            ascii = 1;
+            for (int i = start; i < end; i++) {
+                if (buf.get(i) < 0) {
+                    ascii = 0;
+                    break;
+                }
+            }
+        }
+        return ascii == 1;
+    }
+
+    /**
+     * Compares this slice with the given ASCII string ignoring the case of
+     * ASCII letters. Nothing is decoded or allocated.
+     *
+     * @param str the ASCII string to compare with
+     * @return {@code true} if the bytes of the slice equal the given string
+     */
+    public boolean equalsIgnoreCase(String str) {
+        int len = str.length();
+        if (len != end - start) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            int b = buf.get(start + i);
+            int c = str.charAt(i);
+            if (b != c && IRCUtil.toLowerAscii(b) != IRCUtil.toLowerAscii(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see java.lang.CharSequence#length()
+     */
+    @Override
+    public int length() {
+        return isAscii() ? end - start : toString().length();
+    }
+
+    /**
+     * @see java.lang.CharSequence#charAt(int)
+     */
+    @Override
+    public char charAt(int index) {
+        if (isAscii()) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index + " out of range 0.." + (end - start));
+            }
+            return (char) buf.get(start + index);
+        }
+        return toString().charAt(index);
+    }
+
+    /**
+     * @see java.lang.CharSequence#subSequence(int, int)
+     */
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (isAscii()) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException("range " + from + ".." + to + " out of range 0.."
+                        + (end - start));
+            }
+            return new IRCByteSlice(buf, start + from, start + to);
+        }
+        return toString().subSequence(from, to);
+    }
+
+    /**
+     * Decodes the bytes of this slice. The result is cached so that the
+     * decoding happens at most once.
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if (string == null) {
+            string = decode(buf, start, end);
+        }
+        return string;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes from {@code start} (inclusive) to {@code end}
+     * (exclusive) of the given buffer.
+     *
+     * @param buf the buffer to read from
+     * @param start the absolute index of the first byte
+     * @param end the absolute index behind the last byte
+     * @return the decoded {@link String}
+     */
+    static String decode(ByteBuffer buf, int start, int end) {
+        if (start == end) {
+            return "";
+        }
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + start, end - start, UTF_8);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+}
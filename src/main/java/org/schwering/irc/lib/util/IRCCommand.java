@@ -903,6 +903,14 @@ public enum IRCCommand {
     WHOWAS;
 
     private static final Map<String, IRCCommand> FAST_LOOKUP;
+    /**
+     * An open-addressing hash table of all commands keyed by the
+     * case-insensitive {@link #hash(IRCByteSlice)} of their names. Its size is
+     * a power of two larger than four times the number of commands, so that
+     * virtually every lookup succeeds or fails at the first slot.
+     */
+    private static final IRCCommand[] HASH_LOOKUP;
+    private static final int HASH_MASK;
     static {
         Map<String, IRCCommand> fastLookUp = new HashMap<String, IRCCommand>(64);
         IRCCommand[] directives = values();
@@ -910,6 +918,17 @@ public enum IRCCommand {
             fastLookUp.put(directive.name(), directive);
         }
         FAST_LOOKUP = Collections.unmodifiableMap(fastLookUp);
+
+        int size = Integer.highestOneBit(directives.length * 4) << 1;
+        HASH_MASK = size - 1;
+        HASH_LOOKUP = new IRCCommand[size];
+        for (IRCCommand directive : directives) {
+            int i = hash(directive.name()) & HASH_MASK;
+            while (HASH_LOOKUP[i] != null) {
+                i = (i + 1) & HASH_MASK;
+            }
+            HASH_LOOKUP[i] = directive;
+        }
     }
 
     /**
@@ -925,4 +944,90 @@ public enum IRCCommand {
         return FAST_LOOKUP.get(command);
     }
 
+    /**
+     * A case-insensitive lookup working directly on the bytes of the given
+     * {@code command} as received from the server. Neither a {@link String}
+     * is created nor the bytes are decoded.
+     *
+     * @param command
+     *            the command as an {@link IRCByteSlice}
+     * @return the {@link IRCCommand} that corresponds to the given
+     *         {@code command} or {@code null} if no such command exists
+     */
+    public static IRCCommand fastValueOf(IRCByteSlice command) {
+        int h = 0;
+        for (int i = 0, len = command.byteLength(); i < len; i++) {
+            h = 31 * h + (command.byteAt(i) | 0x20);
+        }
+        for (int i = h & HASH_MASK; HASH_LOOKUP[i] != null; i = (i + 1) & HASH_MASK) {
+            if (command.equalsIgnoreCase(HASH_LOOKUP[i].name())) {
+                return HASH_LOOKUP[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A case-insensitive lookup of the characters from {@code start} to
+     * {@code end} of the given text, for example the command word of an
+     * outgoing line, without creating a substring.
+     *
+     * @param text
+     *            the text containing the command
+     * @param start
+     *            the index of the command's first character
+     * @param end
+     *            the index behind the command's last character
+     * @return the {@link IRCCommand} that corresponds to the given range or
+     *         {@code null} if no such command exists
+     */
+    public static IRCCommand fastValueOf(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + (text.charAt(i) | 0x20);
+        }
+        for (int i = h & HASH_MASK; HASH_LOOKUP[i] != null; i = (i + 1) & HASH_MASK) {
+            String name = HASH_LOOKUP[i].name();
+            if (name.length() == end - start && regionMatchesIgnoreCase(text, start, name)) {
+                return HASH_LOOKUP[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param text the text
+     * @param start the index in {@code text} to compare from
+     * @param name the upper case name of a command
+     * @return {@code true} if the text matches the name at the given index,
+     *         ignoring the case of ASCII letters
+     */
+    private static boolean regionMatchesIgnoreCase(CharSequence text, int start, String name) {
+        for (int i = 0, len = name.length(); i < len; i++) {
+            char c = text.charAt(start + i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The same hash as computed by {@link #fastValueOf(IRCByteSlice)}: ASCII
+     * letters are folded to lower case.
+     *
+     * @param name the name of a command
+     * @return the hash
+     */
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0, len = name.length(); i < len; i++) {
+            h = 31 * h + (name.charAt(i) | 0x20);
+        }
+        return h;
+    }
+
 }
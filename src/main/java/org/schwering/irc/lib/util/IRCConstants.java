@@ -56,4 +56,31 @@ public interface IRCConstants {
      */
     char COLOR_REVERSE_INDICATOR = 22; // ASCII code
 
+    /**
+     * This is part of the mIRC code and shows that italics starts / ends.
+     * Here it is as the ASCII decimal int 29.
+     */
+    char ITALIC_INDICATOR = 29; // ASCII code
+
+    /**
+     * This is part of the mIRC code and shows that strikethrough starts /
+     * ends.
+     * Here it is as the ASCII decimal int 30.
+     */
+    char STRIKETHROUGH_INDICATOR = 30; // ASCII code
+
+    /**
+     * This is part of the mIRC code and shows that monospace starts / ends.
+     * Here it is as the ASCII decimal int 17.
+     */
+    char MONOSPACE_INDICATOR = 17; // ASCII code
+
+    /**
+     * This is part of the mIRC code and shows that a hex color-code starts /
+     * ends. It is followed by six hexadecimal digits (<code>RRGGBB</code>),
+     * optionally followed by a comma and six more for the background.
+     * Here it is as the ASCII decimal int 4.
+     */
+    char HEX_COLOR_INDICATOR = 4; // ASCII code
+
 }
@@ -0,0 +1,410 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+/**
+ * A message split into its plain text and a table of style runs, produced in
+ * a single scan over the mIRC control characters defined in
+ * {@link IRCConstants}.
+ * <p>
+ * Each run covers the characters from {@link #getRunStart(int)} (inclusive)
+ * to {@link #getRunEnd(int)} (exclusive) of {@link #getText()} and has a
+ * style packed into one {@code long}: the flags {@link #BOLD},
+ * {@link #UNDERLINE}, {@link #ITALIC}, {@link #STRIKETHROUGH},
+ * {@link #MONOSPACE} and {@link #REVERSE}, plus an optional foreground and
+ * background color which is either an mIRC color index or a 24-bit RGB value.
+ * Use the static accessors such as {@link #getForeground(long)} to unpack a
+ * style. Only styled text is covered by runs; adjacent runs always differ in
+ * style.
+ * <p>
+ * The codes are interpreted as mIRC does: {@code 0x02} toggles bold and
+ * {@code 0x1F} underline. Note that the constants
+ * {@link IRCConstants#UNDERLINE_INDICATOR} and
+ * {@link IRCConstants#BOLD_INDICATOR} carry these two values the other way
+ * round.
+ * <p>
+ * An instance can be reused for any number of messages by calling
+ * {@link #parse(CharSequence)} again; its arrays only grow.
+ *
+ * @see IRCUtil#stripColors(CharSequence, boolean)
+ */
+public class IRCFormattedText implements IRCConstants {
+
+    /** Style flag for bold text. */
+    public static final int BOLD = 1;
+
+    /** Style flag for underlined text. */
+    public static final int UNDERLINE = 2;
+
+    /** Style flag for italic text. */
+    public static final int ITALIC = 4;
+
+    /** Style flag for struck through text. */
+    public static final int STRIKETHROUGH = 8;
+
+    /** Style flag for monospace text. */
+    public static final int MONOSPACE = 16;
+
+    /** Style flag for text with foreground and background swapped. */
+    public static final int REVERSE = 32;
+
+    /** The mIRC code for bold. */
+    private static final char BOLD_CODE = 0x02;
+
+    /** The mIRC code for underline. */
+    private static final char UNDERLINE_CODE = 0x1F;
+
+    /** The bits of the flags. */
+    private static final long FLAGS_MASK = 0xFFL;
+
+    /** The bit offset of the foreground color. */
+    private static final int FG_SHIFT = 8;
+
+    /** The bit offset of the background color. */
+    private static final int BG_SHIFT = 32;
+
+    /** The bits of a color value once shifted down. */
+    private static final long COLOR_MASK = 0xFFFFFFL;
+
+    /** Set if a foreground color is given. */
+    private static final long FG_SET = 1L << 56;
+
+    /** Set if the foreground color is RGB rather than an mIRC index. */
+    private static final long FG_RGB = 1L << 57;
+
+    /** Set if a background color is given. */
+    private static final long BG_SET = 1L << 58;
+
+    /** Set if the background color is RGB rather than an mIRC index. */
+    private static final long BG_RGB = 1L << 59;
+
+    /** All bits belonging to the foreground color. */
+    private static final long FG_BITS = (COLOR_MASK << FG_SHIFT) | FG_SET | FG_RGB;
+
+    /** All bits belonging to the background color. */
+    private static final long BG_BITS = (COLOR_MASK << BG_SHIFT) | BG_SET | BG_RGB;
+
+    /** The plain text. */
+    private char[] text = new char[512];
+
+    /** The length of the plain text. */
+    private int length;
+
+    /** The cached plain text. */
+    private String string;
+
+    /** The start offsets of the runs. */
+    private int[] starts = new int[16];
+
+    /** The end offsets of the runs. */
+    private int[] ends = new int[16];
+
+    /** The packed styles of the runs. */
+    private long[] styles = new long[16];
+
+    /** The number of runs. */
+    private int runCount;
+
+    /**
+     * Creates an empty instance; call {@link #parse(CharSequence)} to fill
+     * it.
+     */
+    public IRCFormattedText() {
+        super();
+    }
+
+    /**
+     * Creates an instance holding the given message.
+     *
+     * @param str the message containing mIRC codes
+     */
+    public IRCFormattedText(CharSequence str) {
+        parse(str);
+    }
+
+    /**
+     * Scans a message once, discarding the previous one. All mIRC codes are
+     * removed from the text and turned into style runs. The CTCP delimiter is
+     * kept as part of the text.
+     *
+     * @param str the message containing mIRC codes
+     * @return this instance
+     */
+    public IRCFormattedText parse(CharSequence str) {
+        int len = str.length();
+        if (text.length < len) {
+            text = new char[Math.max(len, 2 * text.length)];
+        }
+        length = 0;
+        string = null;
+        runCount = 0;
+        long style = 0;
+        int runStart = 0;
+        int i = 0;
+        while (i < len) {
+            char c = str.charAt(i);
+            if (c >= ' ') {
+                text[length++] = c;
+                i++;
+                continue;
+            }
+            long newStyle = style;
+            int next = i + 1;
+            switch (c) {
+            case BOLD_CODE:
+                newStyle ^= BOLD;
+                break;
+            case UNDERLINE_CODE:
+                newStyle ^= UNDERLINE;
+                break;
+            case ITALIC_INDICATOR:
+                newStyle ^= ITALIC;
+                break;
+            case STRIKETHROUGH_INDICATOR:
+                newStyle ^= STRIKETHROUGH;
+                break;
+            case MONOSPACE_INDICATOR:
+                newStyle ^= MONOSPACE;
+                break;
+            case COLOR_REVERSE_INDICATOR:
+                newStyle ^= REVERSE;
+                break;
+            case COLOR_END_INDICATOR:
+                newStyle = 0;
+                break;
+            case COLOR_INDICATOR:
+                int fgEnd = IRCUtil.skipDigits(str, next, len);
+                if (fgEnd == next) {
+                    newStyle &= ~(FG_BITS | BG_BITS);
+                    break;
+                }
+                newStyle = (newStyle & ~FG_BITS) | FG_SET | ((long) parseDecimal(str, next, fgEnd) << FG_SHIFT);
+                next = fgEnd;
+                if (next < len && str.charAt(next) == ',') {
+                    int bgEnd = IRCUtil.skipDigits(str, next + 1, len);
+                    if (bgEnd > next + 1) {
+                        newStyle = (newStyle & ~BG_BITS) | BG_SET
+                                | ((long) parseDecimal(str, next + 1, bgEnd) << BG_SHIFT);
+                        next = bgEnd;
+                    }
+                }
+                break;
+            case HEX_COLOR_INDICATOR:
+                if (!IRCUtil.isHexColor(str, next, len)) {
+                    newStyle &= ~(FG_BITS | BG_BITS);
+                    break;
+                }
+                newStyle = (newStyle & ~FG_BITS) | FG_SET | FG_RGB | ((long) parseHex(str, next) << FG_SHIFT);
+                next += 6;
+                if (next < len && str.charAt(next) == ',' && IRCUtil.isHexColor(str, next + 1, len)) {
+                    newStyle = (newStyle & ~BG_BITS) | BG_SET | BG_RGB | ((long) parseHex(str, next + 1) << BG_SHIFT);
+                    next += 7;
+                }
+                break;
+            default:
+                text[length++] = c;
+                break;
+            }
+            if (newStyle != style) {
+                addRun(runStart, length, style);
+                style = newStyle;
+                runStart = length;
+            }
+            i = next;
+        }
+        addRun(runStart, length, style);
+        return this;
+    }
+
+    /**
+     * Appends a run unless it is empty or unstyled.
+     *
+     * @param start the start offset in the text
+     * @param end the end offset in the text
+     * @param style the packed style
+     */
+    private void addRun(int start, int end, long style) {
+        if (start == end || style == 0) {
+            return;
+        }
+        if (runCount > 0 && ends[runCount - 1] == start && styles[runCount - 1] == style) {
+            ends[runCount - 1] = end;
+            return;
+        }
+        if (runCount == starts.length) {
+            int[] newStarts = new int[2 * runCount];
+            int[] newEnds = new int[2 * runCount];
+            long[] newStyles = new long[2 * runCount];
+            System.arraycopy(starts, 0, newStarts, 0, runCount);
+            System.arraycopy(ends, 0, newEnds, 0, runCount);
+            System.arraycopy(styles, 0, newStyles, 0, runCount);
+            starts = newStarts;
+            ends = newEnds;
+            styles = newStyles;
+        }
+        starts[runCount] = start;
+        ends[runCount] = end;
+        styles[runCount] = style;
+        runCount++;
+    }
+
+    /**
+     * @return the decimal value of the digits from {@code from} to {@code to}
+     */
+    private static int parseDecimal(CharSequence str, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            value = 10 * value + str.charAt(i) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * @return the value of the six hex digits starting at {@code from}
+     */
+    private static int parseHex(CharSequence str, int from) {
+        int value = 0;
+        for (int i = from; i < from + 6; i++) {
+            value = (value << 4) | Character.digit(str.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * @return the message without any mIRC codes
+     */
+    public String getText() {
+        if (string == null) {
+            string = new String(text, 0, length);
+        }
+        return string;
+    }
+
+    /**
+     * @return the length of the plain text
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the number of style runs
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @param i the index of the run, starting with 0
+     * @return the offset of the run's first character in the plain text
+     */
+    public int getRunStart(int i) {
+        checkRun(i);
+        return starts[i];
+    }
+
+    /**
+     * @param i the index of the run, starting with 0
+     * @return the offset behind the run's last character in the plain text
+     */
+    public int getRunEnd(int i) {
+        checkRun(i);
+        return ends[i];
+    }
+
+    /**
+     * @param i the index of the run, starting with 0
+     * @return the run's packed style
+     */
+    public long getRunStyle(int i) {
+        checkRun(i);
+        return styles[i];
+    }
+
+    /**
+     * @param i the index of a run
+     */
+    private void checkRun(int i) {
+        if (i < 0 || i >= runCount) {
+            throw new IndexOutOfBoundsException("Run " + i + " out of range 0.." + runCount);
+        }
+    }
+
+    /**
+     * @param style a packed style
+     * @return the flags such as {@link #BOLD} or {@link #ITALIC}
+     */
+    public static int getFlags(long style) {
+        return (int) (style & FLAGS_MASK);
+    }
+
+    /**
+     * @param style a packed style
+     * @return {@code true} if a foreground color is set
+     */
+    public static boolean hasForeground(long style) {
+        return (style & FG_SET) != 0;
+    }
+
+    /**
+     * @param style a packed style
+     * @return {@code true} if the foreground color is a 24-bit RGB value,
+     *         {@code false} if it is an mIRC color index
+     */
+    public static boolean isForegroundRGB(long style) {
+        return (style & FG_RGB) != 0;
+    }
+
+    /**
+     * @param style a packed style
+     * @return the foreground color or {@code -1} if none is set
+     */
+    public static int getForeground(long style) {
+        return hasForeground(style) ? (int) ((style >>> FG_SHIFT) & COLOR_MASK) : -1;
+    }
+
+    /**
+     * @param style a packed style
+     * @return {@code true} if a background color is set
+     */
+    public static boolean hasBackground(long style) {
+        return (style & BG_SET) != 0;
+    }
+
+    /**
+     * @param style a packed style
+     * @return {@code true} if the background color is a 24-bit RGB value,
+     *         {@code false} if it is an mIRC color index
+     */
+    public static boolean isBackgroundRGB(long style) {
+        return (style & BG_RGB) != 0;
+    }
+
+    /**
+     * @param style a packed style
+     * @return the background color or {@code -1} if none is set
+     */
+    public static int getBackground(long style) {
+        return hasBackground(style) ? (int) ((style >>> BG_SHIFT) & COLOR_MASK) : -1;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getText();
+    }
+
+}
@@ -0,0 +1,365 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The features a server announces through {@link IRCReply#RPL_ISUPPORT}
+ * ({@code 005}) lines, such as {@code CHANMODES=b,k,l,imnpst} or
+ * {@code PREFIX=(ov)@+}.
+ * <p>
+ * All tokens are kept as name-value pairs. The {@code CHANMODES} and
+ * {@code PREFIX} tokens are additionally compiled into a lookup table which
+ * tells for each channel mode whether it takes an argument; see
+ * {@link #getModeType(char)}. Until the server announces them, the RFC1459
+ * defaults {@code CHANMODES=b,k,l,imnpst} and {@code PREFIX=(ov)@+} apply.
+ * <p>
+ * Only the tokens are thread-safe: {@link #get(String)},
+ * {@link #getTargetMax(String)} and {@link #getChannelLimit(char)} may be
+ * called from any thread, the other methods not.
+ * {@link org.schwering.irc.lib.impl.DefaultIRCConnection} updates its
+ * instance from the thread which dispatches the incoming lines.
+ *
+ * @see IRCModeParser
+ */
+public class IRCISupport {
+
+    /** The mode is unknown; it is treated as taking no argument. */
+    public static final int MODE_TYPE_UNKNOWN = 0;
+
+    /**
+     * {@code CHANMODES} type A: a list mode such as {@code b}; it always takes
+     * an argument.
+     */
+    public static final int MODE_TYPE_A = 1;
+
+    /**
+     * {@code CHANMODES} type B: a setting such as {@code k}; it always takes
+     * an argument.
+     */
+    public static final int MODE_TYPE_B = 2;
+
+    /**
+     * {@code CHANMODES} type C: a setting such as {@code l}; it takes an
+     * argument only when it is set.
+     */
+    public static final int MODE_TYPE_C = 3;
+
+    /**
+     * {@code CHANMODES} type D: a flag such as {@code m}; it never takes an
+     * argument.
+     */
+    public static final int MODE_TYPE_D = 4;
+
+    /**
+     * A {@code PREFIX} mode such as {@code o}; it always takes a nickname as
+     * argument.
+     */
+    public static final int MODE_TYPE_PREFIX = 5;
+
+    /** The {@code CHANMODES} assumed until the server announces its own. */
+    private static final String DEFAULT_CHANMODES = "b,k,l,imnpst";
+
+    /** The {@code PREFIX} assumed until the server announces its own. */
+    private static final String DEFAULT_PREFIX = "(ov)@+";
+
+    /** The mode types of the ASCII characters. */
+    private final byte[] modeTypes = new byte[128];
+
+    /** The announced tokens. */
+    private final Map<String, String> tokens = new ConcurrentHashMap<String, String>();
+
+    /** The prefix modes in order of rank, for example {@code ov}. */
+    private String prefixModes;
+
+    /** The prefix symbols belonging to {@link #prefixModes}, e.g. {@code @+}. */
+    private String prefixSymbols;
+
+    /**
+     * Creates an instance with the RFC1459 defaults.
+     */
+    public IRCISupport() {
+        reset();
+    }
+
+    /**
+     * Forgets all announced tokens and restores the RFC1459 defaults, for
+     * example when reconnecting to another server.
+     */
+    public void reset() {
+        tokens.clear();
+        setChanModes(DEFAULT_CHANMODES);
+        setPrefix(DEFAULT_PREFIX);
+    }
+
+    /**
+     * Takes the tokens of an {@link IRCReply#RPL_ISUPPORT} line. The first
+     * parameter (the own nickname) and the human readable trailing are
+     * skipped.
+     *
+     * @param p the parser holding the {@code 005} line
+     */
+    public void update(IRCByteParser p) {
+        int count = p.getParameterCount();
+        for (int i = 2; i <= count; i++) {
+            IRCByteSlice token = p.getParameter(i);
+            if (token.byteLength() != 0 && indexOf(token, ' ') == -1) {
+                update(token.toString());
+            }
+        }
+    }
+
+    /**
+     * Takes a single token such as {@code NETWORK=Example}, {@code EXCEPTS}
+     * or {@code -EXCEPTS}; the latter removes the token again.
+     *
+     * @param token the token
+     */
+    public void update(String token) {
+        if (token.startsWith("-")) {
+            String name = token.substring(1);
+            tokens.remove(name);
+            if ("CHANMODES".equals(name)) {
+                setChanModes(DEFAULT_CHANMODES);
+            } else if ("PREFIX".equals(name)) {
+                setPrefix(DEFAULT_PREFIX);
+            }
+            return;
+        }
+        int eq = token.indexOf('=');
+        String name = (eq != -1) ? token.substring(0, eq) : token;
+        String value = (eq != -1) ? token.substring(eq + 1) : "";
+        tokens.put(name, value);
+        if ("CHANMODES".equals(name)) {
+            setChanModes(value);
+        } else if ("PREFIX".equals(name)) {
+            setPrefix(value);
+        }
+    }
+
+    /**
+     * Compiles a {@code CHANMODES} value into {@link #modeTypes}. The prefix
+     * modes are kept.
+     *
+     * @param value the value, for example {@code beI,k,l,imnpst}
+     */
+    private void setChanModes(String value) {
+        for (int i = 0; i < modeTypes.length; i++) {
+            if (modeTypes[i] != MODE_TYPE_PREFIX) {
+                modeTypes[i] = MODE_TYPE_UNKNOWN;
+            }
+        }
+        int type = MODE_TYPE_A;
+        for (int i = 0, len = value.length(); i < len && type <= MODE_TYPE_D; i++) {
+            char c = value.charAt(i);
+            if (c == ',') {
+                type++;
+            } else if (c < modeTypes.length && modeTypes[c] != MODE_TYPE_PREFIX) {
+                modeTypes[c] = (byte) type;
+            }
+        }
+    }
+
+    /**
+     * Compiles a {@code PREFIX} value into {@link #modeTypes}.
+     *
+     * @param value the value, for example {@code (qaohv)~&@%+}
+     */
+    private void setPrefix(String value) {
+        if (prefixModes != null) {
+            for (int i = 0; i < prefixModes.length(); i++) {
+                char c = prefixModes.charAt(i);
+                if (c < modeTypes.length) {
+                    modeTypes[c] = MODE_TYPE_UNKNOWN;
+                }
+            }
+        }
+        int close = value.indexOf(')');
+        if (value.startsWith("(") && close != -1) {
+            prefixModes = value.substring(1, close);
+            prefixSymbols = value.substring(close + 1);
+        } else {
+            prefixModes = "";
+            prefixSymbols = "";
+        }
+        for (int i = 0; i < prefixModes.length(); i++) {
+            char c = prefixModes.charAt(i);
+            if (c < modeTypes.length) {
+                modeTypes[c] = MODE_TYPE_PREFIX;
+            }
+        }
+    }
+
+    /**
+     * @param slice the slice to search
+     * @param c the ASCII character to search
+     * @return the index of the character or {@code -1}
+     */
+    private static int indexOf(IRCByteSlice slice, int c) {
+        for (int i = 0, len = slice.byteLength(); i < len; i++) {
+            if (slice.byteAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param mode the channel mode
+     * @return one of the {@code MODE_TYPE_*} constants
+     */
+    public int getModeType(char mode) {
+        return (mode < modeTypes.length) ? modeTypes[mode] : MODE_TYPE_UNKNOWN;
+    }
+
+    /**
+     * @param mode the channel mode
+     * @param adding {@code true} if the mode is set ({@code +}),
+     *            {@code false} if it is unset ({@code -})
+     * @return {@code true} if the mode consumes an argument
+     */
+    public boolean takesArgument(char mode, boolean adding) {
+        switch (getModeType(mode)) {
+        case MODE_TYPE_A:
+        case MODE_TYPE_B:
+        case MODE_TYPE_PREFIX:
+            return true;
+        case MODE_TYPE_C:
+            return adding;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the prefix modes in order of rank, for example {@code ov}
+     */
+    public String getPrefixModes() {
+        return prefixModes;
+    }
+
+    /**
+     * @return the prefix symbols in order of rank, for example {@code @+}
+     */
+    public String getPrefixSymbols() {
+        return prefixSymbols;
+    }
+
+    /**
+     * @param name the name of a token, for example {@code NETWORK}
+     * @return {@code true} if the server announced the token
+     */
+    public boolean containsKey(String name) {
+        return tokens.containsKey(name);
+    }
+
+    /**
+     * @param name the name of a token, for example {@code NETWORK}
+     * @return the value of the token, {@code ""} if it has no value, or
+     *         {@code null} if the server did not announce it
+     */
+    public String get(String name) {
+        return tokens.get(name);
+    }
+
+    /**
+     * Looks the command up in the {@code TARGMAX} token, for example
+     * {@code TARGMAX=PRIVMSG:4,JOIN:,PART:}.
+     *
+     * @param command the command, for example {@code JOIN}
+     * @return the maximum number of targets per line or {@code -1} if the
+     *         server announced no limit
+     */
+    public int getTargetMax(String command) {
+        String value = tokens.get("TARGMAX");
+        if (value == null) {
+            return -1;
+        }
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon != -1 && entry.substring(0, colon).equalsIgnoreCase(command)) {
+                int max = IRCUtil.parseInt(entry.substring(colon + 1));
+                return (max > 0) ? max : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks the channel prefix up in the {@code CHANLIMIT} token, for example
+     * {@code CHANLIMIT=#&:100,+:}, or falls back to the older
+     * {@code MAXCHANNELS} token.
+     *
+     * @param prefix the first character of a channel name, for example
+     *            {@code '#'}
+     * @return the maximum number of channels with this prefix one may be on
+     *         or {@code -1} if the server announced no limit
+     */
+    public int getChannelLimit(char prefix) {
+        String value = tokens.get("CHANLIMIT");
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon != -1 && entry.lastIndexOf(prefix, colon - 1) != -1) {
+                    int max = IRCUtil.parseInt(entry.substring(colon + 1));
+                    return (max > 0) ? max : -1;
+                }
+            }
+            return -1;
+        }
+        int max = IRCUtil.parseInt(tokens.get("MAXCHANNELS"));
+        return (max > 0) ? max : -1;
+    }
+
+    /**
+     * Tells which channel prefixes share the limit of
+     * {@link #getChannelLimit(char)}: a {@code CHANLIMIT} entry such as
+     * {@code #&:100} limits the channels of both prefixes together, and
+     * {@code MAXCHANNELS} limits the channels of all prefixes together.
+     *
+     * @param prefix the first character of a channel name, for example
+     *            {@code '#'}
+     * @return the prefixes whose channels count against the same limit, for
+     *         example {@code "#&"}, or {@code null} if the server announced
+     *         no limit
+     */
+    public String getChannelLimitPrefixes(char prefix) {
+        String value = tokens.get("CHANLIMIT");
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon != -1 && entry.lastIndexOf(prefix, colon - 1) != -1) {
+                    int max = IRCUtil.parseInt(entry.substring(colon + 1));
+                    return (max > 0) ? entry.substring(0, colon) : null;
+                }
+            }
+            return null;
+        }
+        if (IRCUtil.parseInt(tokens.get("MAXCHANNELS")) <= 0)
+            return null;
+        String types = tokens.get("CHANTYPES");
+        return (types != null && types.length() != 0) ? types : "#&";
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + tokens;
+    }
+
+}
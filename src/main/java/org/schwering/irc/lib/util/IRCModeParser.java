@@ -42,15 +42,32 @@ import org.schwering.irc.lib.IRCUser;
  * These are all channel-modes defined in RFC1459. Nevertheless, most
  * networks provide more channel-modes. This class can handle all modes; it's
  * not restricted to the rights defined in RFC1459.
+ * <p>
+ * Which of the modes take an argument is decided by an {@link IRCISupport}:
+ * a parser created with {@link #IRCModeParser(IRCISupport)} follows the
+ * <code>CHANMODES</code> and <code>PREFIX</code> tokens the server announced,
+ * so that for example <code>h</code>, <code>q</code>, <code>e</code> or
+ * <code>I</code> get their arguments. Such a parser can be reset for every
+ * <code>MODE</code> line and keeps operators, modes and argument offsets in
+ * reusable arrays. The parsers handed to listeners are never reset, so
+ * listeners may keep them.
  * @author Christoph Schwering &lt;schwering@gmail.com&gt;
  * @see IRCEventListener#onMode(String, IRCUser, IRCModeParser)
  * @see IRCUser
  */
 public class IRCModeParser {
 
+    /** The RFC1459 mode types used by the parsers created without ISUPPORT. */
+    private static final IRCISupport RFC1459 = new IRCISupport();
+
+    /**
+     * Tells which modes take arguments.
+     */
+    private final IRCISupport isupport;
+
     /**
      * Represents the operators, modes and nicks as they were sent from the IRC
-     * server.
+     * server; built from {@link #chars} on demand.
      */
     private String line;
 
@@ -58,19 +75,51 @@ public class IRCModeParser {
      * Contains pluses (<code>+</code>) and minuses (<code>-</code>) which show
      * if the mode is taken or given.
      */
-    private char[] operatorsArr;
+    private char[] operatorsArr = new char[8];
 
     /**
      * This array contains the modes that are set with the operator of the
      * <code>operatorsArr</code>-array. *
      */
-    private char[] modesArr;
+    private char[] modesArr = new char[8];
+
+    /**
+     * The start offsets of the arguments in {@link #chars}; <code>-1</code> if
+     * the mode has no argument.
+     */
+    private int[] argStarts = new int[8];
+
+    /**
+     * The end offsets of the arguments in {@link #chars}.
+     */
+    private int[] argEnds = new int[8];
+
+    /**
+     * The number of modes.
+     */
+    private int count;
+
+    /**
+     * The modes followed by the space-separated arguments.
+     */
+    private char[] chars = new char[64];
 
     /**
-     * Represents the parsed nicks, hostnames, limits or keys in an array of
-     * Strings.
+     * The number of characters in {@link #chars}.
      */
-    private String[] argsArr;
+    private int charCount;
+
+    /**
+     * The offsets of the argument words in {@link #chars} before they are
+     * assigned to the modes: start at <code>2 * n</code>, end at
+     * <code>2 * n + 1</code>.
+     */
+    private int[] words = new int[16];
+
+    /**
+     * The number of argument words.
+     */
+    private int wordCount;
 
 
     /**
@@ -80,21 +129,15 @@ public class IRCModeParser {
      * @param line The modes and the arguments; nothing more.
      */
     public IRCModeParser(String line) {
+        this.isupport = RFC1459;
         line = line.trim();
-        this.line = line;
         int index = line.indexOf(' ');
         if (index >= 2) { // with arguments
-            String modes = line.substring(0, index);
-            String args  = line.substring(index + 1);
-            parse(modes, args); // call real constructor.
+            reset(line.substring(0, index), line.substring(index + 1));
         } else if (line.length() >= 2) { // no arguments
-            String modes = line;
-            String args = "";
-            parse(modes, args);
+            reset(line, "");
         } else { // nothing
-            argsArr = new String[0];
-            operatorsArr = new char[0];
-            modesArr = new char[0];
+            reset("", "");
         }
     }
 
@@ -108,64 +151,182 @@ public class IRCModeParser {
      *             Thomas</code>).
      */
     public IRCModeParser(String modes, String args) {
-        line = modes +" "+ args;
-        parse(modes, args);
+        this.isupport = RFC1459;
+        reset(modes, args);
     }
 
 
     /**
-     * Parses the modes into two <code>char</code>-arrays and one
-     * <code>String</code>-array.
-     * The first one contains the operator of the mode (<code>+</code> or
-     * </code>-</code>) and the second one the mode (<code>w</code>,
-     * <code>i</code>, <code>s</code>, <code>o</code> or any other mode).
-     * The <code>String[]</code> contains the nicknames.
+     * Creates an empty parser which decides by the <code>CHANMODES</code> and
+     * <code>PREFIX</code> tokens of the given {@link IRCISupport} which modes
+     * take arguments. The parser is meant to be reused: call
+     * {@link #reset(CharSequence, CharSequence)} or
+     * {@link #reset(IRCByteParser, int)} for each <code>MODE</code> line.
+     * Its arrays only grow, so that parsing does not allocate once they are
+     * large enough.
+     * @param isupport The server's features; changes to it take effect with
+     *                 the next reset.
+     */
+    public IRCModeParser(IRCISupport isupport) {
+        this.isupport = isupport;
+    }
+
+
+    /**
+     * Parses new modes and arguments, discarding the previous ones.
      * @param modes The modes (for example <code>+oo+m-v</code>).
-     * @param args The modes' arguments (for example <code>Heinz Hans
-     *             Thomas</code>).
+     * @param args The modes' arguments separated by spaces (for example
+     *             <code>Heinz Hans Thomas</code>).
+     * @return This parser.
+     */
+    public IRCModeParser reset(CharSequence modes, CharSequence args) {
+        begin(modes);
+        int len = args.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && args.charAt(i) == ' ')
+                i++;
+            int start = i;
+            while (i < len && args.charAt(i) != ' ')
+                i++;
+            if (i > start)
+                addWord(args, start, i);
+        }
+        assign();
+        return this;
+    }
+
+
+    /**
+     * Parses the modes and arguments of a <code>MODE</code> line, discarding
+     * the previous ones. The modes are the parameter at <code>index</code>,
+     * the arguments are all following parameters.
+     * @param p The parser holding the <code>MODE</code> line.
+     * @param index The index of the parameter holding the modes, usually
+     *              <code>2</code>; the index starts with <code>1</code>.
+     * @return This parser.
+     */
+    public IRCModeParser reset(IRCByteParser p, int index) {
+        begin(p.getParameter(index));
+        for (int i = index + 1, n = p.getParameterCount(); i <= n; i++) {
+            IRCByteSlice word = p.getParameter(i);
+            if (word.byteLength() != 0)
+                addWord(word, 0, word.length());
+        }
+        assign();
+        return this;
+    }
+
+
+    /**
+     * Clears the parser and copies the modes into <code>chars</code>.
+     * @param modes The modes (for example <code>+oo+m-v</code>).
+     */
+    private void begin(CharSequence modes) {
+        line = null;
+        count = 0;
+        charCount = 0;
+        wordCount = 0;
+        append(modes, 0, modes.length());
+    }
+
+
+    /**
+     * Appends an argument word to <code>chars</code>, separated by a space.
+     * @param str The string holding the word.
+     * @param start The index of the first character of the word.
+     * @param end The index behind the last character of the word.
+     */
+    private void addWord(CharSequence str, int start, int end) {
+        append(" ", 0, 1);
+        if (2 * wordCount + 1 >= words.length) {
+            int[] newWords = new int[2 * words.length];
+            System.arraycopy(words, 0, newWords, 0, words.length);
+            words = newWords;
+        }
+        words[2 * wordCount] = charCount;
+        append(str, start, end);
+        words[2 * wordCount + 1] = charCount;
+        wordCount++;
+    }
+
+
+    /**
+     * Appends characters to <code>chars</code>, growing it if necessary.
+     * @param str The string holding the characters.
+     * @param start The index of the first character.
+     * @param end The index behind the last character.
+     */
+    private void append(CharSequence str, int start, int end) {
+        int needed = charCount + end - start;
+        if (needed > chars.length) {
+            char[] newChars = new char[Math.max(needed, 2 * chars.length)];
+            System.arraycopy(chars, 0, newChars, 0, charCount);
+            chars = newChars;
+        }
+        for (int i = start; i < end; i++)
+            chars[charCount++] = str.charAt(i);
+    }
+
+
+    /**
+     * Splits the modes at the beginning of <code>chars</code> into operators
+     * and modes and assigns the argument words to the modes which take an
+     * argument according to the {@link IRCISupport}.
      */
-    private void parse(String modes, String args) {
-        String[] argsTmp = IRCUtil.split(args, ' ');
-        int modesLen = modes.length();
-        int modesCount = getModesCount(modes);
-        char c;
+    private void assign() {
+        int modesLen = (wordCount > 0) ? words[0] - 1 : charCount;
         char operator = '+'; // any value cause it must be initialized
-        operatorsArr = new char[modesCount];
-        modesArr = new char[modesCount];
-        argsArr = new String[modesCount];
-        // parse and fill the arrays
-        for (int i = 0, j = 0, n = 0; i < modesLen; i++) {
-            c = modes.charAt(i);
+        for (int i = 0, j = 0; i < modesLen; i++) {
+            char c = chars[i];
             if (c == '+' || c == '-') {
                 operator = c;
+                continue;
+            }
+            if (count == modesArr.length)
+                grow();
+            operatorsArr[count] = operator;
+            modesArr[count] = c;
+            if (isupport.takesArgument(c, operator == '+') && j < wordCount) {
+                argStarts[count] = words[2 * j];
+                argEnds[count] = words[2 * j + 1];
+                j++;
             } else {
-                // add the operator (which was found earlier in the loop)
-                operatorsArr[n] = operator;
-                modesArr[n] = c; // add the mode
-                if ((c == 'o' || c == 'v' || c == 'b' || c == 'k') // come with arg
-                        || (c == 'l' && operator == '+')) { // key comes with arg if '+'
-                    argsArr[n] = (j < argsTmp.length) ? argsTmp[j++] : "";
-                } else {
-                    argsArr[n] = ""; // null if mode has no argument (for example m, p, s)
-                }
-                n++; // increase n, not i. n is used to fill the arrays
+                argStarts[count] = -1; // "" if mode has no argument (for example m, p, s)
+                argEnds[count] = -1;
             }
+            count++;
         }
     }
 
 
     /**
-     * Returns the amount of modes in the string. This is done by counting all
-     * chars which are not <code>+</code> or <code>-</code>.
-     * @param modes The modes which are to analyze.
-     * @return The count of modes without operators.
+     * Doubles the per-mode arrays.
      */
-    private int getModesCount(String modes) {
-        int count = 0;
-        for (int i = 0, c, len = modes.length(); i < len; i++)
-            if ((c = modes.charAt(i)) != '+' && c != '-')
-                count++;
-        return count;
+    private void grow() {
+        int n = 2 * modesArr.length;
+        char[] newOperators = new char[n];
+        char[] newModes = new char[n];
+        int[] newArgStarts = new int[n];
+        int[] newArgEnds = new int[n];
+        System.arraycopy(operatorsArr, 0, newOperators, 0, count);
+        System.arraycopy(modesArr, 0, newModes, 0, count);
+        System.arraycopy(argStarts, 0, newArgStarts, 0, count);
+        System.arraycopy(argEnds, 0, newArgEnds, 0, count);
+        operatorsArr = newOperators;
+        modesArr = newModes;
+        argStarts = newArgStarts;
+        argEnds = newArgEnds;
+    }
+
+
+    /**
+     * Checks a one-based index.
+     * @param i The index.
+     */
+    private void check(int i) {
+        if (i < 1 || i > count)
+            throw new IndexOutOfBoundsException("Mode " + i + " out of range 1.." + count);
     }
 
 
@@ -177,7 +338,7 @@ public class IRCModeParser {
      * @see #getArgAt(int)
      */
     public int getCount() {
-        return operatorsArr.length;
+        return count;
     }
 
 
@@ -191,6 +352,7 @@ public class IRCModeParser {
      * @see #getArgAt(int)
      */
     public char getOperatorAt(int i) {
+        check(i);
         return operatorsArr[i - 1];
     }
 
@@ -207,6 +369,7 @@ public class IRCModeParser {
      * @see #getArgAt(int)
      */
     public char getModeAt(int i) {
+        check(i);
         return modesArr[i - 1];
     }
 
@@ -223,7 +386,9 @@ public class IRCModeParser {
      * @see #getModeAt(int)
      */
     public String getArgAt(int i) {
-        return argsArr[i - 1];
+        check(i);
+        int start = argStarts[i - 1];
+        return (start != -1) ? new String(chars, start, argEnds[i - 1] - start) : "";
     }
 
 
@@ -234,6 +399,8 @@ public class IRCModeParser {
      * @return The line which was set as argument when the parser was initialized.
      */
     public String getLine() {
+        if (line == null)
+            line = new String(chars, 0, charCount);
         return line;
     }
 
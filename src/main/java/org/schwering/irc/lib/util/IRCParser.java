@@ -13,6 +13,8 @@
  */
 package org.schwering.irc.lib.util;
 
+import java.nio.ByteBuffer;
+
 import org.schwering.irc.lib.IRCUser;
 import org.schwering.irc.lib.impl.DefaultIRCConnection;
 import org.schwering.irc.lib.impl.DefaultIRCUser;
@@ -83,48 +85,20 @@ import org.schwering.irc.lib.impl.DefaultIRCUser;
  * </code>
  * @author Christoph Schwering &lt;schwering@gmail.com&gt;
  * @see DefaultIRCConnection
+ * @see IRCByteParser
  */
 public class IRCParser {
 
     /**
-     * The <code>StringBuilder</code> contains the line which was analyzed.
-     */
-    private StringBuilder buf;
-
-    /**
-     * The length of the line.
-     */
-    private int len;
-
-    /**
-     * The prefix, which is parsed out in the constructor.
-     */
-    private String prefix;
-
-    /**
-     * The command, which is parsed out in the constructor.
+     * The line which was analyzed. If colors are stripped, this is the line
+     * without the color codes.
      */
-    private String command;
+    private String line;
 
     /**
-     * The middle, which is parsed out in the constructor.
+     * The parser which does the actual work on the UTF-8 encoded line.
      */
-    private String middle;
-
-    /**
-     * The trailing, which is parsed out in the constructor. The trailing is the
-     * part behind the colon (<code>:</code>) or the last parameter.
-     */
-    private String trailing;
-
-    /**
-     * The parameters' array. It's not initialized in the constructor because of
-     * rare access. The methods which use and need this parameter-array
-     * (getParametersCount, getParameter, getParameterFrom etc.) initialize this
-     * array by calling initParameters, if the array isn't initialized yet.
-     */
-    private String[] parameters;
-
+    private IRCByteParser parser;
 
     /**
      * Parses the line after erasing all mIRC color codes.
@@ -138,125 +112,29 @@ public class IRCParser {
 
     /**
      * The main constructor.
-     * Parses prefix, command, middle and trailing.
+     * Parses prefix, command, middle and trailing. The work is delegated to
+     * an {@link IRCByteParser}; the parts are converted to
+     * <code>String</code>s not before they are requested.
      * @param line The line which will be parsed.
      * @param stripColors If <code>true</code>, mIRC color codes are parsed out
-     *                      by using {@link IRCUtil#stripColorsAndCTCPDelimiters(StringBuilder)} method.
+     *                      by using {@link IRCUtil#stripColors(CharSequence, boolean)} method.
      */
     public IRCParser(String line, boolean stripColors) {
-        int index = 0;
-        int trail;
-
-        buf = new StringBuilder(line);
         if (stripColors)
-            buf = IRCUtil.stripColorsAndCTCPDelimiters(buf);
-        len = buf.length();
-
-        // prefix
-        if (buf.charAt(0) == ':') {
-            prefix = buf.substring(1, (index = indexOf(' ', index)));
-            index++;
-        }
-
-        while (buf.charAt(index) == ' ')
-            index++;
-
-        // command
-        command = buf.substring(index, ((index = indexOf(' ', index)) != -1)
-                ? index : (index = len));
-
-        while (index < len && buf.charAt(index) == ' ')
-            index++;
-        index--;
-
-        // middle & trailing
-        if ((trail = indexOf(" :", index)) != -1)
-            trailing = buf.substring(trail + 2, len);
-        else if ((trail = lastIndexOf(' ')) != -1 && trail >= index)
-            trailing = buf.substring(trail + 1, len);
-        middle = (index < trail) ? buf.substring(index + 1, trail) : "";
-
-        // save
-        this.prefix = (prefix != null) ?  prefix : "";
-        this.command = (command != null) ?  command : "";
-        this.middle = (middle != null) ?  middle : "";
-        this.trailing = (trailing != null) ?  trailing : "";
-    }
-
-
-    /**
-     * Searches for a char in the <code>StringBuilder buf</code> from a given index
-     * and returns its index.
-     * @param c The char to search.
-     * @param i The index the method will start searching at.
-     * @return The index of the searched char.
-     */
-    private int indexOf(int c, int i) {
-        while (i < len)
-            if (buf.charAt(i++) == c)
-                return --i;
-        return -1;
-    }
-
-
-    /**
-     * Searches for a string in the <code>StringBuilder buf</code> from a given
-     * index and returns its beginning index.
-     * @param str The string to search.
-     * @param i The index the method will start searching at.
-     * @return The index of the searched string.
-     */
-    private int indexOf(String str, int i) {
-        int sublen = str.length();
-        int index = -1;
-        int j;
-        for ( ; i < len; i++)
-            for (index = i, j = 0; i < len && j < sublen; i++, j++)
-                if (buf.charAt(i) != str.charAt(j))
-                    break;
-                else if (j + 1 == sublen)
-                    return index;
-        return -1;
+            line = IRCUtil.stripColors(line, true);
+        this.line = line;
+        this.parser = new IRCByteParser(ByteBuffer.wrap(line.getBytes(IRCByteSlice.UTF_8)));
     }
 
 
     /**
-     * Searches for a given char in the <code>StringBuilder buf</code>.
-     * It starts at the end.
-     * Note: The method expects a character which is not <code>c</code> before
-     * it can return an index. Thus in a string like "<code>nick moor&nbsp;&nbsp;
-     * &nbsp;&nbsp;</code>" with four trailing spaces
-     * <code>lastIndexOf(' ')</code> does not return the the index of the last
-     * space. It first waits for characters which are not a space (r, o, o, m) and
-     * then returns the index of the next space: the space between
-     * <code>nick</code> and <code>moor</code>. By this, also in lines with
-     * trailing whitespace the trailing-part is correctly recognized.
-     * @param c The char to search.
-     * @return The last index of the searched char.
+     * Returns the IRCv3 message tags the line starts with, if any. A line with
+     * tags looks like <code>@time=...;msgid=... :prefix COMMAND ...</code>;
+     * the tags are not part of the prefix, command or parameters.
+     * @return The line's tags; empty if there are none.
      */
-    private int lastIndexOf(int c) {
-        int i = len;
-        boolean ok = false;
-        while (i > 0)
-            if (buf.charAt(--i) != c)
-                ok = true;
-            else if (ok)
-                return i;
-        return -1;
-    }
-
-
-    /**
-     * Initializes the <code>parameters[]</code>.
-     * This method is called by <code>getParam</code>, <code>getParamFrom</code>
-     * and <code>getParamTo</code>, if the <code>parameters[]</code> aren't
-     * initialized yet.
-     * The method splits the <code>middle</code> into all words using and appends
-     * the trailing as last parameter. It uses the <code>IRCUtil.split</code>
-     * method.
-     */
-    private void initParameters() {
-        parameters = IRCUtil.split(middle, ' ', trailing);
+    public IRCTags getTags() {
+        return parser.getTags();
     }
 
 
@@ -267,7 +145,7 @@ public class IRCParser {
      * @return The line's prefix.
      */
     public String getPrefix() {
-        return prefix;
+        return parser.getPrefix().toString();
     }
 
 
@@ -276,7 +154,7 @@ public class IRCParser {
      * @return The line's command.
      */
     public String getCommand() {
-        return command;
+        return parser.getCommand().toString();
     }
 
 
@@ -285,7 +163,7 @@ public class IRCParser {
      * @return The line's middle.
      */
     public String getMiddle() {
-        return middle;
+        return parser.getMiddle().toString();
     }
 
 
@@ -294,18 +172,18 @@ public class IRCParser {
      * @return The line's trailing.
      */
     public String getTrailing() {
-        return trailing;
+        return parser.getTrailing().toString();
     }
 
 
     /**
      * Returns the unparsed line. It looks exacttly as the server sent it, but
      * if colors are disabled and therefore already stripped away out by
-     * {@link IRCUtil#stripColorsAndCTCPDelimiters(StringBuilder)}, the colors are not included in here.
+     * {@link IRCUtil#stripColors(CharSequence, boolean)}, the colors are not included in here.
      * @return The line.
      */
     public String getLine() {
-        return buf.toString();
+        return line;
     }
 
 
@@ -315,6 +193,8 @@ public class IRCParser {
      * @return The line's parameters.
      */
     public String getParameters() {
+        String middle = getMiddle();
+        String trailing = getTrailing();
         return middle +
         ((middle.length() != 0 && trailing.length() != 0) ? " " : "") +
         trailing;
@@ -346,10 +226,7 @@ public class IRCParser {
      * @see #getUser()
      */
     public String getNick() {
-        int i = prefix.indexOf('!');
-        if (i != -1 || (i = prefix.indexOf('@')) != -1)
-            return prefix.substring(0, i);
-        return (prefix.length() != 0) ? prefix : null;
+        return asString(parser.getNick());
     }
 
 
@@ -400,12 +277,7 @@ public class IRCParser {
      * @see #getUser()
      */
     public String getUsername() {
-        int i = prefix.indexOf('!') + 1;
-        if (i != 0) {
-            int j = prefix.indexOf('@', i);
-            return prefix.substring(i, (j != -1) ? j : prefix.length());
-        }
-        return null;
+        return asString(parser.getUsername());
     }
 
 
@@ -429,10 +301,18 @@ public class IRCParser {
      * @see #getUser()
      */
     public String getHost() {
-        int i = prefix.indexOf('@') + 1;
-        if (i != 0)
-            return prefix.substring(i, prefix.length());
-        return null;
+        return asString(parser.getHost());
+    }
+
+
+    /**
+     * Converts a slice to a <code>String</code>.
+     * @param slice The slice or <code>null</code>.
+     * @return The decoded slice or <code>null</code> if <code>slice</code> is
+     *         <code>null</code>.
+     */
+    private static String asString(IRCByteSlice slice) {
+        return (slice != null) ? slice.toString() : null;
     }
 
 
@@ -455,74 +335,56 @@ public class IRCParser {
 
     /**
      * Gets count of parameters.
-     * If <code>parameters</code> isn't initialized yet, it calls
-     * <code>initParameters</code> to do that.
+     * The <code>middle</code> is split into its words only when the
+     * parameters are accessed for the first time; the words are not copied.
      * @return The number of parameters.
      */
     public int getParameterCount() {
-        if (parameters == null)
-            initParameters();
-        return parameters.length;
+        return parser.getParameterCount();
     }
 
 
     /**
      * Get one parameter of the line.
-     * If <code>parameters</code> isn't initialized yet, it calls
-     * <code>initParameters</code> to do that.
+     * The parameter is converted to a <code>String</code> on demand.
      * @param i The index of the parameter you want to get. The index starts with
      *          1 and not with 0.
      * @return The <code>i</code>th parameter. If <code>i</code> is out of bounds,
      *         <code>""</code> is returned.
      */
     public String getParameter(int i) {
-        if (parameters == null)
-            initParameters();
-        --i;
-        if (i >= 0 && i < parameters.length)
-            return parameters[i];
-        else
-            return "";
+        return parser.getParameter(i).toString();
     }
 
 
     /**
      * Grabs the line's parameters from the <code>i</code>th to the last
-     * parameter (including the <code>i</code>th).
-     * If <code>parameters</code> isn't initialized yet, it calls
-     * <code>initParameters</code> to do that.
+     * parameter (including the <code>i</code>th), separated by single spaces.
+     * Unlike in former versions, duplicate spaces between the parameters of
+     * the line are not kept and no space is appended to the last parameter.
      * @param i The index of the first parameter you want to get.
      * @return All parameters behind another beginning at the <code>i</code>th.
      *         If <code>i</code> is out of bounds, <code>""</code> is returned.
+     * @see IRCByteParser#getParameters(int, int)
      */
     public String getParametersFrom(int i) {
-        if (parameters == null)
-            initParameters();
-        StringBuilder params = new StringBuilder();
-        for (i--; i < parameters.length; i++)
-            params.append(parameters[i] +" ");
-        return params.toString();
+        return parser.getParameters(i, parser.getParameterCount()).toString();
     }
 
 
     /**
      * Grabs the line's parameters from the first to the <code>i</code>th
-     * parameters (including the <code>i</code>th).
-     * If <code>parameters</code> isn't initialized yet, it calls
-     * <code>initParameters</code> to do that.
+     * parameters (including the <code>i</code>th), separated by single spaces.
+     * Unlike in former versions, duplicate spaces between the parameters of
+     * the line are not kept and no space is appended to the last parameter.
      * @param i The index of the last parameter you want to get.
      * @return All parameters beginning at the first and ending at the
      *         <code>i</code>th.  If <code>i</code> is out of bounds,
      *         <code>""</code> is returned.
+     * @see IRCByteParser#getParameters(int, int)
      */
     public String getParametersTo(int i) {
-        if (parameters == null)
-            initParameters();
-        StringBuilder params = new StringBuilder();
-        int max = (i < parameters.length) ? i : parameters.length;
-        for (i = 0; i < max; i++)
-            params.append(parameters[i] +" ");
-        return params.toString();
+        return parser.getParameters(1, i).toString();
     }
 
 
@@ -533,7 +395,7 @@ public class IRCParser {
      * @return A <code>String</code> with information about the instance.
      */
     public String toString() {
-        return getClass().getName() +"["+ prefix +","+ command +","+ middle +","+
-        trailing +"]";
+        return getClass().getName() +"["+ getPrefix() +","+ getCommand() +","+ getMiddle() +","+
+        getTrailing() +"]";
     }
 }
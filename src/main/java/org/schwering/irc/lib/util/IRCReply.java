@@ -1239,9 +1239,298 @@ public enum IRCReply {
      * Error sent to any user trying to view or change the
      * user mode for a user other than themselves.
      */
-    ERR_USERSDONTMATCH(502)
+    ERR_USERSDONTMATCH(502),
+    /**
+     * Format: "Service &lt;class&gt; &lt;name&gt; &lt;type&gt; &lt;active type&gt;".
+     * Defined in RFC 2812, returned by TRACE.
+     */
+    RPL_TRACESERVICE(207),
+    /**
+     * Unused. Defined in RFC 2812.
+     */
+    RPL_TRACERECONNECT(210),
+    /**
+     * Reserved numeric defined in RFC 2812.
+     */
+    RPL_STATSVLINE(240),
+    /**
+     * Reserved numeric defined in RFC 2812.
+     */
+    RPL_STATSPING(246),
+    /**
+     * Reserved numeric defined in RFC 2812.
+     */
+    RPL_STATSDLINE(250),
+    /**
+     * Format: "&lt;server name&gt; &lt;version &amp; debug level&gt; End of TRACE".
+     * Sent by TRACE when the trace has reached its end. Defined in RFC 2812.
+     */
+    RPL_TRACEEND(262),
+    /**
+     * Format: "&lt;command&gt; Please wait a while and try again.".
+     * Returned when a server drops a command without processing it.
+     * Defined in RFC 2812.
+     */
+    RPL_TRYAGAIN(263),
+    /**
+     * Format: "&lt;channel&gt; &lt;nickname&gt;".
+     * Defined in RFC 2812.
+     */
+    RPL_UNIQOPIS(325),
+    /**
+     * Format: "&lt;channel&gt; &lt;invitemask&gt;".
+     * Lists the invitation masks of a channel. Defined in RFC 2812.
+     */
+    RPL_INVITELIST(346),
+    /**
+     * Format: "&lt;channel&gt; End of channel invite list".
+     * Defined in RFC 2812.
+     */
+    RPL_ENDOFINVITELIST(347),
+    /**
+     * Format: "&lt;channel&gt; &lt;exceptionmask&gt;".
+     * Lists the ban exception masks of a channel. Defined in RFC 2812.
+     */
+    RPL_EXCEPTLIST(348),
+    /**
+     * Format: "&lt;channel&gt; End of channel exception list".
+     * Defined in RFC 2812.
+     */
+    RPL_ENDOFEXCEPTLIST(349),
+    /**
+     * Format: "You are service &lt;servicename&gt;".
+     * Sent upon successful registration of a service. Defined in RFC 2812.
+     */
+    RPL_YOURESERVICE(383),
+    /**
+     * Format: "&lt;service name&gt; No such service".
+     * Returned to a client which is attempting to send a SQUERY to a service
+     * which does not exist. Defined in RFC 2812.
+     */
+    ERR_NOSUCHSERVICE(408),
+    /**
+     * Format: "&lt;mask&gt; Bad Server/host mask".
+     * Defined in RFC 2812.
+     */
+    ERR_BADMASK(415),
+    /**
+     * Format: "&lt;nick/channel&gt; Nick/channel is temporarily unavailable".
+     * Returned when the nick or channel is blocked by the nick delay
+     * mechanism. Defined in RFC 2812.
+     */
+    ERR_UNAVAILRESOURCE(437),
+    /**
+     * Format: "&lt;channel&gt; Channel doesn't support modes".
+     * Defined in RFC 2812.
+     */
+    ERR_NOCHANMODES(477),
+    /**
+     * Format: "&lt;channel&gt; &lt;char&gt; Channel list is full".
+     * Defined in RFC 2812.
+     */
+    ERR_BANLISTFULL(478),
+    /**
+     * Format: "Your connection is restricted!".
+     * Sent by the server to a user upon connection to indicate the restricted
+     * nature of the connection (user mode "+r"). Defined in RFC 2812.
+     */
+    ERR_RESTRICTED(484),
+    /**
+     * Format: "You're not the original channel operator".
+     * Defined in RFC 2812.
+     */
+    ERR_UNIQOPPRIVSNEEDED(485),
+    /**
+     * Format: "&lt;id&gt; your unique ID".
+     * Not defined in an RFC, but sent by many servers during registration.
+     */
+    RPL_YOURID(42),
+    /**
+     * Format: "[&lt;users&gt; &lt;max&gt;] Current local users: ...".
+     * Not defined in an RFC, but sent by most servers in reply to LUSERS.
+     */
+    RPL_LOCALUSERS(265),
+    /**
+     * Format: "[&lt;users&gt; &lt;max&gt;] Current global users: ...".
+     * Not defined in an RFC, but sent by most servers in reply to LUSERS.
+     */
+    RPL_GLOBALUSERS(266),
+    /**
+     * Format: "&lt;nick&gt; has client certificate fingerprint &lt;fingerprint&gt;".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISCERTFP(276),
+    /**
+     * Format: "&lt;channel&gt; &lt;url&gt;".
+     * Not defined in an RFC, sent on JOIN by some servers.
+     */
+    RPL_CHANNEL_URL(328),
+    /**
+     * Format: "&lt;channel&gt; &lt;creation time&gt;".
+     * Not defined in an RFC, sent together with RPL_CHANNELMODEIS.
+     */
+    RPL_CREATIONTIME(329),
+    /**
+     * Format: "&lt;nick&gt; is a bot".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISBOT(335),
+    /**
+     * Format: "&lt;nick&gt; &lt;host|ip&gt; Is actually using host".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISACTUALLY(338),
+    /**
+     * The reply to an extended WHO (WHOX) query; its format depends on the
+     * requested fields. Not defined in an RFC.
+     */
+    RPL_WHOSPCRPL(354),
+    /**
+     * Format: "&lt;nick&gt; is connecting from &lt;host&gt;".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISHOST(378),
+    /**
+     * Format: "&lt;nick&gt; is using modes &lt;modes&gt;".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISMODES(379),
+    /**
+     * Format: "&lt;host&gt; is now your displayed host".
+     * Not defined in an RFC, sent when a cloak or vhost is applied.
+     */
+    RPL_VISIBLEHOST(396),
+    /**
+     * Format: "Input line was too long".
+     * Not defined in an RFC.
+     */
+    ERR_INPUTTOOLONG(417),
+    /**
+     * Format: "&lt;target&gt; Target change too fast. Please wait &lt;seconds&gt; seconds.".
+     * Not defined in an RFC, returned when a client messages too many
+     * different targets in a short time.
+     */
+    ERR_TARGETTOOFAST(439),
+    /**
+     * Format: "&lt;service&gt; Services are currently unavailable".
+     * Not defined in an RFC.
+     */
+    ERR_SERVICESDOWN(440),
+    /**
+     * Format: "&lt;channel&gt; &lt;target channel&gt; Forwarding to another channel".
+     * Not defined in an RFC.
+     */
+    ERR_LINKCHANNEL(470),
+    /**
+     * Format: "&lt;subject&gt; No help available on this topic".
+     * Not defined in an RFC, returned by HELP.
+     */
+    ERR_HELPNOTFOUND(524),
+    /**
+     * Format: "&lt;channel&gt; Key is not well-formed".
+     * Not defined in an RFC.
+     */
+    ERR_INVALIDKEY(525),
+    /**
+     * Format: "STARTTLS successful, proceed with TLS handshake".
+     * Defined by the IRCv3 tls extension.
+     */
+    RPL_STARTTLS(670),
+    /**
+     * Format: "&lt;nick&gt; is using a secure connection".
+     * Not defined in an RFC, returned by WHOIS.
+     */
+    RPL_WHOISSECURE(671),
+    /**
+     * Format: "STARTTLS failed".
+     * Defined by the IRCv3 tls extension.
+     */
+    ERR_STARTTLS(691),
+    /**
+     * Format: "&lt;subject&gt; &lt;first line of help section&gt;".
+     * Not defined in an RFC, returned by HELP.
+     */
+    RPL_HELPSTART(704),
+    /**
+     * Format: "&lt;subject&gt; &lt;line of help text&gt;".
+     * Not defined in an RFC, returned by HELP.
+     */
+    RPL_HELPTXT(705),
+    /**
+     * Format: "&lt;subject&gt; &lt;last line of help text&gt;".
+     * Not defined in an RFC, returned by HELP.
+     */
+    RPL_ENDOFHELP(706),
+    /**
+     * Format: "&lt;priv&gt; Insufficient oper privileges.".
+     * Not defined in an RFC.
+     */
+    ERR_NOPRIVS(723),
+    /**
+     * Format: "&lt;target&gt;[,&lt;target&gt;]*".
+     * Sent by MONITOR when the listed targets are online.
+     */
+    RPL_MONONLINE(730),
+    /**
+     * Format: "&lt;target&gt;[,&lt;target&gt;]*".
+     * Sent by MONITOR when the listed targets are offline.
+     */
+    RPL_MONOFFLINE(731),
+    /**
+     * Format: "&lt;target&gt;[,&lt;target&gt;]*".
+     * Returned by MONITOR L.
+     */
+    RPL_MONLIST(732),
+    /**
+     * Format: "End of MONITOR list".
+     * Returned by MONITOR L.
+     */
+    RPL_ENDOFMONLIST(733),
+    /**
+     * Format: "&lt;limit&gt; &lt;targets&gt; Monitor list is full.".
+     * Returned by MONITOR + when the limit would be exceeded.
+     */
+    ERR_MONLISTFULL(734),
+    /**
+     * Format: "&lt;nick&gt;!&lt;ident&gt;@&lt;host&gt; &lt;account&gt; You are now logged in as &lt;user&gt;".
+     * Sent on successful SASL or services authentication.
+     */
+    RPL_LOGGEDIN(900),
+    /**
+     * Format: "&lt;nick&gt;!&lt;ident&gt;@&lt;host&gt; You are now logged out".
+     * Sent when the account name is cleared.
+     */
+    RPL_LOGGEDOUT(901),
+    /**
+     * Format: "You must use a nick assigned to you".
+     * Sent by SASL when the account is unavailable.
+     */
+    ERR_NICKLOCKED(902),
+    /**
+     * Format: "SASL authentication successful".
+     */
+    RPL_SASLSUCCESS(903),
+    /**
+     * Format: "SASL authentication failed".
+     */
+    ERR_SASLFAIL(904),
+    /**
+     * Format: "SASL message too long".
+     */
+    ERR_SASLTOOLONG(905),
+    /**
+     * Format: "SASL authentication aborted".
+     */
+    ERR_SASLABORTED(906),
+    /**
+     * Format: "You have already authenticated using SASL".
+     */
+    ERR_SASLALREADY(907),
+    /**
+     * Format: "&lt;mechanisms&gt; are available SASL mechanisms".
+     */
+    RPL_SASLMECHS(908);
 
-    ;
     private static final IRCReply[] CODE_LOOKUP;
     private static final int LOWEST_CODE;
     static {
@@ -1262,13 +1551,24 @@ public enum IRCReply {
             CODE_LOOKUP[getLookUpIndex(rpl.getCode())] = rpl;
         }
     }
+
+    /**
+     * An array-backed lookup by numeric code. The lookup is total: it never
+     * throws, whatever {@code code} is given.
+     *
+     * @param code
+     *            the numeric reply or error code
+     * @return the {@link IRCReply} with the given {@code code} or {@code null}
+     *         if no such reply is known
+     */
     public static IRCReply valueByCode(int code) {
-        return CODE_LOOKUP[getLookUpIndex(code)];
+        int i = getLookUpIndex(code);
+        return (i >= 0 && i < CODE_LOOKUP.length) ? CODE_LOOKUP[i] : null;
     }
 
     /**
-     * @param code2
-     * @return
+     * @param c the code
+     * @return the index of {@code c} in {@link #CODE_LOOKUP}
      */
     private static int getLookUpIndex(int c) {
         return c - LOWEST_CODE;
@@ -1276,16 +1576,26 @@ public enum IRCReply {
 
     private final int code;
 
+    private final boolean error;
 
     /**
-     * @param code
+     * @param code the numeric code
      */
     private IRCReply(int code) {
         this.code = code;
+        this.error = name().startsWith("ERR_");
     }
 
     public int getCode() {
         return code;
     }
 
+    /**
+     * @return {@code true} if this is a numeric error ({@code ERR_*}) rather
+     *         than a numeric reply ({@code RPL_*})
+     */
+    public boolean isError() {
+        return error;
+    }
+
 }
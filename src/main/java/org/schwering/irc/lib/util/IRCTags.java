@@ -0,0 +1,296 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The IRCv3 message tags of a line, such as {@code server-time},
+ * {@code msgid}, {@code account} or {@code batch}. See <a
+ * href="https://ircv3.net/specs/extensions/message-tags"
+ * >https://ircv3.net/specs/extensions/message-tags</a>.
+ * <p>
+ * When a line is parsed, only the boundaries of its tag section are recorded.
+ * The individual tags are split and their escaped values are decoded on the
+ * first access to any of them and stored in a small open-addressing hash
+ * table. Lines whose tags are never looked at therefore do not pay for tag
+ * decoding.
+ * <p>
+ * Instances are reused by {@link IRCByteParser}: the tags of a line are valid
+ * only until the parser is reset.
+ *
+ * @see IRCByteParser#getTags()
+ */
+public class IRCTags {
+
+    /** The buffer holding the line. */
+    private ByteBuffer buf;
+
+    /** The absolute index of the first byte behind the {@code @}. */
+    private int start;
+
+    /** The absolute index behind the last byte of the tag section. */
+    private int end;
+
+    /** {@code true} if the tag section was already decoded. */
+    private boolean decoded;
+
+    /** The number of tags. */
+    private int size;
+
+    /** The hash table's keys; its length is a power of two. */
+    private String[] keys = new String[16];
+
+    /** The values belonging to {@link #keys}. */
+    private String[] values = new String[16];
+
+    /** The keys in the order of their appearance in the line. */
+    private String[] order = new String[8];
+
+    /**
+     * Points this instance to a new tag section and discards the decoded
+     * tags of the previous one.
+     *
+     * @param buf the buffer holding the line
+     * @param start the absolute index of the first byte behind the {@code @}
+     * @param end the absolute index behind the last byte of the tag section
+     */
+    void set(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+        if (decoded && size > 0) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+        }
+        this.size = 0;
+        this.decoded = false;
+    }
+
+    /**
+     * @return {@code true} if the line had no tags
+     */
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    /**
+     * @return the number of tags
+     */
+    public int size() {
+        decode();
+        return size;
+    }
+
+    /**
+     * @param i the index of the tag in the order of appearance, starting with
+     *            0
+     * @return the key of the {@code i}th tag
+     */
+    public String getKeyAt(int i) {
+        decode();
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Tag " + i + " out of range 0.." + size);
+        }
+        return order[i];
+    }
+
+    /**
+     * @param key the key of the tag, including any client prefix ({@code +})
+     *            or vendor prefix
+     * @return {@code true} if a tag with the given key is present
+     */
+    public boolean containsKey(String key) {
+        decode();
+        return indexOf(key) != -1;
+    }
+
+    /**
+     * Returns the unescaped value of a tag. Tags without a value have the
+     * empty value {@code ""}.
+     *
+     * @param key the key of the tag, including any client prefix ({@code +})
+     *            or vendor prefix
+     * @return the value of the tag or {@code null} if it is not present
+     */
+    public String get(String key) {
+        decode();
+        int i = indexOf(key);
+        return (i != -1) ? values[i] : null;
+    }
+
+    /**
+     * @return the raw, still escaped tag section without the leading
+     *         {@code @}
+     */
+    public String getRaw() {
+        return IRCByteSlice.decode(buf, start, end);
+    }
+
+    /**
+     * @param key the key
+     * @return the slot of the key in {@link #keys} or {@code -1}
+     */
+    private int indexOf(String key) {
+        int mask = keys.length - 1;
+        for (int i = key.hashCode() & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits the tag section at the semicolons and decodes keys and values.
+     */
+    private void decode() {
+        if (decoded) {
+            return;
+        }
+        decoded = true;
+        int i = start;
+        while (i < end) {
+            int tagStart = i;
+            int eq = -1;
+            while (i < end && buf.get(i) != ';') {
+                if (eq == -1 && buf.get(i) == '=') {
+                    eq = i;
+                }
+                i++;
+            }
+            int keyEnd = (eq != -1) ? eq : i;
+            if (keyEnd > tagStart) {
+                String key = IRCByteSlice.decode(buf, tagStart, keyEnd);
+                String value = (eq != -1) ? unescape(eq + 1, i) : "";
+                put(key, value);
+            }
+            i++; // skip the semicolon
+        }
+    }
+
+    /**
+     * Adds a tag. A later tag with the same key replaces an earlier one.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    private void put(String key, String value) {
+        if (2 * (size + 1) > keys.length) {
+            rehash(2 * keys.length);
+        }
+        int mask = keys.length - 1;
+        int i = key.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (size == order.length) {
+            String[] newOrder = new String[2 * order.length];
+            System.arraycopy(order, 0, newOrder, 0, size);
+            order = newOrder;
+        }
+        order[size++] = key;
+    }
+
+    /**
+     * Grows the hash table.
+     *
+     * @param capacity the new capacity, a power of two
+     */
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        keys = new String[capacity];
+        values = new String[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = oldKeys[j].hashCode() & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Decodes an escaped tag value: {@code \:} is a semicolon, {@code \s} a
+     * space, {@code \\} a backslash, {@code \r} and {@code \n} are CR and LF.
+     * Any other escaped character stands for itself and a trailing lone
+     * backslash is dropped.
+     *
+     * @param from the absolute index of the first byte of the value
+     * @param to the absolute index behind the last byte of the value
+     * @return the unescaped value
+     */
+    private String unescape(int from, int to) {
+        int escape = -1;
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == '\\') {
+                escape = i;
+                break;
+            }
+        }
+        if (escape == -1) {
+            return IRCByteSlice.decode(buf, from, to);
+        }
+        byte[] bytes = new byte[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b != '\\') {
+                bytes[n++] = b;
+            } else if (++i < to) {
+                b = buf.get(i);
+                switch (b) {
+                case ':':
+                    bytes[n++] = ';';
+                    break;
+                case 's':
+                    bytes[n++] = ' ';
+                    break;
+                case 'r':
+                    bytes[n++] = '\r';
+                    break;
+                case 'n':
+                    bytes[n++] = '\n';
+                    break;
+                default:
+                    bytes[n++] = b;
+                    break;
+                }
+            }
+        }
+        return new String(bytes, 0, n, IRCByteSlice.UTF_8);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + getRaw() + "]";
+    }
+
+}
@@ -13,6 +13,9 @@
  */
 package org.schwering.irc.lib.util;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -33,6 +36,9 @@ import org.schwering.irc.lib.impl.DefaultIRCConnection;
  */
 public class IRCUtil implements IRCConstants {
 
+    /** Used to count substrings without storing their boundaries. */
+    private static final int[] EMPTY_BOUNDS = new int[0];
+
 
     /**
      * This is an empty constructor, it does nothing. Nobody may instantiate this
@@ -64,18 +70,201 @@ public class IRCUtil implements IRCConstants {
 
 
     /**
-     * Parses a <code>String</code> to an <code>int</code> via
-     * <code>Integer.parseInt</code> but avoids the
-     * <code>NumberFormatException</code>.
+     * Parses a <code>String</code> to an <code>int</code> like
+     * <code>Integer.parseInt</code> but without throwing a
+     * <code>NumberFormatException</code>. An optional sign is accepted.
      * @param str The <code>String</code> to parse.
      * @return The parsed new <code>int</code>. <code>-1</code> if
-     *         <code>NumberFormatException</code> was thrown.
+     *         <code>str</code> is no valid decimal <code>int</code>.
      */
     public static int parseInt(String str) {
-        try {
-            return Integer.parseInt(str);
-        } catch (NumberFormatException exc) {
+        int len = (str != null) ? str.length() : 0;
+        if (len == 0)
             return -1;
+        int i = 0;
+        boolean negative = false;
+        char c = str.charAt(0);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++i == len)
+                return -1;
+        }
+        long result = 0;
+        for (; i < len; i++) {
+            int digit = str.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            result = 10 * result + digit;
+            if (result > Integer.MAX_VALUE + 1L)
+                return -1;
+        }
+        if (negative)
+            result = -result;
+        return (result <= Integer.MAX_VALUE) ? (int) result : -1;
+    }
+
+
+    /**
+     * Converts an ASCII upper case letter to lower case. All other characters
+     * are returned unchanged. Unlike {@link Character#toLowerCase(int)} this
+     * does not consult the Unicode tables.
+     * @param c The character.
+     * @return The lower case variant of <code>c</code>.
+     */
+    public static int toLowerAscii(int c) {
+        return ('A' <= c && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+
+    /**
+     * Returns the maximum number of bytes the UTF-8 encoding of the given
+     * number of UTF-16 chars may take.
+     * @param chars The number of chars.
+     * @return The maximum number of bytes.
+     * @see #encodeUTF8(CharSequence, byte[], int)
+     */
+    public static int maxUTF8Length(int chars) {
+        return 3 * chars;
+    }
+
+
+    /**
+     * Encodes the given characters to UTF-8 without allocating anything.
+     * Unpaired surrogates are encoded as <code>?</code> like
+     * <code>String.getBytes</code> does.
+     * @param str The characters to encode.
+     * @param dst The array to write to. It must have at least
+     *            <code>maxUTF8Length(str.length())</code> bytes behind
+     *            <code>off</code>.
+     * @param off The index in <code>dst</code> to start writing at.
+     * @return The index behind the last written byte.
+     */
+    public static int encodeUTF8(CharSequence str, byte[] dst, int off) {
+        int len = str.length();
+        int i = 0;
+        // fast path for the usual ASCII lines
+        for (char c; i < len && (c = str.charAt(i)) < 0x80; i++)
+            dst[off++] = (byte) c;
+        for (; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                dst[off++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[off++] = (byte) (0xc0 | (c >> 6));
+                dst[off++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                dst[off++] = (byte) (0xf0 | (cp >> 18));
+                dst[off++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[off++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[off++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                dst[off++] = '?';
+            } else {
+                dst[off++] = (byte) (0xe0 | (c >> 12));
+                dst[off++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[off++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return off;
+    }
+
+
+    /**
+     * Returns the number of bytes <code>encodeUTF8</code> writes for the
+     * given characters.
+     * @param str The characters to encode.
+     * @return The number of bytes.
+     * @see #encodeUTF8(CharSequence, byte[], int)
+     */
+    public static int utf8Length(CharSequence str) {
+        int len = str.length();
+        int n = len;
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                n++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                n += 2; // two chars, four bytes
+                i++;
+            } else if (!Character.isHighSurrogate(c) && !Character.isLowSurrogate(c)) {
+                n += 2;
+            }
+        }
+        return n;
+    }
+
+
+    /**
+     * @param cp A code point; a surrogate is encoded as <code>?</code>.
+     * @return The number of bytes of its UTF-8 encoding.
+     */
+    private static int utf8Length(int cp) {
+        if (cp < 0x80)
+            return 1;
+        if (cp < 0x800)
+            return 2;
+        if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)
+            return 1;
+        return (cp < 0x10000) ? 3 : 4;
+    }
+
+
+    /**
+     * Splits a message into parts each of which takes at most
+     * <code>maxBytes</code> bytes in the given encoding. A part ends at the
+     * last space which fits, and the space is dropped; a word longer than a
+     * whole part is cut between two characters. Surrogate pairs and mIRC
+     * color codes are never cut.
+     * @param msg The message.
+     * @param maxBytes The maximum number of bytes per part, at least 14 so
+     *                 that the longest color code fits.
+     * @param charset The encoding of the message.
+     * @return The parts; a single part if the message fits.
+     */
+    public static List<String> splitMessage(String msg, int maxBytes, Charset charset) {
+        if (maxBytes < 14)
+            throw new IllegalArgumentException("Too few bytes per part: " + maxBytes);
+        boolean utf8 = IRCByteSlice.UTF_8.equals(charset);
+        List<String> parts = new ArrayList<String>();
+        int len = msg.length();
+        int start = 0;
+        while (true) {
+            int bytes = 0;
+            int space = -1;
+            int i = start;
+            while (i < len) {
+                int n = formattingLength(msg, i, len, false);
+                int size;
+                if (n != 0) {
+                    size = n; // color codes are ASCII
+                } else {
+                    int cp = msg.codePointAt(i);
+                    n = Character.charCount(cp);
+                    size = utf8 ? utf8Length(cp) : msg.substring(i, i + n).getBytes(charset).length;
+                }
+                if (msg.charAt(i) == ' ')
+                    space = i;
+                if (bytes + size > maxBytes)
+                    break;
+                bytes += size;
+                i += n;
+            }
+            if (i == len) {
+                parts.add(msg.substring(start));
+                return parts;
+            }
+            if (space > start) {
+                parts.add(msg.substring(start, space));
+                start = space + 1;
+            } else {
+                parts.add(msg.substring(start, i));
+                start = i;
+            }
         }
     }
 
@@ -87,14 +276,14 @@ public class IRCUtil implements IRCConstants {
      * target="_blank">http://www.mirc.co.uk/help/color.txt</a>.
      * <p>
      * Calling this method is equivalent to
-     * {@code IRCUtil.stripColors(new StringBuilder(str), false).toString()}.
+     * {@code IRCUtil.stripColors(str, false)}.
      *
      * @param str The line which should be parsed.
      * @return A line cleaned from any mIRC colorcodes.
      * @see #stripColorsAndCTCPDelimiters(StringBuilder)
      */
     public static String stripColors(String str) {
-        return stripColors(new StringBuilder(str), false).toString();
+        return stripColors(str, false);
     }
 
 
@@ -105,8 +294,7 @@ public class IRCUtil implements IRCConstants {
      * <a href="http://www.mirc.co.uk/help/color.txt"
      * target="_blank">http://www.mirc.co.uk/help/color.txt</a>.
      * <p>
-     * Calling this method is equivalent to
-     * {@code IRCUtil.stripColors(buf, false)}.
+     * The <code>StringBuilder</code> is modified in place.
      *
      * @param buf The line which should be parsed.
      * @return A line cleaned from any mIRC colorcodes.
@@ -122,8 +310,7 @@ public class IRCUtil implements IRCConstants {
      * <a href="http://www.mirc.co.uk/help/color.txt"
      * target="_blank">http://www.mirc.co.uk/help/color.txt</a>.
      * <p>
-     * Calling this method is equivalent to
-     * {@code IRCUtil.stripColors(buf, true)}.
+     * The <code>StringBuilder</code> is modified in place.
      *
      * @param buf The line which should be parsed.
      * @return A line as <code>StringBuilder</code> object which is cleaned from
@@ -135,61 +322,338 @@ public class IRCUtil implements IRCConstants {
 
 
     /**
-     * Erases the mIRC colorcodes and optionally also CTCP delimiters from a String.
-     * The documentation of the evil color codes is available on
-     * <a href="http://www.mirc.co.uk/help/color.txt"
-     * target="_blank">http://www.mirc.co.uk/help/color.txt</a>.
+     * Erases the mIRC colorcodes and optionally also CTCP delimiters from a
+     * <code>CharSequence</code>. The input is scanned once; if it contains
+     * no control characters at all, no buffer is allocated.
+     *
+     * @param str The line which should be parsed.
+     * @param removeCTCP If <code>false</code>, <code>CTCP_DELIMITER</code>s
+     *                   are left untouched in the string.
+     * @return A line cleaned from any mIRC colorcodes.
+     */
+    public static String stripColors(CharSequence str, boolean removeCTCP) {
+        int len = str.length();
+        int i = 0;
+        while (i < len && formattingLength(str, i, len, removeCTCP) == 0) {
+            i++;
+        }
+        if (i == len) {
+            return str.toString();
+        }
+        char[] out = new char[len];
+        for (int j = 0; j < i; j++) {
+            out[j] = str.charAt(j);
+        }
+        int w = i;
+        while (i < len) {
+            int n = formattingLength(str, i, len, removeCTCP);
+            if (n == 0) {
+                out[w++] = str.charAt(i++);
+            } else {
+                i += n;
+            }
+        }
+        return new String(out, 0, w);
+    }
+
+
+    /**
+     * Erases the mIRC colorcodes and optionally also CTCP delimiters from a
+     * <code>StringBuilder</code> in place. A write cursor trails the read
+     * cursor, so every character is moved at most once.
      *
      * @param buf The line which should be parsed.
      * @param removeCTCP If <code>false</code>, <code>CTCP_DELIMITER</code>s
      *                   are left untouched in the string.
-     * @return A line as <code>StringBuilder</code> object which is cleaned from
-     *         any mIRC colorcodes.
+     * @return The same <code>StringBuilder</code>, cleaned from any mIRC
+     *         colorcodes.
      */
-    private static StringBuilder stripColors(StringBuilder buf,
-            boolean removeCTCP) {
+    public static StringBuilder stripColors(StringBuilder buf, boolean removeCTCP) {
         int len = buf.length();
-        char c;
-        for (int i = 0, j = 0; i < len; i++, j = i) {
-            c = buf.charAt(i);
-            try {
-                // COLORS Beginning
-                // (format: <colorIndicator><int>[<int>][[,<int>[<int>]]
-                if (c == COLOR_INDICATOR) {
-                    c = buf.charAt(++j);
-                    if ('0' <= c && c <= '9') { // first int
-                        c = buf.charAt(++j);
-                        if ('0' <= c && c <= '9')
-                            c = buf.charAt(++j); // second int
-                    }
-                    if (c == ',')
-                        c = buf.charAt(++j); // comma
-                    if ('0' <= c && c <= '9') { // first int
-                        c = buf.charAt(++j);
-                        if ('0' <= c && c <= '9')
-                            c = buf.charAt(++j); // second int
-                    }
-                    // CTCP / BOLD / UNDERLINE / COLOR END
-                    // (format: <ctcpDelimiter> / <boldIndicator> etc.)
-                } else if ((removeCTCP && c == CTCPCommand.QUOTE_CHAR)
-                        || c == BOLD_INDICATOR
-                        || c == UNDERLINE_INDICATOR
-                        || c == COLOR_END_INDICATOR
-                        || c == COLOR_REVERSE_INDICATOR) {
-                    j++;
+        int w = 0;
+        for (int i = 0; i < len;) {
+            int n = formattingLength(buf, i, len, removeCTCP);
+            if (n == 0) {
+                if (w != i) {
+                    buf.setCharAt(w, buf.charAt(i));
                 }
-            } catch(StringIndexOutOfBoundsException exc) {
-                // we got the end of the string with a call to charAt(++iIndexEnd)
-                // nothing
+                w++;
+                i++;
+            } else {
+                i += n;
             }
+        }
+        buf.setLength(w);
+        return buf;
+    }
 
-            if (j > i) {
-                buf = buf.delete(i, j); // remove the cars
-                len -= (j - i);
-                i--;
+
+    /**
+     * Erases the mIRC colorcodes and optionally also CTCP delimiters from a
+     * region of a <code>char</code> array in place.
+     *
+     * @param chars The array holding the line.
+     * @param off The index of the first character of the line.
+     * @param len The number of characters of the line.
+     * @param removeCTCP If <code>false</code>, <code>CTCP_DELIMITER</code>s
+     *                   are left untouched in the string.
+     * @return The new number of characters; the cleaned line starts at
+     *         <code>off</code>.
+     */
+    public static int stripColors(char[] chars, int off, int len, boolean removeCTCP) {
+        CharSequence seq = CharBuffer.wrap(chars);
+        int end = off + len;
+        int w = off;
+        for (int i = off; i < end;) {
+            int n = formattingLength(seq, i, end, removeCTCP);
+            if (n == 0) {
+                chars[w++] = chars[i++];
+            } else {
+                i += n;
             }
         }
-        return buf;
+        return w - off;
+    }
+
+
+    /**
+     * Erases the mIRC colorcodes and optionally also CTCP delimiters from a
+     * region of UTF-8 encoded bytes in place. As all control characters are
+     * ASCII and bytes of multi-byte characters are never ASCII, the bytes need
+     * not be decoded. Neither the position nor the limit of the buffer is
+     * changed.
+     *
+     * @param buf The buffer holding the line.
+     * @param start The absolute index of the first byte of the line.
+     * @param end The absolute index behind the last byte of the line.
+     * @param removeCTCP If <code>false</code>, <code>CTCP_DELIMITER</code>s
+     *                   are left untouched in the string.
+     * @return The new absolute index behind the last byte of the line.
+     */
+    public static int stripColors(ByteBuffer buf, int start, int end, boolean removeCTCP) {
+        int w = start;
+        for (int i = start; i < end;) {
+            int n = formattingLength(buf, i, end, removeCTCP);
+            if (n == 0) {
+                if (w != i) {
+                    buf.put(w, buf.get(i));
+                }
+                w++;
+                i++;
+            } else {
+                i += n;
+            }
+        }
+        return w;
+    }
+
+
+    /**
+     * Returns the length of the mIRC control sequence at the given index.
+     * Colors have the format
+     * <code>&lt;colorIndicator&gt;[&lt;int&gt;[&lt;int&gt;][,&lt;int&gt;[&lt;int&gt;]]]</code>,
+     * hex colors the format
+     * <code>&lt;hexColorIndicator&gt;[RRGGBB[,RRGGBB]]</code>; all other
+     * codes are a single character.
+     *
+     * @param str The line.
+     * @param i The index to look at.
+     * @param len The length of the line.
+     * @param removeCTCP If <code>true</code>, <code>CTCP_DELIMITER</code>s
+     *                   count as control sequence.
+     * @return The number of characters of the control sequence; 0 if there is
+     *         none at <code>i</code>.
+     */
+    private static int formattingLength(CharSequence str, int i, int len, boolean removeCTCP) {
+        char c = str.charAt(i);
+        if (c >= ' ') {
+            return 0;
+        }
+        if (c == COLOR_INDICATOR) {
+            int j = skipDigits(str, i + 1, len);
+            if (j > i + 1 && j < len && str.charAt(j) == ',') {
+                int k = skipDigits(str, j + 1, len);
+                if (k > j + 1) {
+                    j = k;
+                }
+            }
+            return j - i;
+        }
+        if (c == HEX_COLOR_INDICATOR) {
+            int j = i + 1;
+            if (isHexColor(str, j, len)) {
+                j += 6;
+                if (j < len && str.charAt(j) == ',' && isHexColor(str, j + 1, len)) {
+                    j += 7;
+                }
+            }
+            return j - i;
+        }
+        return isFormattingIndicator(c, removeCTCP) ? 1 : 0;
+    }
+
+
+    /**
+     * Same as {@link #formattingLength(CharSequence, int, int, boolean)} for
+     * UTF-8 encoded bytes.
+     */
+    private static int formattingLength(ByteBuffer buf, int i, int end, boolean removeCTCP) {
+        int c = buf.get(i);
+        if (c >= ' ' || c < 0) {
+            return 0;
+        }
+        if (c == COLOR_INDICATOR) {
+            int j = skipDigits(buf, i + 1, end);
+            if (j > i + 1 && j < end && buf.get(j) == ',') {
+                int k = skipDigits(buf, j + 1, end);
+                if (k > j + 1) {
+                    j = k;
+                }
+            }
+            return j - i;
+        }
+        if (c == HEX_COLOR_INDICATOR) {
+            int j = i + 1;
+            if (isHexColor(buf, j, end)) {
+                j += 6;
+                if (j < end && buf.get(j) == ',' && isHexColor(buf, j + 1, end)) {
+                    j += 7;
+                }
+            }
+            return j - i;
+        }
+        return isFormattingIndicator((char) c, removeCTCP) ? 1 : 0;
+    }
+
+
+    /**
+     * @param c A control character.
+     * @param removeCTCP If <code>true</code>, the CTCP delimiter counts.
+     * @return <code>true</code> if <code>c</code> is a single-character mIRC
+     *         code.
+     */
+    private static boolean isFormattingIndicator(char c, boolean removeCTCP) {
+        return c == BOLD_INDICATOR
+                || c == UNDERLINE_INDICATOR
+                || c == COLOR_END_INDICATOR
+                || c == COLOR_REVERSE_INDICATOR
+                || c == ITALIC_INDICATOR
+                || c == STRIKETHROUGH_INDICATOR
+                || c == MONOSPACE_INDICATOR
+                || (removeCTCP && c == CTCPCommand.QUOTE_CHAR);
+    }
+
+
+    /**
+     * Skips up to two decimal digits.
+     *
+     * @return The index behind the digits.
+     */
+    static int skipDigits(CharSequence str, int i, int len) {
+        for (int max = Math.min(i + 2, len); i < max && isDigit(str.charAt(i)); i++) {
+            // nothing
+        }
+        return i;
+    }
+
+
+    /**
+     * Skips up to two decimal digits.
+     *
+     * @return The index behind the digits.
+     */
+    private static int skipDigits(ByteBuffer buf, int i, int end) {
+        for (int max = Math.min(i + 2, end); i < max && isDigit(buf.get(i)); i++) {
+            // nothing
+        }
+        return i;
+    }
+
+
+    /**
+     * @return <code>true</code> if six hex digits start at <code>i</code>.
+     */
+    static boolean isHexColor(CharSequence str, int i, int len) {
+        if (i + 6 > len) {
+            return false;
+        }
+        for (int j = i; j < i + 6; j++) {
+            if (!isHexDigit(str.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return <code>true</code> if six hex digits start at <code>i</code>.
+     */
+    private static boolean isHexColor(ByteBuffer buf, int i, int end) {
+        if (i + 6 > end) {
+            return false;
+        }
+        for (int j = i; j < i + 6; j++) {
+            if (!isHexDigit(buf.get(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isDigit(int c) {
+        return '0' <= c && c <= '9';
+    }
+
+
+    private static boolean isHexDigit(int c) {
+        return isDigit(c) || ('a' <= c && c <= 'f') || ('A' <= c && c <= 'F');
+    }
+
+
+    /**
+     * Finds the boundaries of the substrings of a string without creating
+     * them. The substrings are the same as those returned by
+     * {@link #split(String, int)}: consecutive delimiters enclose an empty
+     * substring, a delimiter at the end does not.
+     * <p>
+     * The start of the <code>n</code>th substring (zero-based) is stored at
+     * <code>bounds[2 * n]</code>, its end (exclusive) at
+     * <code>bounds[2 * n + 1]</code>. Substrings which do not fit into
+     * <code>bounds</code> are counted but not stored, so a caller can retry
+     * with a larger array.
+     * @param str The string which is to split.
+     * @param delim The delimiter character, for example a space <code>' '</code>.
+     * @param bounds The array to store the boundaries in.
+     * @return The number of substrings.
+     */
+    public static int tokenize(CharSequence str, int delim, int[] bounds) {
+        int n = 0;
+        int last = 0;
+        int len = str.length();
+        for (int index = 0; index < len; index++) {
+            if (str.charAt(index) == delim) {
+                n = addBounds(bounds, n, last, index);
+                last = index + 1;
+            }
+        }
+        if (last != len)
+            n = addBounds(bounds, n, last, len);
+        return n;
+    }
+
+
+    /**
+     * Stores the boundaries of a substring if they fit.
+     * @return The new number of substrings.
+     */
+    private static int addBounds(int[] bounds, int n, int start, int end) {
+        if (2 * n + 1 < bounds.length) {
+            bounds[2 * n] = start;
+            bounds[2 * n + 1] = end;
+        }
+        return n + 1;
     }
 
 
@@ -208,24 +672,21 @@ public class IRCUtil implements IRCConstants {
      *                 <code>""</code>, nothing is appended.
      * @return An array with all substrings.
      * @see #split(String, int)
+     * @deprecated Use {@link #tokenize(CharSequence, int, int[])}, which does
+     *             not create the substrings, or the parameter accessors of
+     *             {@link IRCByteParser}.
      */
+    @Deprecated
     public static String[] split(String str, int delim, String trailing) {
-        List<String> items = new ArrayList<String>(15);
-        int last = 0;
-        int index = 0;
-        int len = str.length();
-        while (index < len) {
-            if (str.charAt(index) == delim) {
-                items.add(str.substring(last, index));
-                last = index + 1;
-            }
-            index++;
-        }
-        if (last != len)
-            items.add(str.substring(last));
-        if (trailing != null && trailing.length() != 0)
-            items.add(trailing);
-        String[] result = items.toArray(new String[0]);
+        int n = tokenize(str, delim, EMPTY_BOUNDS);
+        int[] bounds = new int[2 * n];
+        tokenize(str, delim, bounds);
+        boolean addTrailing = trailing != null && trailing.length() != 0;
+        String[] result = new String[addTrailing ? n + 1 : n];
+        for (int i = 0; i < n; i++)
+            result[i] = str.substring(bounds[2 * i], bounds[2 * i + 1]);
+        if (addTrailing)
+            result[n] = trailing;
         return result;
     }
 
@@ -237,7 +698,10 @@ public class IRCUtil implements IRCConstants {
      * @param delim The delimiter character, for example a space <code>' '</code>.
      * @return An array with all substrings.
      * @see #split(String, int, String)
+     * @deprecated Use {@link #tokenize(CharSequence, int, int[])}, which does
+     *             not create the substrings.
      */
+    @Deprecated
     public static String[] split(String str, int delim) {
         return split(str, delim, null);
     }
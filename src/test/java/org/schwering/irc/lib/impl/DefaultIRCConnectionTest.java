@@ -0,0 +1,66 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.schwering.irc.lib.IRCConfig;
+import org.schwering.irc.lib.IRCConfigBuilder;
+import org.schwering.irc.lib.util.IRCCommand;
+
+/**
+ * Tests the room {@link DefaultIRCConnection} leaves for split messages
+ * before the server told us our prefix.
+ */
+public class DefaultIRCConnectionTest {
+
+    private static DefaultIRCConnection newConnection() {
+        IRCConfig config = IRCConfigBuilder.newBuilder().host("irc.example.org").port(6667).nick("nick").build();
+        return new DefaultIRCConnection(config, config);
+    }
+
+    @Test
+    public void messageRoomDefaults() {
+        DefaultIRCConnection conn = newConnection();
+        /* ":nick!" + "~" + 10 + "@" + 63 + " PRIVMSG #chan :" and CR LF */
+        int used = 6 + 11 + 1 + 63 + 16 + 2;
+        assertEquals(512 - used, conn.getMessageRoom(IRCCommand.PRIVMSG, "#chan"));
+    }
+
+    @Test
+    public void messageRoomISupport() {
+        DefaultIRCConnection conn = newConnection();
+        conn.getISupport().update("USERLEN=12");
+        conn.getISupport().update("HOSTLEN=20");
+        int used = 6 + 13 + 1 + 20 + 16 + 2;
+        assertEquals(512 - used, conn.getMessageRoom(IRCCommand.PRIVMSG, "#chan"));
+    }
+
+    @Test
+    public void messageRoomInvalidISupport() {
+        DefaultIRCConnection conn = newConnection();
+        conn.getISupport().update("USERLEN=x");
+        conn.getISupport().update("HOSTLEN");
+        int used = 6 + 11 + 1 + 63 + 16 + 2;
+        assertEquals(512 - used, conn.getMessageRoom(IRCCommand.PRIVMSG, "#chan"));
+    }
+
+    @Test
+    public void messageRoomMinimum() {
+        DefaultIRCConnection conn = newConnection();
+        conn.getISupport().update("HOSTLEN=1000");
+        assertEquals(64, conn.getMessageRoom(IRCCommand.PRIVMSG, "#chan"));
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the channel limits of {@link IRCISupport}.
+ */
+public class IRCISupportTest {
+
+    @Test
+    public void noChannelLimit() {
+        IRCISupport isupport = new IRCISupport();
+        assertEquals(-1, isupport.getChannelLimit('#'));
+        assertEquals(null, isupport.getChannelLimitPrefixes('#'));
+    }
+
+    @Test
+    public void chanLimitGroups() {
+        IRCISupport isupport = new IRCISupport();
+        isupport.update("CHANLIMIT=#&:100,+:");
+        assertEquals(100, isupport.getChannelLimit('&'));
+        assertEquals("#&", isupport.getChannelLimitPrefixes('#'));
+        assertEquals("#&", isupport.getChannelLimitPrefixes('&'));
+        assertEquals(-1, isupport.getChannelLimit('+'));
+        assertEquals(null, isupport.getChannelLimitPrefixes('+'));
+        assertEquals(null, isupport.getChannelLimitPrefixes('!'));
+    }
+
+    @Test
+    public void maxChannelsIsTotal() {
+        IRCISupport isupport = new IRCISupport();
+        isupport.update("MAXCHANNELS=20");
+        isupport.update("CHANTYPES=#&!");
+        assertEquals(20, isupport.getChannelLimit('!'));
+        assertEquals("#&!", isupport.getChannelLimitPrefixes('#'));
+        assertEquals("#&!", isupport.getChannelLimitPrefixes('!'));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * IRClib - A Java Internet Relay Chat library
+ * Copyright (C) 2006-2015 Christoph Schwering <schwering@gmail.com>
+ * and/or other contributors as indicated by the @author tags.
+ *
+ * This library and the accompanying materials are made available under the
+ * terms of the
+ *  - GNU Lesser General Public License,
+ *  - Apache License, Version 2.0 and
+ *  - Eclipse Public License v1.0.
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY.
+ */
+package org.schwering.irc.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the boundaries of {@link IRCUtil#splitMessage(String, int, Charset)}.
+ */
+public class IRCUtilTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** 12 ASCII characters */
+    private static final String TWELVE = "abcdefghijkl";
+
+    @Test
+    public void splitFits() {
+        assertEquals(Arrays.asList(TWELVE), IRCUtil.splitMessage(TWELVE, 14, UTF_8));
+    }
+
+    @Test
+    public void splitAtSpace() {
+        assertEquals(Arrays.asList("abc def", "ghijklm nop"), IRCUtil.splitMessage("abc def ghijklm nop", 14, UTF_8));
+    }
+
+    @Test
+    public void splitKeepsFourByteCodePoint() {
+        /* U+1F600 takes 4 bytes and would end at byte 16 */
+        String smiley = new String(Character.toChars(0x1F600));
+        List<String> parts = IRCUtil.splitMessage(TWELVE + smiley + "x", 14, UTF_8);
+        assertEquals(Arrays.asList(TWELVE, smiley + "x"), parts);
+        assertFits(parts, 14);
+    }
+
+    @Test
+    public void splitFourByteCodePointEndsPart() {
+        /* 10 + 4 bytes fill the part exactly */
+        String smiley = new String(Character.toChars(0x1F600));
+        List<String> parts = IRCUtil.splitMessage("abcdefghij" + smiley + "x", 14, UTF_8);
+        assertEquals(Arrays.asList("abcdefghij" + smiley, "x"), parts);
+        assertFits(parts, 14);
+    }
+
+    @Test
+    public void splitKeepsColorCode() {
+        /* the color code with digits would end at byte 18 */
+        String color = "\u000312,04";
+        List<String> parts = IRCUtil.splitMessage(TWELVE + color + "x", 14, UTF_8);
+        assertEquals(Arrays.asList(TWELVE, color + "x"), parts);
+        assertFits(parts, 14);
+    }
+
+    @Test
+    public void splitKeepsColorCodeDigit() {
+        /* 13 + 3 bytes; cutting after the first digit would change the color */
+        String color = "\u000312";
+        List<String> parts = IRCUtil.splitMessage(TWELVE + "m" + color + "x", 14, UTF_8);
+        assertEquals(Arrays.asList(TWELVE + "m", color + "x"), parts);
+        assertFits(parts, 14);
+    }
+
+    @Test
+    public void splitOtherCharset() {
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        String umlauts = "äöüäöüäöüäöüäö";
+        List<String> parts = IRCUtil.splitMessage(umlauts + "x", 14, latin1);
+        assertEquals(Arrays.asList(umlauts, "x"), parts);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitTooFewBytes() {
+        IRCUtil.splitMessage(TWELVE, 13, UTF_8);
+    }
+
+    private static void assertFits(List<String> parts, int maxBytes) {
+        for (String part : parts) {
+            assertTrue(part, part.getBytes(UTF_8).length <= maxBytes);
+        }
+    }
+}